@@ -0,0 +1,191 @@
+# ------------------------------------------------------------------------
+#
+#  Copyright (C) 2003 - 2015
+#  University of Konstanz, Germany and
+#  KNIME GmbH, Konstanz, Germany
+#  Website: http://www.knime.org; Email: contact@knime.org
+#
+#  This program is free software; you can redistribute it and/or modify
+#  it under the terms of the GNU General Public License, Version 3, as
+#  published by the Free Software Foundation.
+#
+# ------------------------------------------------------------------------
+"""
+Stand-in for ilastik's headless mode, used by the load test of the KNIME
+Ilastik Headless node.
+
+It accepts the command line the node passes to run_ilastik.sh, writes one
+result per input with the shape ilastik would export and sleeps according to
+a cost model instead of computing features. TIFF results have the classes
+along the time axis like the ones of ilastik (the "XYT quirk"), HDF5 and NPY
+results have the requested axis order. HDF5 needs h5py, NPY and HDF5 need
+numpy.
+
+The cost model is configured with environment variables:
+
+    FAKE_ILASTIK_STARTUP_S       seconds per process start (default 2)
+    FAKE_ILASTIK_S_PER_MVOXEL    seconds per million input voxels (default 0.5)
+    FAKE_ILASTIK_CLASSES         number of classes of the project (default 2)
+"""
+from __future__ import print_function
+
+import os
+import struct
+import sys
+import time
+
+
+def env_float(name, default):
+    return float(os.environ.get(name, default))
+
+
+def parse_args(argv):
+    options = {}
+    inputs = []
+    for arg in argv:
+        if arg.startswith("--"):
+            key, _, value = arg[2:].partition("=")
+            options[key] = value
+        else:
+            inputs.append(arg)
+    return options, inputs
+
+
+def nickname(path):
+    # HDF5 inputs are passed as file.h5/dataset
+    for ext in (".h5/", ".hdf5/"):
+        if ext in path:
+            path = path[:path.index(ext) + len(ext) - 1]
+    return os.path.splitext(os.path.basename(path))[0]
+
+
+# --- TIFF ------------------------------------------------------------------
+
+def tiff_shape(path):
+    """Return (width, height, pages) of a TIFF file."""
+    with open(path, "rb") as f:
+        data = f.read()
+    endian = "<" if data[:2] == b"II" else ">"
+    offset = struct.unpack(endian + "I", data[4:8])[0]
+    width = height = 0
+    pages = 0
+    while offset:
+        count = struct.unpack(endian + "H", data[offset:offset + 2])[0]
+        if pages == 0:
+            for i in range(count):
+                entry = offset + 2 + 12 * i
+                tag, typ = struct.unpack(endian + "HH", data[entry:entry + 4])
+                fmt = "H" if typ == 3 else "I"
+                value = struct.unpack(endian + fmt, data[entry + 8:entry + 8 + struct.calcsize(fmt)])[0]
+                if tag == 256:
+                    width = value
+                elif tag == 257:
+                    height = value
+        pages += 1
+        offset = struct.unpack(endian + "I", data[offset + 2 + 12 * count:offset + 6 + 12 * count])[0]
+    return width, height, pages
+
+
+def write_tiff(path, width, height, pages, axis):
+    """Write an uncompressed float32 ImageJ hyperstack with the pages along the given axis."""
+    description = ("ImageJ=1.11a\nimages=%d\n%s=%d\n" % (pages, axis, pages)).encode("ascii") + b"\0"
+    plane = struct.pack("<f", 0.5) * (width * height)
+    tags = 11
+    ifd_size = 2 + 12 * tags + 4
+    with open(path, "wb") as f:
+        f.write(b"II*\0" + struct.pack("<I", 8))
+        for page in range(pages):
+            ifd = f.tell()
+            desc_offset = ifd + ifd_size
+            data_offset = desc_offset + len(description)
+            next_ifd = data_offset + len(plane) if page < pages - 1 else 0
+            entries = [
+                (256, 4, 1, width), (257, 4, 1, height), (258, 3, 1, 32), (259, 3, 1, 1), (262, 3, 1, 1),
+                (270, 2, len(description), desc_offset), (273, 4, 1, data_offset), (277, 3, 1, 1),
+                (278, 4, 1, height), (279, 4, 1, len(plane)), (339, 3, 1, 3),
+            ]
+            f.write(struct.pack("<H", tags))
+            for tag, typ, count, value in entries:
+                if typ == 3:
+                    f.write(struct.pack("<HHIHH", tag, typ, count, value, 0))
+                else:
+                    f.write(struct.pack("<HHII", tag, typ, count, value))
+            f.write(struct.pack("<I", next_ifd))
+            f.write(description)
+            f.write(plane)
+
+
+def process_tiff(path, result, classes):
+    width, height, pages = tiff_shape(path)
+    if pages > 1:
+        # ilastik writes the classes of 3D results along the time axis
+        write_tiff(result + ".tiff", width, height, pages * classes, "frames")
+    else:
+        write_tiff(result + ".tiff", width, height, classes, "channels")
+    return width * height * pages
+
+
+# --- HDF5 and NPY ----------------------------------------------------------
+
+def result_shape(input_shape, input_axes, output_axes, classes):
+    sizes = dict(zip(input_axes, input_shape))
+    return tuple(classes if key == "c" else sizes.get(key, 1) for key in output_axes)
+
+
+def process_hdf5(path, result, options, classes):
+    import json
+    import h5py
+    import numpy
+
+    file_name, _, dataset = path.partition(".h5/")
+    with h5py.File(file_name + ".h5", "r") as f:
+        data = f[dataset]
+        shape = data.shape
+        input_axes = "".join(tag["key"] for tag in json.loads(data.attrs["axistags"])["axes"])
+    output_axes = options["output_axis_order"]
+    with h5py.File(result + ".h5", "w") as f:
+        out = f.create_dataset(options.get("output_internal_path", "exported_data"),
+                               data=numpy.full(result_shape(shape, input_axes, output_axes, classes), 0.5,
+                                               dtype=numpy.float32))
+        tags = [{"key": key, "typeFlags": 1 if key == "c" else 8 if key == "t" else 2, "resolution": 0,
+                 "description": ""} for key in output_axes]
+        out.attrs["axistags"] = json.dumps({"axes": tags})
+    return int(numpy.prod(shape))
+
+
+def process_npy(path, result, options, classes):
+    import numpy
+
+    data = numpy.load(path, mmap_mode="r")
+    shape = result_shape(data.shape, options["input_axes"], options["output_axis_order"], classes)
+    numpy.save(result + ".npy", numpy.full(shape, 0.5, dtype=numpy.float32))
+    return int(numpy.prod(data.shape))
+
+
+def main(argv):
+    start = time.time()
+    options, inputs = parse_args(argv)
+    classes = int(os.environ.get("FAKE_ILASTIK_CLASSES", "2"))
+    time.sleep(env_float("FAKE_ILASTIK_STARTUP_S", 2))
+
+    output_format = options.get("output_format", "multipage tiff")
+    pattern = options["output_filename_format"]
+    voxels = 0
+    for path in inputs:
+        result = pattern.replace("{nickname}", nickname(path))
+        if output_format == "hdf5":
+            voxels += process_hdf5(path, result, options, classes)
+        elif output_format == "numpy":
+            voxels += process_npy(path, result, options, classes)
+        else:
+            voxels += process_tiff(path, result, classes)
+
+    # the inference takes the remaining time of the cost model
+    cost = env_float("FAKE_ILASTIK_S_PER_MVOXEL", 0.5) * voxels / 1e6
+    time.sleep(max(0.0, cost - (time.time() - start - env_float("FAKE_ILASTIK_STARTUP_S", 2))))
+    print("fake ilastik processed %d images (%d voxels) in %.1f s" % (len(inputs), voxels, time.time() - start))
+    return 0
+
+
+if __name__ == "__main__":
+    sys.exit(main(sys.argv[1:]))
@@ -0,0 +1,3 @@
+#!/bin/sh
+# Stand-in for run_ilastik.sh of an ilastik installation, see fake_ilastik.py.
+exec "${FAKE_ILASTIK_PYTHON:-python3}" "$(dirname "$0")/fake_ilastik.py" "$@"
@@ -0,0 +1,135 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2015
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ *
+ */
+package org.knime.knip.ilastik.nodes.headless;
+
+import java.util.concurrent.TimeUnit;
+
+import org.knime.core.data.filestore.FileStoreFactory;
+import org.knime.knip.base.data.img.ImgPlusCellFactory;
+import org.knime.knip.base.data.img.ImgPlusValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.imagej.ImgPlus;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Conversion of the XYT results of the ilastik TIFF export to XYZC ({@code overrideTimeDimension}) for 3D inputs.
+ * The result is stored as ilastik's results are read back (planar or array) or in cells, which takes the generic
+ * path.
+ *
+ * @author Andreas Graumann, University of Konstanz
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AxisRemapBenchmark {
+
+    /**
+     * the input image
+     */
+    @Param({"XYZ:256x256x16", "XYZ:512x512x64", "XYZ:1024x1024x8"})
+    public String shape;
+
+    /**
+     * number of classes of the project, i.e. channels of the result
+     */
+    @Param({"2", "4"})
+    public int classes;
+
+    @Param({"planar", "array", "cell"})
+    public String storage;
+
+    private IlastikHeadlessNodeModel<FloatType> m_model;
+
+    private ImgPlus<FloatType> m_result;
+
+    private ImgPlusValue<?> m_input;
+
+    /**
+     * Create the input image and the ilastik result with the classes along the time axis.
+     *
+     * @throws Exception
+     */
+    @Setup
+    public void setUp() throws Exception {
+        m_model = new IlastikHeadlessNodeModel<>(1, 1);
+
+        final long[] dims = SyntheticImages.dimensions(shape);
+        final ImgPlus<FloatType> input = SyntheticImages.create(new ArrayImgFactory<FloatType>(), dims,
+                                                                SyntheticImages.axes(shape), new FloatType());
+        m_input = (ImgPlusValue<?>)new ImgPlusCellFactory(FileStoreFactory.createNotInWorkflowFileStoreFactory())
+                .createCell(input);
+
+        final long[] resultDims = {dims[0], dims[1], dims[2] * classes};
+        m_result = SyntheticImages.create(SyntheticImages.<FloatType> factory(storage), resultDims, "xyt",
+                                          new FloatType());
+    }
+
+    /**
+     * @return the XYZC image
+     */
+    @Benchmark
+    public ImgPlus<FloatType> overrideTimeDimension() {
+        return m_model.overrideTimeDimension(m_result, m_input);
+    }
+}
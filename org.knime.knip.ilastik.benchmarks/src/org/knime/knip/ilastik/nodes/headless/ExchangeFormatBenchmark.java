@@ -0,0 +1,178 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2015
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ *
+ */
+package org.knime.knip.ilastik.nodes.headless;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.imagej.ImgPlus;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Staging and readback of synthetic images with each exchange format, i.e. TIFF through SCIFIO, HDF5 and NPY. The
+ * images are read from the staged files, ilastik is not needed.
+ *
+ * @author Andreas Graumann, University of Konstanz
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExchangeFormatBenchmark {
+
+    @Param({"TIFF", "HDF5", "NPY"})
+    public String format;
+
+    @Param({"XY:2048x2048", "XYZ:512x512x64", "XYCZT:256x256x3x16x4"})
+    public String shape;
+
+    @Param({"uint8", "float32"})
+    public String pixelType;
+
+    @Param({"false", "true"})
+    public boolean compressed;
+
+    private IlastikExchangeFormat m_format;
+
+    private ImgPlus<?> m_img;
+
+    private IlastikImageWriter m_writer;
+
+    private IlastikImageReader m_reader;
+
+    private File m_dir;
+
+    private String m_stagedFile;
+
+    private String m_writtenFile;
+
+    /**
+     * Create the image, the writer and reader and a staged file to read.
+     *
+     * @throws Exception
+     */
+    @Setup(Level.Trial)
+    public <T extends RealType<T> & NativeType<T>> void setUp() throws Exception {
+        m_format = IlastikExchangeFormat.fromName(format);
+        final T type = SyntheticImages.type(pixelType);
+        m_img = SyntheticImages.create(new ArrayImgFactory<T>(), SyntheticImages.dimensions(shape),
+                                       SyntheticImages.axes(shape), type);
+        m_writer = m_format.createWriter();
+        m_reader = m_format.createReader();
+        m_dir = Files.createTempDirectory("ilastik-benchmark").toFile();
+        m_stagedFile = new File(m_dir, "staged" + m_format.getInputExtension()).getPath();
+        m_writer.write(m_img, m_stagedFile, compressed);
+        m_writtenFile = new File(m_dir, "written" + m_format.getInputExtension()).getPath();
+    }
+
+    /**
+     * Each invocation writes a new file, as the node does.
+     */
+    @Setup(Level.Invocation)
+    public void deleteWrittenFile() {
+        new File(m_writtenFile).delete();
+    }
+
+    /**
+     * @throws Exception
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        m_writer.close();
+        m_reader.close();
+        FileUtils.deleteDirectory(m_dir);
+    }
+
+    /**
+     * Write the image as input for ilastik.
+     *
+     * @return the written file
+     * @throws Exception
+     */
+    @Benchmark
+    public String stage() throws Exception {
+        m_writer.write(m_img, m_writtenFile, compressed);
+        return m_writtenFile;
+    }
+
+    /**
+     * Read a file of the exchange format as result of ilastik.
+     *
+     * @return the image
+     * @throws Exception
+     */
+    @Benchmark
+    public ImgPlus<?> readBack() throws Exception {
+        if (m_format == IlastikExchangeFormat.HDF5) {
+            // the staged file has the input dataset
+            return Hdf5ImageReader.read(m_stagedFile, Hdf5Format.INPUT_DATASET);
+        }
+        return m_reader.read(m_stagedFile);
+    }
+}
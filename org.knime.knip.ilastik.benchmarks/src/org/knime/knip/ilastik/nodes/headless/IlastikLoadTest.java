@@ -0,0 +1,337 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2015
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ *
+ */
+package org.knime.knip.ilastik.nodes.headless;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.InetAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import org.eclipse.core.runtime.FileLocator;
+import org.eclipse.core.runtime.Path;
+import org.eclipse.core.runtime.preferences.IEclipsePreferences;
+import org.eclipse.core.runtime.preferences.InstanceScope;
+import org.eclipse.equinox.app.IApplication;
+import org.eclipse.equinox.app.IApplicationContext;
+import org.knime.core.data.DataColumnSpecCreator;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.RowKey;
+import org.knime.core.data.def.DefaultRow;
+import org.knime.core.data.filestore.internal.NotInWorkflowDataRepository;
+import org.knime.core.node.BufferedDataContainer;
+import org.knime.core.node.BufferedDataTable;
+import org.knime.core.node.DefaultNodeProgressMonitor;
+import org.knime.core.node.ExecutionContext;
+import org.knime.core.node.Node;
+import org.knime.core.node.NodeFactory;
+import org.knime.core.node.NodeModel;
+import org.knime.core.node.NodeSettings;
+import org.knime.core.node.defaultnodesettings.SettingsModelPassword;
+import org.knime.core.node.workflow.SingleNodeContainer.MemoryPolicy;
+import org.knime.knip.base.data.img.ImgPlusCell;
+import org.knime.knip.base.data.img.ImgPlusCellFactory;
+import org.knime.knip.ilastik.nodes.headless.IlastikHeadlessNodeModel.ColCreationModes;
+import org.knime.knip.ilastik.nodes.headless.IlastikHeadlessNodeModel.ExecutorModes;
+import org.osgi.framework.FrameworkUtil;
+
+import net.imagej.ImgPlus;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+
+/**
+ * End-to-end load test of the Ilastik Headless node against a stand-in for ilastik (scripts/run_ilastik.sh), which
+ * writes results of the right shape and sleeps according to a cost model. It measures the overhead of staging,
+ * orchestration and readback independently of the inference: for each column creation mode the node processes a
+ * synthetic table and the rows per second and the peak heap are reported.
+ * <p>
+ * Run as headless Eclipse application in a KNIME installation with this fragment, e.g.
+ *
+ * <pre>
+ * knime -nosplash -consoleLog -application org.knime.knip.ilastik.loadtest -rows 500 -shape XYZ:256x256x16
+ * </pre>
+ *
+ * Options: {@code -rows}, {@code -shape}, {@code -format} (TIFF, HDF5, NPY), {@code -batchSize},
+ * {@code -processes}, {@code -modes} (comma separated column creation modes) and {@code -workers} (number of
+ * {@link IlastikWorkerDaemon}s started on localhost, which run the stand-in for the remote executor; 0 runs it
+ * locally). The cost model of the stand-in is configured with the environment variables described in
+ * fake_ilastik.py.
+ *
+ * @author Andreas Graumann, University of Konstanz
+ */
+public class IlastikLoadTest implements IApplication {
+
+    private static final String PREFERENCES_NODE = "org.knime.knip.ilastik.nodes";
+
+    private static final String IMAGE_COLUMN = "Image";
+
+    /**
+     * The options of a load test.
+     */
+    static final class Options {
+
+        private int m_rows = 100;
+
+        private String m_shape = "XYZ:256x256x16";
+
+        private String m_format = IlastikExchangeFormat.TIFF.toString();
+
+        private int m_batchSize = 0;
+
+        private int m_processes = 1;
+
+        private int m_workers = 0;
+
+        private List<String> m_modes =
+                Arrays.asList(ColCreationModes.NEW_TABLE, ColCreationModes.APPEND, ColCreationModes.REPLACE);
+
+        /**
+         * @param args the command line, e.g. "-rows 500 -format NPY"
+         * @return the options
+         */
+        static Options parse(final String[] args) {
+            final Options options = new Options();
+            for (int i = 0; i + 1 < args.length; i += 2) {
+                final String value = args[i + 1];
+                switch (args[i]) {
+                    case "-rows":
+                        options.m_rows = Integer.parseInt(value);
+                        break;
+                    case "-shape":
+                        options.m_shape = value;
+                        break;
+                    case "-format":
+                        options.m_format = value;
+                        break;
+                    case "-batchSize":
+                        options.m_batchSize = Integer.parseInt(value);
+                        break;
+                    case "-processes":
+                        options.m_processes = Integer.parseInt(value);
+                        break;
+                    case "-workers":
+                        options.m_workers = Integer.parseInt(value);
+                        break;
+                    case "-modes":
+                        options.m_modes = Arrays.asList(value.split(","));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+            return options;
+        }
+    }
+
+    @Override
+    public Object start(final IApplicationContext context) throws Exception {
+        final String[] args = (String[])context.getArguments().get(IApplicationContext.APPLICATION_ARGS);
+        run(Options.parse(args == null ? new String[0] : args), System.out);
+        return IApplication.EXIT_OK;
+    }
+
+    @Override
+    public void stop() {
+        // NB: runs to completion
+    }
+
+    /**
+     * Run the node once per column creation mode and print the throughput.
+     *
+     * @param options the options
+     * @param out receives the report
+     * @throws Exception
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static void run(final Options options, final PrintStream out) throws Exception {
+        final IEclipsePreferences preferences = InstanceScope.INSTANCE.getNode(PREFERENCES_NODE);
+        final String ilastikPath = preferences.get("path", null);
+        preferences.put("path", locateStandIn().getAbsolutePath());
+
+        final File project = File.createTempFile("loadtest", ".ilp");
+        final List<IlastikWorkerDaemon> daemons = new ArrayList<>();
+        final StringBuilder workers = new StringBuilder();
+        final String token = UUID.randomUUID().toString();
+        for (int i = 0; i < options.m_workers; i++) {
+            final IlastikWorkerDaemon daemon = new IlastikWorkerDaemon(InetAddress.getLoopbackAddress(), 0, token,
+                    locateStandIn().getAbsolutePath(), Files.createTempDirectory("loadtest-worker"));
+            daemon.start();
+            daemons.add(daemon);
+            workers.append(i == 0 ? "" : ",").append("localhost:").append(daemon.getPort());
+        }
+        final ExecutionContext exec = new ExecutionContext(new DefaultNodeProgressMonitor(),
+                new Node((NodeFactory<NodeModel>)(NodeFactory)new IlastikHeadlessNodeFactory<>()),
+                MemoryPolicy.CacheSmallInMemory, NotInWorkflowDataRepository.newInstance());
+        try {
+            final BufferedDataTable table = createTable(options, exec);
+            out.println(String.format("%-10s %8s %10s %10s %14s", "Mode", "Rows", "Seconds", "Rows/s",
+                                      "Peak heap (MB)"));
+            for (final String mode : options.m_modes) {
+                final IlastikHeadlessNodeModel<?> model =
+                        createModel(options, mode, project, workers.toString(), token);
+
+                System.gc();
+                resetPeakHeap();
+                final long start = System.nanoTime();
+                final BufferedDataTable[] results = model.execute(new BufferedDataTable[]{table}, exec);
+                final double seconds = (System.nanoTime() - start) / 1e9;
+
+                out.println(String.format("%-10s %8d %10.2f %10.2f %14d", mode, results[0].size(), seconds,
+                                          results[0].size() / seconds, getPeakHeap() / 1024 / 1024));
+                model.reset();
+                for (final BufferedDataTable result : results) {
+                    exec.clearTable(result);
+                }
+            }
+        } finally {
+            for (final IlastikWorkerDaemon daemon : daemons) {
+                daemon.close();
+            }
+            project.delete();
+            if (ilastikPath == null) {
+                preferences.remove("path");
+            } else {
+                preferences.put("path", ilastikPath);
+            }
+        }
+    }
+
+    /**
+     * @return the stand-in for run_ilastik.sh
+     * @throws IOException
+     */
+    private static File locateStandIn() throws IOException {
+        final URL url = FileLocator.find(FrameworkUtil.getBundle(IlastikLoadTest.class),
+                                         new Path("scripts/run_ilastik.sh"), null);
+        if (url == null) {
+            throw new IOException("The stand-in for ilastik can't be found.");
+        }
+        final File script = new File(FileLocator.toFileURL(url).getPath());
+        script.setExecutable(true);
+        return script;
+    }
+
+    /**
+     * @return a table with the given number of rows, which all contain the same synthetic image
+     */
+    private static BufferedDataTable createTable(final Options options, final ExecutionContext exec)
+            throws IOException {
+        final ImgPlus<UnsignedByteType> img =
+                SyntheticImages.create(new PlanarImgFactory<UnsignedByteType>(),
+                                       SyntheticImages.dimensions(options.m_shape),
+                                       SyntheticImages.axes(options.m_shape), new UnsignedByteType());
+        final ImgPlusCellFactory cellFactory = new ImgPlusCellFactory(exec);
+        final BufferedDataContainer container = exec.createDataContainer(
+                new DataTableSpec(new DataColumnSpecCreator(IMAGE_COLUMN, ImgPlusCell.TYPE).createSpec()));
+        for (int i = 0; i < options.m_rows; i++) {
+            container.addRowToTable(new DefaultRow(RowKey.createRowKey((long)i), cellFactory.createCell(img)));
+        }
+        container.close();
+        return container.getTable();
+    }
+
+    /**
+     * @param workers the addresses of the remote workers, empty if ilastik is run locally
+     * @param token the token of the remote workers
+     * @return a node model with the settings of the load test
+     */
+    private static IlastikHeadlessNodeModel<?> createModel(final Options options, final String mode,
+                                                          final File project, final String workers,
+                                                          final String token)
+            throws Exception {
+        final IlastikHeadlessNodeModel<?> model = new IlastikHeadlessNodeModel<>(1, 1);
+        final NodeSettings settings = new NodeSettings("loadtest");
+        model.saveSettingsTo(settings);
+        settings.addString("path_to_ilastik_project_file", project.getAbsolutePath());
+        settings.addString("src_image", IMAGE_COLUMN);
+        settings.addString("colCreationMode", mode);
+        settings.addString("exchange_format", options.m_format);
+        settings.addInt("batch_size", options.m_batchSize);
+        settings.addInt("parallel_processes", options.m_processes);
+        if (!workers.isEmpty()) {
+            settings.addString("executor", ExecutorModes.REMOTE);
+            settings.addString("remote_workers", workers);
+            final SettingsModelPassword remoteToken = IlastikHeadlessNodeModel.createRemoteTokenModel();
+            remoteToken.setStringValue(token);
+            remoteToken.saveSettingsTo(settings);
+        }
+        model.validateSettings(settings);
+        model.loadValidatedSettingsFrom(settings);
+        return model;
+    }
+
+    private static void resetPeakHeap() {
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * @return the sum of the peak usage of the heap pools since the last reset
+     */
+    private static long getPeakHeap() {
+        long peak = 0;
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2015
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ *
+ */
+package org.knime.knip.ilastik.nodes.headless;
+
+import java.util.Random;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.AxisType;
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Random images of a given shape, pixel type and storage for the benchmarks.
+ *
+ * @author Andreas Graumann, University of Konstanz
+ */
+final class SyntheticImages {
+
+    private SyntheticImages() {
+        // NB Util Class
+    }
+
+    /**
+     * @param shape axes and dimensions, e.g. "XYZ:512x512x64"
+     * @return the ilastik axis keys in imglib2 order, e.g. "xyz"
+     */
+    static String axes(final String shape) {
+        return shape.substring(0, shape.indexOf(':')).toLowerCase();
+    }
+
+    /**
+     * @param shape axes and dimensions, e.g. "XYZ:512x512x64"
+     * @return the dimensions
+     */
+    static long[] dimensions(final String shape) {
+        final String[] sizes = shape.substring(shape.indexOf(':') + 1).split("x");
+        final long[] dims = new long[sizes.length];
+        for (int d = 0; d < dims.length; d++) {
+            dims[d] = Long.parseLong(sizes[d]);
+        }
+        return dims;
+    }
+
+    /**
+     * @param name "uint8", "uint16" or "float32"
+     * @return a new instance of the pixel type
+     */
+    @SuppressWarnings("unchecked")
+    static <T extends RealType<T> & NativeType<T>> T type(final String name) {
+        switch (name) {
+            case "uint8":
+                return (T)new UnsignedByteType();
+            case "uint16":
+                return (T)new UnsignedShortType();
+            case "float32":
+                return (T)new FloatType();
+            default:
+                throw new IllegalArgumentException("Unknown pixel type: " + name);
+        }
+    }
+
+    /**
+     * @param storage "array", "planar" or "cell"
+     * @return a factory for images with this storage
+     */
+    static <T extends NativeType<T>> ImgFactory<T> factory(final String storage) {
+        switch (storage) {
+            case "array":
+                return new ArrayImgFactory<>();
+            case "planar":
+                return new PlanarImgFactory<>();
+            case "cell":
+                return new CellImgFactory<>(64);
+            default:
+                throw new IllegalArgumentException("Unknown storage: " + storage);
+        }
+    }
+
+    /**
+     * @param factory creates the image
+     * @param dims the dimensions
+     * @param axes ilastik axis keys in imglib2 order
+     * @param type the pixel type
+     * @return an image filled with random values in the range of an unsigned byte
+     */
+    static <T extends RealType<T> & NativeType<T>> ImgPlus<T> create(final ImgFactory<T> factory,
+                                                                     final long[] dims, final String axes,
+                                                                     final T type) {
+        final Img<T> img = factory.create(dims, type);
+        final Random random = new Random(42);
+        final Cursor<T> cursor = img.cursor();
+        while (cursor.hasNext()) {
+            cursor.next().setReal(random.nextInt(256));
+        }
+        final AxisType[] axisTypes = new AxisType[axes.length()];
+        for (int d = 0; d < axisTypes.length; d++) {
+            axisTypes[d] = Hdf5Format.toAxisType(axes.charAt(d));
+        }
+        return new ImgPlus<>(img, "synthetic", axisTypes);
+    }
+}
@@ -0,0 +1,153 @@
+# ------------------------------------------------------------------------
+#
+#  Copyright (C) 2003 - 2015
+#  University of Konstanz, Germany and
+#  KNIME GmbH, Konstanz, Germany
+#  Website: http://www.knime.org; Email: contact@knime.org
+#
+#  This program is free software; you can redistribute it and/or modify
+#  it under the terms of the GNU General Public License, Version 3, as
+#  published by the Free Software Foundation.
+#
+# ------------------------------------------------------------------------
+"""
+Stand-in for ilastik_worker.py, used by the tests of the KNIME Ilastik Headless
+node.
+
+It speaks the protocol of ilastik_worker.py without loading ilastik: it replies
+"ready" once started and answers each request with "ok" after a result has been
+written for every input. NPY inputs get a float32 result with the shape ilastik
+would export and FAKE_ILASTIK_CLASSES (default 2) channels, for all other
+inputs the result file contains the export settings it was written with as
+JSON. Like ilastik_worker.py, each request starts from the export settings of
+the project, which are read from the project file as lines of
+"--name=value", and adds its own arguments. Failures are triggered by the file
+names of the inputs:
+
+    fail*     the request is answered with "error"
+    crash*    the worker exits without a reply
+
+If the project file doesn't exist the worker replies "error" instead of
+"ready", like ilastik_worker.py if the project can't be loaded. Only the
+standard library is needed.
+
+Usage: python fake_ilastik_worker.py <ilastik_worker.py> <project.ilp>
+"""
+from __future__ import print_function
+
+import ast
+import json
+import os
+import struct
+import sys
+
+REPLY_PREFIX = "@@ilastik-worker@@ "
+
+NPY_MAGIC = b"\x93NUMPY"
+
+
+def reply(**kwargs):
+    sys.stdout.write(REPLY_PREFIX + json.dumps(kwargs) + "\n")
+    sys.stdout.flush()
+
+
+def parse_args(args):
+    options = {}
+    for arg in args:
+        key, _, value = arg[2:].partition("=")
+        options[key] = value
+    return options
+
+
+def nickname(path):
+    return os.path.splitext(os.path.basename(path))[0]
+
+
+def npy_shape(path):
+    with open(path, "rb") as f:
+        preamble = f.read(8)
+        if preamble[:6] != NPY_MAGIC:
+            raise ValueError(path + " is not a .npy file")
+        if preamble[6:7] == b"\x01":
+            length = struct.unpack("<H", f.read(2))[0]
+        else:
+            length = struct.unpack("<I", f.read(4))[0]
+        return ast.literal_eval(f.read(length).decode("latin1"))["shape"]
+
+
+def write_npy(path, shape):
+    header = "{'descr': '<f4', 'fortran_order': False, 'shape': %r, }" % (tuple(shape),)
+    # magic, version and length of the header are 10 bytes, the whole header ends with a newline
+    padding = 64 - (10 + len(header) + 1) % 64
+    count = 1
+    for size in shape:
+        count *= size
+    with open(path, "wb") as f:
+        f.write(NPY_MAGIC + b"\x01\x00" + struct.pack("<H", len(header) + padding + 1))
+        f.write((header + " " * padding + "\n").encode("latin1"))
+        f.write(struct.pack("<f", 0.5) * count)
+
+
+def result_shape(input_shape, input_axes, output_axes, classes):
+    sizes = dict(zip(input_axes, input_shape))
+    return tuple(classes if key == "c" else sizes.get(key, 1) for key in output_axes)
+
+
+def load_defaults(project):
+    with open(project) as f:
+        return parse_args(line.strip() for line in f if line.strip())
+
+
+def process(defaults, request):
+    options = dict(defaults)
+    options.update(parse_args(request["args"]))
+    classes = int(os.environ.get("FAKE_ILASTIK_CLASSES", "2"))
+    pattern = options.get("output_filename_format")
+    for path in request["inputs"]:
+        name = nickname(path)
+        if name.startswith("crash"):
+            print("fake ilastik worker crashes at " + path, file=sys.stderr)
+            sys.stderr.flush()
+            os._exit(3)
+        if name.startswith("fail"):
+            raise ValueError("Could not process " + path)
+        if pattern is None:
+            continue
+        result = pattern.replace("{nickname}", name)
+        if options.get("output_format") == "numpy":
+            write_npy(result + ".npy", result_shape(npy_shape(path), request["input_axes"],
+                                                    options["output_axis_order"], classes))
+        else:
+            settings = dict((key, value) for key, value in options.items() if key != "output_filename_format")
+            with open(result, "w") as f:
+                json.dump(settings, f, sort_keys=True)
+    print("fake ilastik worker processed %d images" % len(request["inputs"]))
+
+
+def main():
+    if len(sys.argv) != 3:
+        print(__doc__, file=sys.stderr)
+        return 2
+
+    if not os.path.isfile(sys.argv[2]):
+        reply(status="error", message="Could not load project: " + sys.argv[2] + " doesn't exist")
+        return 1
+    defaults = load_defaults(sys.argv[2])
+    reply(status="ready")
+
+    for line in iter(sys.stdin.readline, ""):
+        if not line.strip():
+            continue
+        request = json.loads(line)
+        if request.get("command") == "shutdown":
+            break
+        try:
+            process(defaults, request)
+            reply(status="ok")
+        except Exception as e:
+            reply(status="error", message=str(e))
+    return 0
+
+
+if __name__ == "__main__":
+    sys.exit(main())
@@ -0,0 +1,3 @@
+#!/bin/sh
+# Stand-in for the Python of an ilastik installation, runs fake_ilastik_worker.py instead of ilastik_worker.py.
+exec "${FAKE_ILASTIK_PYTHON:-python3}" "$(dirname "$0")/fake_ilastik_worker.py" "$@"
@@ -0,0 +1,251 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2015
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ *
+ */
+package org.knime.knip.ilastik.nodes.headless;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.eclipse.core.runtime.preferences.IEclipsePreferences;
+import org.eclipse.core.runtime.preferences.InstanceScope;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataColumnSpecCreator;
+import org.knime.core.data.DataRow;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.DataType;
+import org.knime.core.data.RowKey;
+import org.knime.core.data.def.DefaultRow;
+import org.knime.core.data.filestore.internal.NotInWorkflowDataRepository;
+import org.knime.core.node.BufferedDataContainer;
+import org.knime.core.node.BufferedDataTable;
+import org.knime.core.node.DefaultNodeProgressMonitor;
+import org.knime.core.node.ExecutionContext;
+import org.knime.core.node.Node;
+import org.knime.core.node.NodeFactory;
+import org.knime.core.node.NodeModel;
+import org.knime.core.node.NodeSettings;
+import org.knime.core.node.workflow.SingleNodeContainer.MemoryPolicy;
+import org.knime.knip.base.data.img.ImgPlusCell;
+import org.knime.knip.base.data.img.ImgPlusCellFactory;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.img.array.ArrayImgs;
+
+/**
+ * Tests of the Ilastik Headless node, run against the stand-in for the ilastik worker (see
+ * {@link IlastikWorkerPoolTest}).
+ *
+ * @author Andreas Graumann, University of Konstanz
+ */
+public class IlastikHeadlessNodeModelTest {
+
+    private static final String PREFERENCES_NODE = "org.knime.knip.ilastik.nodes";
+
+    private static final String IMAGE_COLUMN = "Image";
+
+    /**
+     * The project file, the result cache and the staged files.
+     */
+    @Rule
+    public final TemporaryFolder m_folder = new TemporaryFolder();
+
+    private String m_pythonPath;
+
+    private String m_cachePath;
+
+    private ExecutionContext m_exec;
+
+    /**
+     * Let the node run the stand-in instead of ilastik and cache the results in the temporary folder.
+     *
+     * @throws IOException
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    @Before
+    public void useStandIn() throws IOException {
+        final IEclipsePreferences preferences = InstanceScope.INSTANCE.getNode(PREFERENCES_NODE);
+        m_pythonPath = preferences.get("python_path", null);
+        m_cachePath = preferences.get("cache_path", null);
+        preferences.put("python_path",
+                        IlastikWorkerPoolTest.locateScript("scripts/run_python.sh").getAbsolutePath());
+        preferences.put("cache_path", m_folder.newFolder("cache").getAbsolutePath());
+
+        m_exec = new ExecutionContext(new DefaultNodeProgressMonitor(),
+                new Node((NodeFactory<NodeModel>)(NodeFactory)new IlastikHeadlessNodeFactory<>()),
+                MemoryPolicy.CacheSmallInMemory, NotInWorkflowDataRepository.newInstance());
+    }
+
+    /**
+     * Restore the preferences.
+     */
+    @After
+    public void restorePreferences() {
+        final IEclipsePreferences preferences = InstanceScope.INSTANCE.getNode(PREFERENCES_NODE);
+        restore(preferences, "python_path", m_pythonPath);
+        restore(preferences, "cache_path", m_cachePath);
+    }
+
+    private static void restore(final IEclipsePreferences preferences, final String key, final String value) {
+        if (value == null) {
+            preferences.remove(key);
+        } else {
+            preferences.put(key, value);
+        }
+    }
+
+    /**
+     * The last batch only contains missing cells, which have no axes to derive the export arguments of the cache key
+     * from.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testTrailingMissingCellsWithCache() throws Exception {
+        assertResults(execute("use_result_cache", true, true, false, false), true, true, false, false);
+    }
+
+    /**
+     * The same for the index of the incremental execution.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testTrailingMissingCellsIncremental() throws Exception {
+        assertResults(execute("incremental_execution", true, true, false, false), true, true, false, false);
+    }
+
+    /**
+     * A table without any image is processed without running ilastik.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testOnlyMissingCellsWithCache() throws Exception {
+        assertResults(execute("use_result_cache", false, false, false), false, false, false);
+    }
+
+    /**
+     * The channel cutout selects the channels in the axis order of the export source, i.e. the reversed axes of the
+     * input with ilastik's channels appended unless the input already has channels.
+     */
+    @Test
+    public void testChannelCutout() {
+        assertEquals("[(None,None,1),(None,None,3)]", IlastikHeadlessNodeModel.createChannelCutout("xy", 1, 2));
+        assertEquals("[(None,None,None,0),(None,None,None,1)]",
+                     IlastikHeadlessNodeModel.createChannelCutout("xyz", 0, 1));
+        assertEquals("[(1,None,None),(2,None,None)]", IlastikHeadlessNodeModel.createChannelCutout("xyc", 1, 1));
+    }
+
+    /**
+     * Process a table in batches of two images with the NPY exchange format, the test is skipped without Python.
+     *
+     * @param option the boolean setting which is enabled, e.g. the result cache
+     * @param images for each row whether it has an image or a missing cell
+     * @return the output table
+     */
+    private BufferedDataTable execute(final String option, final boolean... images) throws Exception {
+        IlastikWorkerPoolTest.assumePython();
+        final IlastikHeadlessNodeModel<?> model = new IlastikHeadlessNodeModel<>(1, 1);
+        final NodeSettings settings = new NodeSettings("test");
+        model.saveSettingsTo(settings);
+        settings.addString("path_to_ilastik_project_file", m_folder.newFile("project.ilp").getAbsolutePath());
+        settings.addString("src_image", IMAGE_COLUMN);
+        settings.addString("exchange_format", IlastikExchangeFormat.NPY.toString());
+        settings.addInt("batch_size", 2);
+        settings.addBoolean("keep_ilastik_running", true);
+        settings.addBoolean(option, true);
+        model.validateSettings(settings);
+        model.loadValidatedSettingsFrom(settings);
+
+        final ImgPlusCellFactory cellFactory = new ImgPlusCellFactory(m_exec);
+        final BufferedDataContainer container = m_exec.createDataContainer(
+                new DataTableSpec(new DataColumnSpecCreator(IMAGE_COLUMN, ImgPlusCell.TYPE).createSpec()));
+        for (int i = 0; i < images.length; i++) {
+            final DataCell cell = images[i]
+                    ? cellFactory.createCell(new ImgPlus<>(ArrayImgs.unsignedBytes(8, 6), "image" + i,
+                                                           new AxisType[]{Axes.X, Axes.Y}))
+                    : DataType.getMissingCell();
+            container.addRowToTable(new DefaultRow(RowKey.createRowKey((long)i), cell));
+        }
+        container.close();
+
+        try {
+            return model.execute(new BufferedDataTable[]{container.getTable()}, m_exec)[0];
+        } finally {
+            model.onDispose();
+        }
+    }
+
+    /**
+     * @param table the output table
+     * @param images for each row whether it has a result image or a missing cell
+     */
+    private static void assertResults(final BufferedDataTable table, final boolean... images) {
+        assertEquals(images.length, table.size());
+        int i = 0;
+        for (final DataRow row : table) {
+            assertEquals(RowKey.createRowKey((long)i), row.getKey());
+            if (images[i]) {
+                assertFalse(row.getCell(0).isMissing());
+            } else {
+                assertTrue(row.getCell(0).isMissing());
+            }
+            i++;
+        }
+    }
+}
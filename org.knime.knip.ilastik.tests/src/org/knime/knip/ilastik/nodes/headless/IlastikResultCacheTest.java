@@ -0,0 +1,133 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2015
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ *
+ */
+package org.knime.knip.ilastik.nodes.headless;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import org.junit.Test;
+
+import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Tests of the keys of the result cache.
+ *
+ * @author Andreas Graumann, University of Konstanz
+ */
+public class IlastikResultCacheTest {
+
+    private static final long[] DIMS = {37, 23, 5};
+
+    private static final Interval TILE = new FinalInterval(new long[]{3, 4, 1}, new long[]{20, 19, 3});
+
+    /**
+     * The key depends on the pixels, not on the storage of the image.
+     */
+    @Test
+    public void testKeyIsIndependentOfStorage() {
+        final ImgPlus<UnsignedShortType> array = createImage(new ArrayImgFactory<UnsignedShortType>());
+        final ImgPlus<UnsignedShortType> planar = createImage(new PlanarImgFactory<UnsignedShortType>());
+        final ImgPlus<UnsignedShortType> cells = createImage(new CellImgFactory<UnsignedShortType>(8));
+
+        final String key = IlastikResultCache.createKey(array, "signature");
+        assertEquals(key, IlastikResultCache.createKey(planar, "signature"));
+        assertEquals(key, IlastikResultCache.createKey(cells, "signature"));
+
+        final String tileKey = IlastikResultCache.createKey(array, TILE, "signature");
+        assertNotEquals(key, tileKey);
+        assertEquals(tileKey, IlastikResultCache.createKey(planar, TILE, "signature"));
+        assertEquals(tileKey, IlastikResultCache.createKey(cells, TILE, "signature"));
+    }
+
+    /**
+     * Long values which can't be told apart as doubles have different keys.
+     */
+    @Test
+    public void testLongValuesAreNotRounded() {
+        final long large = 1L << 53;
+        final ImgPlus<LongType> img = new ImgPlus<>(ArrayImgs.longs(new long[]{large, 0}, 2));
+        final ImgPlus<LongType> next = new ImgPlus<>(ArrayImgs.longs(new long[]{large + 1, 0}, 2));
+        assertNotEquals(IlastikResultCache.createKey(img, "signature"),
+                        IlastikResultCache.createKey(next, "signature"));
+    }
+
+    /**
+     * Installations of different ilastik versions are told apart by their path.
+     */
+    @Test
+    public void testInstallationVersion() {
+        final String installation =
+                IlastikResultCache.describeInstallation("/opt/ilastik-1.4.0rc8-Linux/run_ilastik.sh");
+        assertEquals("1.4.0rc8", installation.split("\\|")[1]);
+        assertNotEquals(installation,
+                        IlastikResultCache.describeInstallation("/opt/ilastik-1.4.1-Linux/run_ilastik.sh"));
+    }
+
+    private static ImgPlus<UnsignedShortType> createImage(final ImgFactory<UnsignedShortType> factory) {
+        final Img<UnsignedShortType> img = factory.create(DIMS, new UnsignedShortType());
+        final Cursor<UnsignedShortType> cursor = img.localizingCursor();
+        while (cursor.hasNext()) {
+            cursor.fwd();
+            cursor.get().set((cursor.getIntPosition(0) * 31 + cursor.getIntPosition(1) * 7
+                    + cursor.getIntPosition(2) * 1009) % 65536);
+        }
+        return new ImgPlus<>(img);
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2015
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ *
+ */
+package org.knime.knip.ilastik.nodes.headless;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.eclipse.core.runtime.preferences.IEclipsePreferences;
+import org.eclipse.core.runtime.preferences.InstanceScope;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of the lifecycle of the result stores of the incremental execution.
+ *
+ * @author Andreas Graumann, University of Konstanz
+ */
+public class IlastikResultIndexTest {
+
+    private static final String PREFERENCES_NODE = "org.knime.knip.ilastik.nodes";
+
+    /**
+     * The cache directory and the internals of the nodes.
+     */
+    @Rule
+    public final TemporaryFolder m_folder = new TemporaryFolder();
+
+    private String m_cachePath;
+
+    /**
+     * Keep the stores in the temporary folder.
+     *
+     * @throws IOException
+     */
+    @Before
+    public void useTemporaryCache() throws IOException {
+        final IEclipsePreferences preferences = InstanceScope.INSTANCE.getNode(PREFERENCES_NODE);
+        m_cachePath = preferences.get("cache_path", null);
+        preferences.put("cache_path", m_folder.newFolder("cache").getAbsolutePath());
+    }
+
+    /**
+     * Restore the cache directory.
+     */
+    @After
+    public void restoreCache() {
+        final IEclipsePreferences preferences = InstanceScope.INSTANCE.getNode(PREFERENCES_NODE);
+        if (m_cachePath == null) {
+            preferences.remove("cache_path");
+        } else {
+            preferences.put("cache_path", m_cachePath);
+        }
+    }
+
+    /**
+     * The store of a node which has never been saved is deleted with the node.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testUnsavedStoreIsDeleted() throws Exception {
+        final IlastikResultIndex index = new IlastikResultIndex();
+        final File store = index.getDirectory();
+        assertTrue(store.isDirectory());
+
+        index.close();
+        assertDeleted(store);
+    }
+
+    /**
+     * The store of a saved node is kept for the next time the node is loaded.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testSavedStoreIsKept() throws Exception {
+        final File internals = m_folder.newFolder("internals");
+        final IlastikResultIndex index = new IlastikResultIndex();
+        index.save(internals);
+        index.close();
+
+        final IlastikResultIndex loaded = IlastikResultIndex.load(internals);
+        assertEquals(index.getDirectory(), loaded.getDirectory());
+        assertTrue(loaded.getDirectory().isDirectory());
+        loaded.close();
+    }
+
+    /**
+     * A reset node is saved without internals, its store is deleted with the node unless it is saved again.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testStoreOfResetNodeIsDeleted() throws Exception {
+        final IlastikResultIndex index = new IlastikResultIndex();
+        index.save(m_folder.newFolder("internals"));
+        index.markUnsaved();
+
+        index.close();
+        assertDeleted(index.getDirectory());
+    }
+
+    /**
+     * A node whose internals refer to the store of another node, e.g. a copy, gets its own store, so that the nodes
+     * don't delete the results of each other.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testCopyGetsOwnStore() throws Exception {
+        final File internals = m_folder.newFolder("internals");
+        final IlastikResultIndex original = new IlastikResultIndex();
+        original.save(internals);
+
+        final IlastikResultIndex copy = IlastikResultIndex.load(internals);
+        assertNotEquals(original.getDirectory(), copy.getDirectory());
+
+        // the copy has never been saved
+        copy.close();
+        assertDeleted(copy.getDirectory());
+        assertTrue(original.getDirectory().isDirectory());
+        original.close();
+    }
+
+    /**
+     * Wait until the background deletion of a store is done.
+     */
+    private static void assertDeleted(final File store) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 20000;
+        while (store.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertFalse(store.exists());
+    }
+}
@@ -0,0 +1,456 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2015
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ *
+ */
+package org.knime.knip.ilastik.nodes.headless;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.core.runtime.FileLocator;
+import org.eclipse.core.runtime.Path;
+import org.eclipse.core.runtime.preferences.IEclipsePreferences;
+import org.eclipse.core.runtime.preferences.InstanceScope;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.knime.core.node.ExecutionMonitor;
+import org.osgi.framework.FrameworkUtil;
+
+/**
+ * Tests of the ilastik workers kept by the node, run against a stand-in for the worker script
+ * (scripts/fake_ilastik_worker.py) which speaks the protocol of scripts/ilastik_worker.py. The tests need Python 3 and
+ * are skipped without it, another interpreter can be set with the environment variable FAKE_ILASTIK_PYTHON.
+ *
+ * @author Andreas Graumann, University of Konstanz
+ */
+public class IlastikWorkerPoolTest {
+
+    private static final String PREFERENCES_NODE = "org.knime.knip.ilastik.nodes";
+
+    private static final long KEEP_ALIVE_MILLIS = 500;
+
+    private static String s_pythonPath;
+
+    /**
+     * The directory of the batches and the project file.
+     */
+    @Rule
+    public final TemporaryFolder m_folder = new TemporaryFolder();
+
+    private File m_project;
+
+    private IlastikWorkerPool m_pool;
+
+    private IlastikLocalExecutor m_executor;
+
+    /**
+     * Let the workers run the stand-in instead of ilastik, the tests are skipped without Python.
+     *
+     * @throws IOException
+     */
+    @BeforeClass
+    public static void useStandIn() throws IOException {
+        final IEclipsePreferences preferences = InstanceScope.INSTANCE.getNode(PREFERENCES_NODE);
+        s_pythonPath = preferences.get("python_path", null);
+        assumePython();
+        preferences.put("python_path", locateScript("scripts/run_python.sh").getAbsolutePath());
+    }
+
+    /**
+     * Restore the Python of the ilastik installation.
+     */
+    @AfterClass
+    public static void restorePython() {
+        final IEclipsePreferences preferences = InstanceScope.INSTANCE.getNode(PREFERENCES_NODE);
+        if (s_pythonPath == null) {
+            preferences.remove("python_path");
+        } else {
+            preferences.put("python_path", s_pythonPath);
+        }
+    }
+
+    /**
+     * @throws IOException
+     */
+    @Before
+    public void createPool() throws IOException {
+        m_project = m_folder.newFile("project.ilp");
+        m_pool = new IlastikWorkerPool(KEEP_ALIVE_MILLIS);
+        m_executor = new IlastikLocalExecutor(m_pool);
+    }
+
+    /**
+     * Shut down the workers of a test.
+     */
+    @After
+    public void closePool() {
+        m_executor.close();
+        m_pool.close();
+    }
+
+    /**
+     * A worker is started once and reused by the following requests.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testWorkerIsReused() throws Exception {
+        final IlastikExecutor.Job first = execute("image0");
+        assertTrue(first.getMetrics().getWallTimeMs(IlastikMetrics.Phase.STARTUP) > 0);
+        assertTrue(new File(first.getDirectory(), "image0_result").isFile());
+        final IlastikWorker worker = acquire();
+        assertNotNull(worker);
+        m_pool.release(worker);
+
+        final IlastikExecutor.Job second = execute("image1", "image2");
+        assertEquals(0, second.getMetrics().getWallTimeMs(IlastikMetrics.Phase.STARTUP), 0);
+        assertTrue(new File(second.getDirectory(), "image2_result").isFile());
+        assertSame(worker, acquire());
+    }
+
+    /**
+     * An error reply fails the batch, but the worker can process further requests.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testErrorReplyKeepsWorker() throws Exception {
+        try {
+            execute("image0", "fail1");
+            fail("The error reply of the worker is not reported.");
+        } catch (final IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Could not process"));
+        }
+        final IlastikWorker worker = acquire();
+        assertNotNull(worker);
+        assertTrue(worker.isAlive());
+        m_pool.release(worker);
+
+        execute("image2");
+        assertSame(worker, acquire());
+    }
+
+    /**
+     * A worker which terminates while processing a request is not reused, the next request starts a new one.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testCrashedWorkerIsReplaced() throws Exception {
+        execute("image0");
+        final IlastikWorker crashed = acquire();
+        m_pool.release(crashed);
+
+        try {
+            execute("crash1");
+            fail("The termination of the worker is not reported.");
+        } catch (final IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("terminated unexpectedly"));
+        }
+        assertFalse(crashed.isAlive());
+        assertNull(acquire());
+
+        final IlastikExecutor.Job job = execute("image2");
+        assertTrue(job.getMetrics().getWallTimeMs(IlastikMetrics.Phase.STARTUP) > 0);
+        final IlastikWorker restarted = acquire();
+        assertNotNull(restarted);
+        assertNotSame(crashed, restarted);
+    }
+
+    /**
+     * A worker which can't load the project reports an error instead of being ready.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testFailedStartupIsReported() throws Exception {
+        assertTrue(m_project.delete());
+        try {
+            execute("image0");
+            fail("The failed startup of the worker is not reported.");
+        } catch (final IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("could not be started"));
+        }
+        assertNull(acquire());
+    }
+
+    /**
+     * After a reset of the node the idle workers are shut down once the keep-alive time has passed.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testIdleWorkersAreShutDownAfterReset() throws Exception {
+        execute("image0");
+        final IlastikWorker worker = acquire();
+        m_pool.release(worker);
+
+        m_pool.closeLater();
+        final long deadline = System.currentTimeMillis() + KEEP_ALIVE_MILLIS + 20000;
+        while (worker.isAlive() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertFalse(worker.isAlive());
+        assertNull(acquire());
+    }
+
+    /**
+     * A new execution within the keep-alive time reuses the idle workers.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testCancelCloseKeepsIdleWorkers() throws Exception {
+        execute("image0");
+        final IlastikWorker worker = acquire();
+        m_pool.release(worker);
+
+        m_pool.closeLater();
+        m_pool.cancelClose();
+        Thread.sleep(3 * KEEP_ALIVE_MILLIS);
+        assertTrue(worker.isAlive());
+        assertSame(worker, acquire());
+    }
+
+    /**
+     * Idle workers with another configuration are shut down when the settings change.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testRetainClosesOtherConfigurations() throws Exception {
+        execute("image0");
+        final IlastikWorker worker = acquire();
+        m_pool.release(worker);
+
+        m_pool.retain(IlastikLocalExecutor.createWorkerConfiguration(m_project.getAbsolutePath(), 1, 1024));
+        assertTrue(worker.isAlive());
+
+        m_pool.retain("another configuration");
+        assertFalse(worker.isAlive());
+        assertNull(acquire());
+    }
+
+    /**
+     * Workers are only reused for jobs with the same format and export arguments, the output locations of the
+     * batches don't matter.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testExportArgumentsAreInKey() throws Exception {
+        execute(Collections.singletonList("--output_axis_order=cyx"), "image0");
+        final IlastikWorker worker = acquire(Collections.singletonList("--output_axis_order=cyx"));
+        assertNotNull(worker);
+        m_pool.release(worker);
+
+        execute(Collections.singletonList("--output_axis_order=cyx"), "image1");
+        assertSame(worker, acquire(Collections.singletonList("--output_axis_order=cyx")));
+
+        final IlastikExecutor.Job job = execute("image2");
+        assertTrue(job.getMetrics().getWallTimeMs(IlastikMetrics.Phase.STARTUP) > 0);
+        assertNotSame(worker, acquire());
+    }
+
+    /**
+     * A request with fewer arguments than the one before gets the export settings of the project, not the ones of
+     * the earlier request.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testRequestStartsFromProjectSettings() throws Exception {
+        Files.write(m_project.toPath(), Collections.singletonList("--export_source=Probabilities"));
+        final String project = m_project.getAbsolutePath();
+        try (IlastikWorker worker = IlastikWorker.start("worker", project, 1, 1024, new ExecutionMonitor())) {
+            final File first = process(worker, Arrays.asList("--output_axis_order=cyx", "--export_dtype=uint8",
+                                                             "--export_drange=(0.0,1.0)",
+                                                             "--export_new_drange=(0,255)",
+                                                             "--cutout_subregion=[(0,None,None),(1,None,None)]"));
+            final String firstSettings = new String(Files.readAllBytes(first.toPath()), StandardCharsets.UTF_8);
+            assertTrue(firstSettings, firstSettings.contains("\"output_axis_order\": \"cyx\""));
+            assertTrue(firstSettings, firstSettings.contains("\"export_new_drange\": \"(0,255)\""));
+
+            final File second = process(worker, Collections.<String> emptyList());
+            assertEquals("{\"export_source\": \"Probabilities\"}",
+                         new String(Files.readAllBytes(second.toPath()), StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Let a worker process a single input.
+     *
+     * @param args the export arguments besides the output location
+     * @return the result file
+     */
+    private File process(final IlastikWorker worker, final List<String> args) throws Exception {
+        final File directory = m_folder.newFolder();
+        final File input = new File(directory, "image.txt");
+        assertTrue(input.createNewFile());
+        final List<String> exportArgs = new ArrayList<>(args);
+        exportArgs.add(
+                "--output_filename_format=" + directory.getAbsolutePath() + File.separator + "{nickname}_result");
+        worker.process(Collections.singletonList(input.getAbsolutePath()), exportArgs, null, null,
+                       new ExecutionMonitor());
+        return new File(directory, "image_result");
+    }
+
+    /**
+     * Process a batch with the executor of the test.
+     *
+     * @param names the names of the input files, see fake_ilastik_worker.py for the ones which fail
+     * @return the processed job
+     */
+    private IlastikExecutor.Job execute(final String... names) throws Exception {
+        return execute(Collections.<String> emptyList(), names);
+    }
+
+    /**
+     * Process a batch with the executor of the test.
+     *
+     * @param args the export arguments besides the output location
+     * @param names the names of the input files, see fake_ilastik_worker.py for the ones which fail
+     * @return the processed job
+     */
+    private IlastikExecutor.Job execute(final List<String> args, final String... names) throws Exception {
+        final File directory = m_folder.newFolder();
+        final List<String> inputs = new ArrayList<>();
+        for (final String name : names) {
+            final File input = new File(directory, name + ".txt");
+            assertTrue(input.createNewFile());
+            inputs.add(input.getAbsolutePath());
+        }
+        final String batchDir = directory.getAbsolutePath() + File.separator;
+        final List<String> exportArgs = new ArrayList<>(args);
+        exportArgs.add("--output_filename_format=" + batchDir + "{nickname}_result");
+        final IlastikExecutor.Job job = new IlastikExecutor.Job(m_project.getAbsolutePath(), batchDir, inputs,
+                inputs, exportArgs, null, 1, 1024, new IlastikMetrics.Record());
+        try (IlastikResultWatcher watcher = new IlastikResultWatcher(
+                new IlastikBatch(0, batchDir, null, Collections.<IlastikBatch.Entry> emptyList()), entry -> {
+                    // NB: the batch has no entries
+                })) {
+            m_executor.execute(job, watcher, new ExecutionMonitor());
+        }
+        return job;
+    }
+
+    /**
+     * @return the idle worker for the configuration of the tests, null if there is none
+     */
+    private IlastikWorker acquire() {
+        return acquire(Collections.<String> emptyList());
+    }
+
+    /**
+     * @param args the export arguments besides the output location
+     * @return the idle worker for the configuration of the tests and the arguments, null if there is none
+     */
+    private IlastikWorker acquire(final List<String> args) {
+        final List<String> exportArgs = new ArrayList<>(args);
+        exportArgs.add("--output_filename_format=" + m_folder.getRoot().getAbsolutePath());
+        return m_pool.acquire(IlastikLocalExecutor.createWorkerKey(m_project.getAbsolutePath(), 1, 1024, exportArgs));
+    }
+
+    /**
+     * Skip the tests if the stand-in can't be run, i.e. if there is no Python 3.
+     */
+    static void assumePython() {
+        final String python = System.getenv().getOrDefault("FAKE_ILASTIK_PYTHON", "python3");
+        boolean found = false;
+        try {
+            final Process process = new ProcessBuilder(python, "--version").redirectErrorStream(true).start();
+            if (process.waitFor(10, TimeUnit.SECONDS)) {
+                found = process.exitValue() == 0;
+            } else {
+                process.destroy();
+            }
+        } catch (IOException e) {
+            // not installed
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        assumeTrue("The stand-in for ilastik needs " + python + ", which can't be run.", found);
+    }
+
+    /**
+     * @param path path of a script in this fragment
+     * @return the script on disk, made executable
+     * @throws IOException
+     */
+    static File locateScript(final String path) throws IOException {
+        final URL url = FileLocator.find(FrameworkUtil.getBundle(IlastikWorkerPoolTest.class), new Path(path), null);
+        if (url == null) {
+            throw new IOException("The script " + path + " can't be found.");
+        }
+        final File script = new File(FileLocator.toFileURL(url).getPath());
+        script.setExecutable(true);
+        return script;
+    }
+}
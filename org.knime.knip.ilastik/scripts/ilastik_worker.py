@@ -0,0 +1,164 @@
+# ------------------------------------------------------------------------
+#
+#  Copyright (C) 2003 - 2015
+#  University of Konstanz, Germany and
+#  KNIME GmbH, Konstanz, Germany
+#  Website: http://www.knime.org; Email: contact@knime.org
+#
+#  This program is free software; you can redistribute it and/or modify
+#  it under the terms of the GNU General Public License, Version 3, as
+#  published by the Free Software Foundation.
+#
+# ------------------------------------------------------------------------
+"""
+Long running ilastik worker used by the KNIME Ilastik Headless node.
+
+The worker loads an ilastik project once and then processes batches of images.
+Requests are read from stdin, one JSON object per line:
+
+    {"inputs": [...], "args": [...], "input_axes": "zyx"}
+    {"command": "shutdown"}
+
+"args" are the export arguments of ilastik's headless mode, e.g.
+"--output_format=hdf5", and "--table_filename" to export the object tables of
+object classification projects. Each request is processed with the export settings
+of the project plus its own arguments, the settings of earlier requests are reset.
+Each request is answered with a single line on stdout which starts with
+REPLY_PREFIX followed by a JSON object with a "status" of "ready", "ok" or
+"error". All other output is ilastik's log.
+
+Usage: python ilastik_worker.py <project.ilp>
+"""
+from __future__ import print_function
+
+import argparse
+import json
+import sys
+import traceback
+
+REPLY_PREFIX = "@@ilastik-worker@@ "
+
+# slots of the export operator which are set by the export arguments: besides the output these are the export
+# source (InputSelection), the channel cutout (RegionStart/RegionStop), the data ranges (InputMin/InputMax and
+# ExportMin/ExportMax) and the data type (ExportDtype)
+EXPORT_SLOTS = ("InputSelection", "RegionStart", "RegionStop", "InputMin", "InputMax", "ExportMin", "ExportMax",
+                "ExportDtype", "OutputAxisOrder", "OutputFilenameFormat", "OutputInternalPath", "OutputFormat")
+
+
+def reply(**kwargs):
+    sys.stdout.write(REPLY_PREFIX + json.dumps(kwargs) + "\n")
+    sys.stdout.flush()
+
+
+def load_project(project):
+    try:
+        # ilastik >= 1.3.3
+        from ilastik import app
+    except ImportError:
+        import ilastik_main as app
+
+    parsed_args, workflow_args = app.parse_known_args(["--headless", "--readonly", "--project=" + project])
+    return app.main(parsed_args, workflow_args)
+
+
+class ExportDefaults(object):
+    """
+    The export settings of the project, which are restored before each request so that
+    the arguments of a request don't apply to the following ones.
+    """
+
+    def __init__(self, workflow):
+        self._operator = workflow.dataExportApplet.topLevelOperator
+        self._values = {}
+        for name in EXPORT_SLOTS:
+            slot = getattr(self._operator, name, None)
+            if slot is not None and slot.ready():
+                self._values[name] = slot.value
+        applet = getattr(workflow, "objectClassificationApplet", None)
+        self._table_operator = applet.topLevelOperator if applet is not None else None
+        self._table_settings, self._table_features = None, None
+        if self._table_operator is not None:
+            settings, self._table_features = self._table_operator.get_table_export_settings()
+            # NB: a copy, the settings of a request are changed in place
+            self._table_settings = dict(settings) if settings is not None else None
+
+    def restore(self):
+        for name in EXPORT_SLOTS:
+            slot = getattr(self._operator, name, None)
+            if slot is None:
+                continue
+            if name in self._values:
+                slot.setValue(self._values[name])
+            elif slot.ready():
+                # not set by the project, e.g. no cutout
+                slot.disconnect()
+        if self._table_settings is not None:
+            self._table_operator.configure_table_export_settings(dict(self._table_settings), self._table_features)
+
+
+def configure_table_export(workflow, table_filename):
+    # the same as ilastik does for --table_filename when it loads a project
+    applet = getattr(workflow, "objectClassificationApplet", None)
+    if applet is None:
+        raise ValueError("Object tables can only be exported by object classification projects")
+    operator = applet.topLevelOperator
+    settings, selected_features = operator.get_table_export_settings()
+    if settings is None:
+        raise ValueError("The object table export has to be configured in the project")
+    settings["file path"] = table_filename
+    settings["file type"] = "csv"
+    operator.configure_table_export_settings(settings, selected_features)
+
+
+def process(workflow, defaults, request):
+    defaults.restore()
+    export_applet = workflow.dataExportApplet
+    export_args, unused_args = export_applet.parse_known_cmdline_args(request["args"])
+    table_parser = argparse.ArgumentParser()
+    table_parser.add_argument("--table_filename")
+    table_args, unused_args = table_parser.parse_known_args(unused_args)
+    if unused_args:
+        raise ValueError("Unsupported arguments: " + " ".join(unused_args))
+    export_applet.configure_operator_with_parsed_args(export_args)
+    if table_args.table_filename:
+        configure_table_export(workflow, table_args.table_filename)
+
+    # the images are the raw data of the workflow
+    roles = workflow.dataSelectionApplet.topLevelOperator.DatasetRoles.value
+    role_data = {roles[0]: request["inputs"]}
+    workflow.batchProcessingApplet.run_export(role_data, input_axes=request.get("input_axes"))
+
+
+def main():
+    if len(sys.argv) != 2:
+        print(__doc__, file=sys.stderr)
+        return 2
+
+    try:
+        shell = load_project(sys.argv[1])
+    except Exception as e:
+        traceback.print_exc()
+        reply(status="error", message="Could not load project: " + str(e))
+        return 1
+    defaults = ExportDefaults(shell.workflow)
+    reply(status="ready")
+
+    for line in iter(sys.stdin.readline, ""):
+        if not line.strip():
+            continue
+        try:
+            request = json.loads(line)
+            if request.get("command") == "shutdown":
+                break
+            process(shell.workflow, defaults, request)
+            reply(status="ok")
+        except Exception as e:
+            traceback.print_exc()
+            reply(status="error", message=str(e))
+
+    shell.closeCurrentProject()
+    return 0
+
+
+if __name__ == "__main__":
+    sys.exit(main())
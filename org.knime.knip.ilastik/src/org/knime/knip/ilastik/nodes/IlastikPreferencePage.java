@@ -49,10 +49,14 @@
  */
 package org.knime.knip.ilastik.nodes;
 
+import java.io.File;
+
 import org.eclipse.core.runtime.Platform;
 import org.eclipse.core.runtime.preferences.IEclipsePreferences;
 import org.eclipse.core.runtime.preferences.InstanceScope;
+import org.eclipse.jface.preference.DirectoryFieldEditor;
 import org.eclipse.jface.preference.FileFieldEditor;
+import org.eclipse.jface.preference.IntegerFieldEditor;
 import org.eclipse.jface.preference.PreferencePage;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.custom.ScrolledComposite;
@@ -62,6 +66,7 @@ import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.Control;
 import org.eclipse.ui.IWorkbench;
 import org.eclipse.ui.IWorkbenchPreferencePage;
+import org.knime.core.node.KNIMEConstants;
 import org.knime.core.node.NodeLogger;
 import org.osgi.service.prefs.BackingStoreException;
 
@@ -81,12 +86,23 @@ public class IlastikPreferencePage extends PreferencePage
 
     private static final String DEFAULT_PATH = doAutoGuessCellProfilerPath();
 
+    private static final String DEFAULT_CACHE_PATH =
+            new File(KNIMEConstants.getKNIMETempDir(), "ilastik-cache").getPath();
+
+    private static final int DEFAULT_CACHE_CAPACITY = 10240;
+
     private ScrolledComposite m_sc;
 
     private Composite m_container;
 
     private FileFieldEditor m_fileEditor;
 
+    private FileFieldEditor m_pythonEditor;
+
+    private DirectoryFieldEditor m_cacheEditor;
+
+    private IntegerFieldEditor m_cacheCapacityEditor;
+
     private static final NodeLogger LOGGER =
             NodeLogger.getLogger(IlastikPreferencePage.class);
 
@@ -110,6 +126,17 @@ public class IlastikPreferencePage extends PreferencePage
                 "Path to Ilastik Installation", m_container);
         m_fileEditor.setStringValue(Platform.getPreferencesService().getString(
                 PLUGIN_PATH, "path", DEFAULT_PATH, null));
+        m_pythonEditor = new FileFieldEditor(PLUGIN_PATH + ".python",
+                "Python of Ilastik (worker mode, empty = guess)", m_container);
+        m_pythonEditor.setStringValue(Platform.getPreferencesService().getString(
+                PLUGIN_PATH, "python_path", "", null));
+        m_cacheEditor = new DirectoryFieldEditor(PLUGIN_PATH + ".cache",
+                "Directory of the result cache", m_container);
+        m_cacheEditor.setStringValue(getCacheDirectory());
+        m_cacheCapacityEditor = new IntegerFieldEditor(PLUGIN_PATH + ".cache_capacity",
+                "Capacity of the result cache (MB)", m_container);
+        m_cacheCapacityEditor.setValidRange(0, Integer.MAX_VALUE);
+        m_cacheCapacityEditor.setStringValue(Integer.toString(getCacheCapacity()));
         GridData gridData = new GridData();
         gridData.horizontalSpan = 3;
         gridData = new GridData();
@@ -153,6 +180,11 @@ public class IlastikPreferencePage extends PreferencePage
     @Override
     protected void performApply() {
         setPath(m_fileEditor.getStringValue());
+        setPreference("python_path", m_pythonEditor.getStringValue());
+        setPreference("cache_path", m_cacheEditor.getStringValue());
+        if (m_cacheCapacityEditor.isValid()) {
+            setPreference("cache_capacity", m_cacheCapacityEditor.getStringValue());
+        }
     }
 
     /**
@@ -162,9 +194,19 @@ public class IlastikPreferencePage extends PreferencePage
      *            Path to the CellProfiler module
      */
     private void setPath(final String path) {
+        setPreference("path", path);
+    }
+
+    /**
+     * Saves the given preference.
+     *
+     * @param key
+     * @param value
+     */
+    private static void setPreference(final String key, final String value) {
         IEclipsePreferences prefs =
                 InstanceScope.INSTANCE.getNode(PLUGIN_PATH);
-        prefs.put("path", path);
+        prefs.put(key, value);
         try {
             prefs.flush();
         } catch (BackingStoreException e) {
@@ -191,4 +233,49 @@ public class IlastikPreferencePage extends PreferencePage
         return path.concat(macExtension);
     }
 
+    /**
+     *
+     * @return Path of the Python interpreter of the Ilastik installation, which
+     *         runs the Ilastik worker
+     */
+    public static String getPythonPath() {
+
+        final String pythonPath = Platform.getPreferencesService().getString(
+                PLUGIN_PATH, "python_path", "", null);
+        if (!pythonPath.isEmpty()) {
+            return pythonPath;
+        }
+
+        final String path = Platform.getPreferencesService().getString(
+                PLUGIN_PATH, "path", DEFAULT_PATH, null);
+
+        final String os = getOS();
+        if ((os.indexOf("mac") >= 0) || (os.indexOf("darwin") >= 0)) {
+            return path.concat("/Contents/ilastik-release/bin/python");
+        }
+        final File installDir = new File(path).getParentFile();
+        if (os.indexOf("win") >= 0) {
+            return new File(installDir, "python.exe").getPath();
+        }
+        return new File(new File(installDir, "bin"), "python").getPath();
+    }
+
+    /**
+     *
+     * @return Directory of the cache for Ilastik results
+     */
+    public static String getCacheDirectory() {
+        return Platform.getPreferencesService().getString(
+                PLUGIN_PATH, "cache_path", DEFAULT_CACHE_PATH, null);
+    }
+
+    /**
+     *
+     * @return Capacity of the cache for Ilastik results in MB
+     */
+    public static int getCacheCapacity() {
+        return Platform.getPreferencesService().getInt(
+                PLUGIN_PATH, "cache_capacity", DEFAULT_CACHE_CAPACITY, null);
+    }
+
 }
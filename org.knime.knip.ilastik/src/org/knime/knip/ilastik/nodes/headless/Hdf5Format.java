@@ -0,0 +1,342 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2015
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ *
+ */
+package org.knime.knip.ilastik.nodes.headless;
+
+import java.io.StringReader;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+
+import ch.systemsx.cisd.hdf5.HDF5DataClass;
+import ch.systemsx.cisd.hdf5.HDF5DataSetInformation;
+import ch.systemsx.cisd.hdf5.hdf5lib.H5D;
+import ch.systemsx.cisd.hdf5.hdf5lib.H5F;
+import ch.systemsx.cisd.hdf5.hdf5lib.H5T;
+import ch.systemsx.cisd.hdf5.hdf5lib.HDF5Constants;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Conventions for exchanging images with ilastik as HDF5 datasets.
+ * <p>
+ * HDF5 stores arrays in C order (last dimension varies fastest) whereas imglib2 iterates the first dimension fastest,
+ * hence the dimensions of a dataset are the reversed dimensions of the image. The axes are stored in the vigra
+ * "axistags" attribute which ilastik reads and writes.
+ *
+ * @author Andreas Graumann, University of Konstanz
+ */
+final class Hdf5Format {
+
+    /**
+     * dataset of the input images
+     */
+    static final String INPUT_DATASET = "data";
+
+    /**
+     * dataset ilastik writes the results to
+     */
+    static final String RESULT_DATASET = "exported_data";
+
+    static final String AXISTAGS_ATTRIBUTE = "axistags";
+
+    private Hdf5Format() {
+        // NB Util Class
+    }
+
+    /**
+     * Supported element types of the datasets.
+     */
+    enum ElementType {
+            UINT8, INT8, UINT16, INT16, UINT32, INT32, INT64, FLOAT32, FLOAT64;
+
+        /**
+         * @param type an imglib2 type
+         * @return the element type which can hold all values of the given type
+         */
+        static ElementType of(final RealType<?> type) {
+            if (type instanceof UnsignedByteType || type instanceof BitType) {
+                return UINT8;
+            } else if (type instanceof ByteType) {
+                return INT8;
+            } else if (type instanceof UnsignedShortType) {
+                return UINT16;
+            } else if (type instanceof ShortType) {
+                return INT16;
+            } else if (type instanceof UnsignedIntType) {
+                return UINT32;
+            } else if (type instanceof IntType) {
+                return INT32;
+            } else if (type instanceof LongType) {
+                return INT64;
+            } else if (type instanceof FloatType) {
+                return FLOAT32;
+            } else {
+                return FLOAT64;
+            }
+        }
+
+        /**
+         * @param info the dataset
+         * @param unsigned whether an integer dataset is unsigned
+         * @return the element type of the dataset
+         */
+        static ElementType of(final HDF5DataSetInformation info, final boolean unsigned) {
+            final HDF5DataClass dataClass = info.getTypeInformation().getDataClass();
+            final int size = info.getTypeInformation().getElementSize();
+            if (dataClass == HDF5DataClass.FLOAT) {
+                return size == 4 ? FLOAT32 : FLOAT64;
+            } else if (dataClass == HDF5DataClass.INTEGER) {
+                switch (size) {
+                    case 1:
+                        return unsigned ? UINT8 : INT8;
+                    case 2:
+                        return unsigned ? UINT16 : INT16;
+                    case 4:
+                        return unsigned ? UINT32 : INT32;
+                    case 8:
+                        if (!unsigned) {
+                            return INT64;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            throw new IllegalArgumentException("Unsupported HDF5 data type: " + info.getTypeInformation());
+        }
+
+        /**
+         * @return a new instance of the corresponding imglib2 type
+         */
+        @SuppressWarnings("unchecked")
+        <T extends RealType<T> & NativeType<T>> T createType() {
+            switch (this) {
+                case UINT8:
+                    return (T)new UnsignedByteType();
+                case INT8:
+                    return (T)new ByteType();
+                case UINT16:
+                    return (T)new UnsignedShortType();
+                case INT16:
+                    return (T)new ShortType();
+                case UINT32:
+                    return (T)new UnsignedIntType();
+                case INT32:
+                    return (T)new IntType();
+                case INT64:
+                    return (T)new LongType();
+                case FLOAT32:
+                    return (T)new FloatType();
+                default:
+                    return (T)new DoubleType();
+            }
+        }
+    }
+
+    /**
+     * @param dataset path of an integer dataset
+     * @return whether the integer dataset is unsigned
+     */
+    static boolean isUnsigned(final String file, final String dataset) {
+        final int fileId = H5F.H5Fopen(file, HDF5Constants.H5F_ACC_RDONLY, HDF5Constants.H5P_DEFAULT);
+        try {
+            final int dataSetId = H5D.H5Dopen(fileId, dataset, HDF5Constants.H5P_DEFAULT);
+            try {
+                final int typeId = H5D.H5Dget_type(dataSetId);
+                try {
+                    return H5T.H5Tget_sign(typeId) == HDF5Constants.H5T_SGN_NONE;
+                } finally {
+                    H5T.H5Tclose(typeId);
+                }
+            } finally {
+                H5D.H5Dclose(dataSetId);
+            }
+        } finally {
+            H5F.H5Fclose(fileId);
+        }
+    }
+
+    /**
+     * @param type an axis type
+     * @return the ilastik key of the axis, e.g. 'x'
+     */
+    static char toAxisKey(final AxisType type) {
+        if (type == Axes.X) {
+            return 'x';
+        } else if (type == Axes.Y) {
+            return 'y';
+        } else if (type == Axes.Z) {
+            return 'z';
+        } else if (type == Axes.TIME) {
+            return 't';
+        } else if (type == Axes.CHANNEL) {
+            return 'c';
+        }
+        throw new IllegalArgumentException("Ilastik does not support the axis " + type.getLabel() + ".");
+    }
+
+    /**
+     * @param key an ilastik axis key
+     * @return the axis type
+     */
+    static AxisType toAxisType(final char key) {
+        switch (key) {
+            case 'x':
+                return Axes.X;
+            case 'y':
+                return Axes.Y;
+            case 'z':
+                return Axes.Z;
+            case 't':
+                return Axes.TIME;
+            case 'c':
+                return Axes.CHANNEL;
+            default:
+                return Axes.unknown();
+        }
+    }
+
+    /**
+     * @param axes ilastik axis keys in imglib2 order
+     * @return the axistags attribute of a dataset with these axes
+     */
+    static String toAxistags(final String axes) {
+        final JsonArrayBuilder tags = Json.createArrayBuilder();
+        for (int d = axes.length() - 1; d >= 0; d--) {
+            final char key = axes.charAt(d);
+            // vigra AxisType flags
+            final int typeFlags = key == 'c' ? 1 : key == 't' ? 8 : 2;
+            tags.add(Json.createObjectBuilder().add("key", String.valueOf(key)).add("typeFlags", typeFlags)
+                    .add("resolution", 0).add("description", ""));
+        }
+        return Json.createObjectBuilder().add("axes", tags).build().toString();
+    }
+
+    /**
+     * @param axistags the axistags attribute of a dataset
+     * @return ilastik axis keys in imglib2 order
+     */
+    static String fromAxistags(final String axistags) {
+        try (JsonReader reader = Json.createReader(new StringReader(axistags))) {
+            final JsonObject tags = reader.readObject();
+            final JsonArray axes = tags.getJsonArray("axes");
+            final StringBuilder keys = new StringBuilder();
+            for (int d = axes.size() - 1; d >= 0; d--) {
+                keys.append(axes.getJsonObject(d).getString("key"));
+            }
+            return keys.toString();
+        }
+    }
+
+    /**
+     * @param dims dimensions in one order
+     * @return dimensions in the other order
+     */
+    static long[] reverse(final long[] dims) {
+        final long[] reversed = new long[dims.length];
+        for (int d = 0; d < dims.length; d++) {
+            reversed[d] = dims[dims.length - 1 - d];
+        }
+        return reversed;
+    }
+
+    /**
+     * @param dims image dimensions in imglib2 order
+     * @return number of XY planes of the image
+     */
+    static long numPlanes(final long[] dims) {
+        long planes = 1;
+        for (int d = 2; d < dims.length; d++) {
+            planes *= dims[d];
+        }
+        return planes;
+    }
+
+    /**
+     * @param dims image dimensions in imglib2 order
+     * @param plane index of a XY plane
+     * @return position of the plane in the image
+     */
+    static long[] planePosition(final long[] dims, final long plane) {
+        final long[] pos = new long[dims.length];
+        long remainder = plane;
+        for (int d = 2; d < dims.length; d++) {
+            pos[d] = remainder % dims[d];
+            remainder /= dims[d];
+        }
+        return pos;
+    }
+
+    /**
+     * @param dims image dimensions in imglib2 order
+     * @return block dimensions of a single XY plane in HDF5 order
+     */
+    static int[] planeBlockDimensions(final long[] dims) {
+        final int[] block = new int[dims.length];
+        for (int d = 0; d < dims.length; d++) {
+            block[dims.length - 1 - d] = d < 2 ? (int)dims[d] : 1;
+        }
+        return block;
+    }
+}
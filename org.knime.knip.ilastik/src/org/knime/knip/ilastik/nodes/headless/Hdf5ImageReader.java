@@ -0,0 +1,228 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2015
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ *
+ */
+package org.knime.knip.ilastik.nodes.headless;
+
+import org.knime.knip.ilastik.nodes.headless.Hdf5Format.ElementType;
+
+import ch.systemsx.cisd.hdf5.HDF5DataClass;
+import ch.systemsx.cisd.hdf5.HDF5DataSetInformation;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import net.imagej.ImgPlus;
+import net.imagej.axis.DefaultLinearAxis;
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Reads ilastik results from HDF5 directly into an imglib2 {@code ArrayImg}, or into a {@code CellImg} plane by plane
+ * if the result is too large for a single array.
+ *
+ * @author Andreas Graumann, University of Konstanz
+ */
+final class Hdf5ImageReader implements IlastikImageReader {
+
+    /**
+     * maximum number of elements of a java array
+     */
+    private static final long MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    @Override
+    public <T extends RealType<T> & NativeType<T>> ImgPlus<T> read(final String path) throws Exception {
+        return read(path, Hdf5Format.RESULT_DATASET);
+    }
+
+    /**
+     * @param path the HDF5 file
+     * @param dataset the dataset to read
+     * @return the dataset as image with the axes given by its axistags
+     */
+    static <T extends RealType<T> & NativeType<T>> ImgPlus<T> read(final String path, final String dataset) {
+        try (IHDF5Reader reader = HDF5Factory.openForReading(path)) {
+            final HDF5DataSetInformation info = reader.object().getDataSetInformation(dataset);
+            final long[] dims = Hdf5Format.reverse(info.getDimensions());
+            final int n = dims.length;
+
+            final boolean isInteger = info.getTypeInformation().getDataClass() == HDF5DataClass.INTEGER;
+            final ElementType type = ElementType.of(info, isInteger && Hdf5Format.isUnsigned(path, dataset));
+
+            final Img<T> img;
+            if (info.getNumberOfElements() <= MAX_ARRAY_SIZE) {
+                img = readBlock(reader, dataset, type, toInt(info.getDimensions()), new long[n], dims);
+            } else {
+                // read plane by plane into a cell image, one cell per plane
+                final int[] cellDims = planeCellDimensions(dims);
+                final T t = type.createType();
+                img = new CellImgFactory<T>(cellDims).create(dims, t);
+
+                final int[] blockDims = Hdf5Format.planeBlockDimensions(dims);
+                final long[] planeDims = new long[n];
+                for (int d = 0; d < n; d++) {
+                    planeDims[d] = d < 2 ? dims[d] : 1;
+                }
+                final long[] min = new long[n];
+                final long[] max = new long[n];
+                for (long plane = 0; plane < Hdf5Format.numPlanes(dims); plane++) {
+                    final long[] pos = Hdf5Format.planePosition(dims, plane);
+                    for (int d = 0; d < n; d++) {
+                        min[d] = d < 2 ? 0 : pos[d];
+                        max[d] = d < 2 ? dims[d] - 1 : pos[d];
+                    }
+                    final Img<T> block =
+                            readBlock(reader, dataset, type, blockDims, Hdf5Format.reverse(pos), planeDims);
+                    final Cursor<T> in = block.cursor();
+                    final Cursor<T> out = Views.flatIterable(Views.interval(img, min, max)).cursor();
+                    while (in.hasNext()) {
+                        out.next().set(in.next());
+                    }
+                }
+            }
+
+            return createImgPlus(reader, dataset, img);
+        }
+    }
+
+    private static <T extends RealType<T> & NativeType<T>> ImgPlus<T> createImgPlus(final IHDF5Reader reader,
+                                                                                       final String dataset,
+                                                                                       final Img<T> img) {
+        final ImgPlus<T> imgPlus = new ImgPlus<>(img);
+        if (reader.object().hasAttribute(dataset, Hdf5Format.AXISTAGS_ATTRIBUTE)) {
+            final String axes =
+                    Hdf5Format.fromAxistags(reader.string().getAttr(dataset, Hdf5Format.AXISTAGS_ATTRIBUTE));
+            for (int d = 0; d < img.numDimensions() && d < axes.length(); d++) {
+                imgPlus.setAxis(new DefaultLinearAxis(Hdf5Format.toAxisType(axes.charAt(d))), d);
+            }
+        }
+        return imgPlus;
+    }
+
+    /**
+     * @param dims dimensions of an image in imglib2 order
+     * @return dimensions of a cell containing a single plane of the image
+     */
+    private static int[] planeCellDimensions(final long[] dims) {
+        final int[] cellDims = new int[dims.length];
+        for (int d = 0; d < dims.length; d++) {
+            cellDims[d] = d < 2 ? (int)dims[d] : 1;
+        }
+        return cellDims;
+    }
+
+    /**
+     * Read a block of the dataset into an array image.
+     *
+     * @param blockDims dimensions of the block in HDF5 order
+     * @param offset offset of the block in HDF5 order
+     * @param imgDims dimensions of the resulting image in imglib2 order
+     */
+    @SuppressWarnings("unchecked")
+    private static <T extends RealType<T> & NativeType<T>> Img<T> readBlock(final IHDF5Reader reader,
+                                                                              final String dataset,
+                                                                              final ElementType type,
+                                                                              final int[] blockDims,
+                                                                              final long[] offset,
+                                                                              final long[] imgDims) {
+        // NB: the unsigned readers return the bit pattern in the signed java type, as stored by the unsigned types
+        switch (type) {
+            case UINT8:
+                return (Img<T>)ArrayImgs.unsignedBytes(
+                        reader.uint8().readMDArrayBlockWithOffset(dataset, blockDims, offset).getAsFlatArray(),
+                        imgDims);
+            case INT8:
+                return (Img<T>)ArrayImgs
+                        .bytes(reader.int8().readMDArrayBlockWithOffset(dataset, blockDims, offset).getAsFlatArray(),
+                               imgDims);
+            case UINT16:
+                return (Img<T>)ArrayImgs.unsignedShorts(
+                        reader.uint16().readMDArrayBlockWithOffset(dataset, blockDims, offset).getAsFlatArray(),
+                        imgDims);
+            case INT16:
+                return (Img<T>)ArrayImgs
+                        .shorts(reader.int16().readMDArrayBlockWithOffset(dataset, blockDims, offset).getAsFlatArray(),
+                                imgDims);
+            case UINT32:
+                return (Img<T>)ArrayImgs.unsignedInts(
+                        reader.uint32().readMDArrayBlockWithOffset(dataset, blockDims, offset).getAsFlatArray(),
+                        imgDims);
+            case INT32:
+                return (Img<T>)ArrayImgs
+                        .ints(reader.int32().readMDArrayBlockWithOffset(dataset, blockDims, offset).getAsFlatArray(),
+                              imgDims);
+            case INT64:
+                return (Img<T>)ArrayImgs
+                        .longs(reader.int64().readMDArrayBlockWithOffset(dataset, blockDims, offset).getAsFlatArray(),
+                               imgDims);
+            case FLOAT32:
+                return (Img<T>)ArrayImgs.floats(
+                        reader.float32().readMDArrayBlockWithOffset(dataset, blockDims, offset).getAsFlatArray(),
+                        imgDims);
+            default:
+                return (Img<T>)ArrayImgs.doubles(
+                        reader.float64().readMDArrayBlockWithOffset(dataset, blockDims, offset).getAsFlatArray(),
+                        imgDims);
+        }
+    }
+
+    private static int[] toInt(final long[] dims) {
+        final int[] intDims = new int[dims.length];
+        for (int d = 0; d < dims.length; d++) {
+            intDims[d] = (int)dims[d];
+        }
+        return intDims;
+    }
+
+    @Override
+    public void close() {
+        // nothing to do here
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2015
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ *
+ */
+package org.knime.knip.ilastik.nodes.headless;
+
+import org.knime.knip.ilastik.nodes.headless.Hdf5Format.ElementType;
+
+import ch.systemsx.cisd.base.mdarray.MDByteArray;
+import ch.systemsx.cisd.base.mdarray.MDDoubleArray;
+import ch.systemsx.cisd.base.mdarray.MDFloatArray;
+import ch.systemsx.cisd.base.mdarray.MDIntArray;
+import ch.systemsx.cisd.base.mdarray.MDLongArray;
+import ch.systemsx.cisd.base.mdarray.MDShortArray;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.HDF5FloatStorageFeatures;
+import ch.systemsx.cisd.hdf5.HDF5IntStorageFeatures;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Writes images as chunked HDF5 datasets with explicit axistags. Images are written plane by plane, so that only a
+ * single plane has to be held in memory in addition to the image. Compressed datasets are shuffled and deflated.
+ *
+ * @author Andreas Graumann, University of Konstanz
+ */
+final class Hdf5ImageWriter implements IlastikImageWriter {
+
+    @Override
+    public void write(final ImgPlus<?> img, final String path, final boolean compressed) throws Exception {
+        write(img, path, Hdf5Format.INPUT_DATASET, compressed);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static void write(final ImgPlus img, final String path, final String dataset, final boolean compressed) {
+        final int n = img.numDimensions();
+        final long[] dims = new long[n];
+        img.dimensions(dims);
+
+        final StringBuilder axes = new StringBuilder();
+        for (int d = 0; d < n; d++) {
+            axes.append(Hdf5Format.toAxisKey(img.axis(d).type()));
+        }
+
+        final ElementType type = ElementType.of((RealType<?>)img.firstElement());
+        final long[] datasetDims = Hdf5Format.reverse(dims);
+        final int[] blockDims = Hdf5Format.planeBlockDimensions(dims);
+        final int planeSize = (int)(dims[0] * (n > 1 ? dims[1] : 1));
+
+        try (IHDF5Writer writer = HDF5Factory.open(path)) {
+            createDataset(writer, dataset, type, datasetDims, blockDims, compressed);
+
+            final long[] min = new long[n];
+            final long[] max = new long[n];
+            for (long plane = 0; plane < Hdf5Format.numPlanes(dims); plane++) {
+                final long[] pos = Hdf5Format.planePosition(dims, plane);
+                for (int d = 0; d < n; d++) {
+                    min[d] = d < 2 ? 0 : pos[d];
+                    max[d] = d < 2 ? dims[d] - 1 : pos[d];
+                }
+                final Cursor<RealType<?>> cursor = Views.flatIterable(Views.interval(img, min, max)).cursor();
+                writePlane(writer, dataset, type, cursor, planeSize, blockDims, Hdf5Format.reverse(pos));
+            }
+
+            writer.string().setAttr(dataset, Hdf5Format.AXISTAGS_ATTRIBUTE, Hdf5Format.toAxistags(axes.toString()));
+        }
+    }
+
+    private static void createDataset(final IHDF5Writer writer, final String dataset, final ElementType type,
+                                      final long[] dims, final int[] blockDims, final boolean compressed) {
+        final HDF5IntStorageFeatures intFeatures =
+                compressed ? HDF5IntStorageFeatures.INT_SHUFFLE_DEFLATE : HDF5IntStorageFeatures.INT_NO_COMPRESSION;
+        final HDF5FloatStorageFeatures floatFeatures = compressed ? HDF5FloatStorageFeatures.FLOAT_SHUFFLE_DEFLATE
+                : HDF5FloatStorageFeatures.FLOAT_NO_COMPRESSION;
+        switch (type) {
+            case UINT8:
+                writer.uint8().createMDArray(dataset, dims, blockDims, intFeatures);
+                break;
+            case INT8:
+                writer.int8().createMDArray(dataset, dims, blockDims, intFeatures);
+                break;
+            case UINT16:
+                writer.uint16().createMDArray(dataset, dims, blockDims, intFeatures);
+                break;
+            case INT16:
+                writer.int16().createMDArray(dataset, dims, blockDims, intFeatures);
+                break;
+            case UINT32:
+                writer.uint32().createMDArray(dataset, dims, blockDims, intFeatures);
+                break;
+            case INT32:
+                writer.int32().createMDArray(dataset, dims, blockDims, intFeatures);
+                break;
+            case INT64:
+                writer.int64().createMDArray(dataset, dims, blockDims, intFeatures);
+                break;
+            case FLOAT32:
+                writer.float32().createMDArray(dataset, dims, blockDims, floatFeatures);
+                break;
+            default:
+                writer.float64().createMDArray(dataset, dims, blockDims, floatFeatures);
+                break;
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static void writePlane(final IHDF5Writer writer, final String dataset, final ElementType type,
+                                   final Cursor<RealType<?>> cursor, final int planeSize, final int[] blockDims,
+                                   final long[] offset) {
+        int i = 0;
+        switch (type) {
+            case UINT8:
+            case INT8: {
+                final byte[] data = new byte[planeSize];
+                while (cursor.hasNext()) {
+                    data[i++] = (byte)((IntegerType)cursor.next()).getIntegerLong();
+                }
+                if (type == ElementType.UINT8) {
+                    writer.uint8().writeMDArrayBlockWithOffset(dataset, new MDByteArray(data, blockDims), offset);
+                } else {
+                    writer.int8().writeMDArrayBlockWithOffset(dataset, new MDByteArray(data, blockDims), offset);
+                }
+                break;
+            }
+            case UINT16:
+            case INT16: {
+                final short[] data = new short[planeSize];
+                while (cursor.hasNext()) {
+                    data[i++] = (short)((IntegerType)cursor.next()).getIntegerLong();
+                }
+                if (type == ElementType.UINT16) {
+                    writer.uint16().writeMDArrayBlockWithOffset(dataset, new MDShortArray(data, blockDims), offset);
+                } else {
+                    writer.int16().writeMDArrayBlockWithOffset(dataset, new MDShortArray(data, blockDims), offset);
+                }
+                break;
+            }
+            case UINT32:
+            case INT32: {
+                final int[] data = new int[planeSize];
+                while (cursor.hasNext()) {
+                    data[i++] = (int)((IntegerType)cursor.next()).getIntegerLong();
+                }
+                if (type == ElementType.UINT32) {
+                    writer.uint32().writeMDArrayBlockWithOffset(dataset, new MDIntArray(data, blockDims), offset);
+                } else {
+                    writer.int32().writeMDArrayBlockWithOffset(dataset, new MDIntArray(data, blockDims), offset);
+                }
+                break;
+            }
+            case INT64: {
+                final long[] data = new long[planeSize];
+                while (cursor.hasNext()) {
+                    data[i++] = ((IntegerType)cursor.next()).getIntegerLong();
+                }
+                writer.int64().writeMDArrayBlockWithOffset(dataset, new MDLongArray(data, blockDims), offset);
+                break;
+            }
+            case FLOAT32: {
+                final float[] data = new float[planeSize];
+                while (cursor.hasNext()) {
+                    data[i++] = cursor.next().getRealFloat();
+                }
+                writer.float32().writeMDArrayBlockWithOffset(dataset, new MDFloatArray(data, blockDims), offset);
+                break;
+            }
+            default: {
+                final double[] data = new double[planeSize];
+                while (cursor.hasNext()) {
+                    data[i++] = cursor.next().getRealDouble();
+                }
+                writer.float64().writeMDArrayBlockWithOffset(dataset, new MDDoubleArray(data, blockDims), offset);
+                break;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        // nothing to do here
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2015
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ *
+ */
+package org.knime.knip.ilastik.nodes.headless;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.knime.core.data.DataRow;
+import org.knime.knip.ilastik.nodes.headless.IlastikTiling.Tile;
+
+/**
+ * A batch of input rows which is staged, processed by a single ilastik process and read back as a whole.
+ *
+ * @author Andreas Graumann, University of Konstanz
+ */
+final class IlastikBatch {
+
+    /**
+     * A row of the batch together with the location of its input and result image. Rows without an image (missing
+     * cells) have no files. If the images are tiled, there is one entry per tile and the tiles of a row may be spread
+     * over several batches.
+     */
+    static final class Entry {
+
+        private final DataRow m_row;
+
+        private final String m_inputFile;
+
+        private final String m_resultFile;
+
+        private final Tile m_tile;
+
+        private String m_cacheKey;
+
+        private boolean m_cached;
+
+        private final IlastikMetrics.Record m_metrics = new IlastikMetrics.Record();
+
+        private final CompletableFuture<Void> m_result = new CompletableFuture<>();
+
+        Entry(final DataRow row, final String inputFile, final String resultFile) {
+            this(row, inputFile, resultFile, null);
+        }
+
+        Entry(final DataRow row, final String inputFile, final String resultFile, final Tile tile) {
+            m_row = row;
+            m_inputFile = inputFile;
+            m_resultFile = resultFile;
+            m_tile = tile;
+            if (inputFile == null) {
+                // nothing to wait for
+                m_result.complete(null);
+            }
+        }
+
+        DataRow getRow() {
+            return m_row;
+        }
+
+        String getInputFile() {
+            return m_inputFile;
+        }
+
+        String getResultFile() {
+            return m_resultFile;
+        }
+
+        boolean hasImage() {
+            return m_inputFile != null;
+        }
+
+        /**
+         * @return the tile of the image processed for this entry, null if the image is not tiled
+         */
+        Tile getTile() {
+            return m_tile;
+        }
+
+        /**
+         * @return whether the output row is complete once this entry is processed
+         */
+        boolean completesRow() {
+            return m_tile == null || m_tile.isLast();
+        }
+
+        /**
+         * @return the key of the result in the result cache, null if the cache is not used
+         */
+        String getCacheKey() {
+            return m_cacheKey;
+        }
+
+        void setCacheKey(final String cacheKey) {
+            m_cacheKey = cacheKey;
+        }
+
+        /**
+         * @return whether the result was taken from the result cache and the image does not have to be processed
+         */
+        boolean isCached() {
+            return m_cached;
+        }
+
+        void setCached(final boolean cached) {
+            m_cached = cached;
+        }
+
+        /**
+         * @return completes as soon as the result file is written and can be read, or fails if it can't be computed
+         */
+        CompletableFuture<Void> getResult() {
+            return m_result;
+        }
+
+        /**
+         * Mark the result file as complete.
+         */
+        void completeResult() {
+            m_result.complete(null);
+        }
+
+        /**
+         * @return the time spent on staging and reading back this entry
+         */
+        IlastikMetrics.Record getMetrics() {
+            return m_metrics;
+        }
+    }
+
+    private final int m_index;
+
+    private final String m_directory;
+
+    private final String m_axes;
+
+    private final List<Entry> m_entries;
+
+    private final IlastikMetrics.Record m_metrics = new IlastikMetrics.Record();
+
+    /**
+     * @param index position of this batch in the input table
+     * @param directory directory the input and result images of this batch are written to
+     * @param axes ilastik axis keys shared by all images of this batch, null if the axes may differ
+     * @param entries the rows of this batch in input order
+     */
+    IlastikBatch(final int index, final String directory, final String axes, final List<Entry> entries) {
+        m_index = index;
+        m_directory = directory;
+        m_axes = axes;
+        m_entries = entries;
+    }
+
+    int getIndex() {
+        return m_index;
+    }
+
+    String getDirectory() {
+        return m_directory;
+    }
+
+    /**
+     * @return the ilastik axis keys of the images, null if the axes may differ or the batch has no images
+     */
+    String getAxes() {
+        return m_axes;
+    }
+
+    /**
+     * @return whether the batch contains at least one image, i.e. not only missing cells
+     */
+    boolean hasImages() {
+        for (final Entry entry : m_entries) {
+            if (entry.hasImage()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return all rows of this batch in input order
+     */
+    List<Entry> getEntries() {
+        return Collections.unmodifiableList(m_entries);
+    }
+
+    /**
+     * @return the input files which have to be processed by ilastik
+     */
+    List<String> getInputFiles() {
+        final List<String> files = new ArrayList<>();
+        for (final Entry entry : m_entries) {
+            if (entry.hasImage() && !entry.isCached()) {
+                files.add(entry.getInputFile());
+            }
+        }
+        return files;
+    }
+
+    /**
+     * @return the result files ilastik writes for this batch
+     */
+    List<String> getResultFiles() {
+        final List<String> files = new ArrayList<>();
+        for (final Entry entry : m_entries) {
+            if (entry.hasImage() && !entry.isCached()) {
+                files.add(entry.getResultFile());
+            }
+        }
+        return files;
+    }
+
+    /**
+     * @return the time spent in ilastik for this batch, the numbers of the entries are recorded separately
+     */
+    IlastikMetrics.Record getMetrics() {
+        return m_metrics;
+    }
+
+    /**
+     * Fail the results of all entries which are not complete yet, e.g. if ilastik failed.
+     *
+     * @param cause the reason
+     */
+    void fail(final Throwable cause) {
+        for (final Entry entry : m_entries) {
+            entry.getResult().completeExceptionally(cause);
+        }
+    }
+
+    int size() {
+        return m_entries.size();
+    }
+
+    /**
+     * @return the number of output rows completed by this batch
+     */
+    int getNrCompletedRows() {
+        int rows = 0;
+        for (final Entry entry : m_entries) {
+            if (entry.completesRow()) {
+                rows++;
+            }
+        }
+        return rows;
+    }
+}
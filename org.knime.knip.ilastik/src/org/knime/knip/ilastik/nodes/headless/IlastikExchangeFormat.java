@@ -0,0 +1,203 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2015
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ *
+ */
+package org.knime.knip.ilastik.nodes.headless;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * File formats used to exchange images with ilastik.
+ *
+ * @author Andreas Graumann, University of Konstanz
+ */
+enum IlastikExchangeFormat {
+
+        /**
+         * Uncompressed TIFFs written and read with SCIFIO. Ilastik writes the channels of 3D results along the time
+         * axis.
+         */
+        TIFF("TIFF", ".tif", ".tiff", "multipage tiff"),
+
+        /**
+         * Chunked HDF5 datasets with explicit axes.
+         */
+        HDF5("HDF5", ".h5", ".h5", "hdf5"),
+
+        /**
+         * Uncompressed NumPy arrays, copied in bulk from and to the image arrays. The axes are passed to ilastik on
+         * the command line.
+         */
+        NPY("NPY", ".npy", ".npy", "numpy");
+
+    private final String m_name;
+
+    private final String m_inputExtension;
+
+    private final String m_resultExtension;
+
+    private final String m_outputFormat;
+
+    private IlastikExchangeFormat(final String name, final String inputExtension, final String resultExtension,
+                                  final String outputFormat) {
+        m_name = name;
+        m_inputExtension = inputExtension;
+        m_resultExtension = resultExtension;
+        m_outputFormat = outputFormat;
+    }
+
+    /**
+     * @param name the name of a format
+     * @return the format with the given name
+     */
+    static IlastikExchangeFormat fromName(final String name) {
+        for (final IlastikExchangeFormat format : values()) {
+            if (format.m_name.equals(name)) {
+                return format;
+            }
+        }
+        throw new IllegalArgumentException("Unknown exchange format: " + name);
+    }
+
+    /**
+     * @return the names of all formats
+     */
+    static String[] names() {
+        final IlastikExchangeFormat[] formats = values();
+        final String[] names = new String[formats.length];
+        for (int i = 0; i < formats.length; i++) {
+            names[i] = formats[i].m_name;
+        }
+        return names;
+    }
+
+    String getInputExtension() {
+        return m_inputExtension;
+    }
+
+    String getResultExtension() {
+        return m_resultExtension;
+    }
+
+    /**
+     * @return whether all images processed by a single ilastik process need to have the same axes
+     */
+    boolean hasExplicitAxes() {
+        return this == HDF5 || this == NPY;
+    }
+
+    /**
+     * @return a new writer for the input images
+     */
+    IlastikImageWriter createWriter() {
+        switch (this) {
+            case HDF5:
+                return new Hdf5ImageWriter();
+            case NPY:
+                return new NpyImageWriter();
+            default:
+                return new TiffImageWriter();
+        }
+    }
+
+    /**
+     * @return a new reader for the result images
+     */
+    IlastikImageReader createReader() {
+        switch (this) {
+            case HDF5:
+                return new Hdf5ImageReader();
+            case NPY:
+                return new NpyImageReader();
+            default:
+                return new TiffImageReader();
+        }
+    }
+
+    /**
+     * @param file a staged input file
+     * @return the ilastik command line argument for this input
+     */
+    String getInputArgument(final String file) {
+        return this == HDF5 ? file + "/" + Hdf5Format.INPUT_DATASET : file;
+    }
+
+    /**
+     * @param axes ilastik axis keys of the input images in imglib2 order, may be null if the format has no explicit
+     *            axes
+     * @return the axes ilastik has to be told for the input files (--input_axes), null if the files carry them
+     */
+    String getInputAxes(final String axes) {
+        // the files are in C order, the slowest axis first
+        return this == NPY ? new StringBuilder(axes).reverse().toString() : null;
+    }
+
+    /**
+     * @param axes ilastik axis keys of the input images in imglib2 order, may be null if the format has no explicit
+     *            axes
+     * @return the ilastik command line arguments for the result images
+     */
+    List<String> getOutputArguments(final String axes) {
+        final List<String> args = new ArrayList<>();
+        args.add("--output_format=" + m_outputFormat);
+        if (this == HDF5) {
+            args.add("--output_internal_path=" + Hdf5Format.RESULT_DATASET);
+        }
+        if (hasExplicitAxes()) {
+            // the results have the axes of the input plus channels, ilastik expects them in HDF5 (reversed) order
+            final String resultAxes = axes.indexOf('c') < 0 ? axes + "c" : axes;
+            args.add("--output_axis_order=" + new StringBuilder(resultAxes).reverse());
+        }
+        return args;
+    }
+
+    @Override
+    public String toString() {
+        return m_name;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2015
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ *
+ */
+package org.knime.knip.ilastik.nodes.headless;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.ExecutionMonitor;
+
+/**
+ * Runs ilastik on the staged images of a batch. The results have to end up in the directory of the batch, where they
+ * are picked up by the {@link IlastikResultWatcher}. Implementations are thread-safe, one instance is used by all
+ * parallel batches of an execution.
+ *
+ * @author Andreas Graumann, University of Konstanz
+ */
+interface IlastikExecutor extends AutoCloseable {
+
+    /**
+     * The ilastik invocation for a single batch.
+     */
+    final class Job {
+
+        private final String m_project;
+
+        private final String m_directory;
+
+        private final List<String> m_inputFiles;
+
+        private final List<String> m_inputs;
+
+        private final List<String> m_exportArgs;
+
+        private final String m_inputAxes;
+
+        private final int m_threadCount;
+
+        private final int m_maxMemory;
+
+        private final IlastikMetrics.Record m_metrics;
+
+        /**
+         * @param project path of the project file
+         * @param directory directory of the batch, the input files are in it and the results are written to it
+         * @param inputFiles the staged input files
+         * @param inputs input arguments of ilastik
+         * @param exportArgs export arguments of ilastik
+         * @param inputAxes axes of the input files, null if the files carry them
+         * @param threadCount value of LAZYFLOW_THREADS
+         * @param maxMemory value of LAZYFLOW_TOTAL_RAM_MB
+         * @param metrics records the time of the startup and the inference
+         */
+        Job(final String project, final String directory, final List<String> inputFiles, final List<String> inputs,
+            final List<String> exportArgs, final String inputAxes, final int threadCount, final int maxMemory,
+            final IlastikMetrics.Record metrics) {
+            m_project = project;
+            m_directory = directory;
+            m_inputFiles = Collections.unmodifiableList(inputFiles);
+            m_inputs = Collections.unmodifiableList(inputs);
+            m_exportArgs = Collections.unmodifiableList(exportArgs);
+            m_inputAxes = inputAxes;
+            m_threadCount = threadCount;
+            m_maxMemory = maxMemory;
+            m_metrics = metrics;
+        }
+
+        String getProject() {
+            return m_project;
+        }
+
+        String getDirectory() {
+            return m_directory;
+        }
+
+        List<String> getInputFiles() {
+            return m_inputFiles;
+        }
+
+        List<String> getInputs() {
+            return m_inputs;
+        }
+
+        List<String> getExportArgs() {
+            return m_exportArgs;
+        }
+
+        String getInputAxes() {
+            return m_inputAxes;
+        }
+
+        int getThreadCount() {
+            return m_threadCount;
+        }
+
+        int getMaxMemory() {
+            return m_maxMemory;
+        }
+
+        IlastikMetrics.Record getMetrics() {
+            return m_metrics;
+        }
+    }
+
+    /**
+     * Run ilastik and return once all results are written.
+     *
+     * @param job the batch
+     * @param watcher is polled while ilastik is running
+     * @param exec
+     * @throws IOException
+     * @throws InterruptedException
+     * @throws CanceledExecutionException
+     */
+    void execute(Job job, IlastikResultWatcher watcher, ExecutionMonitor exec)
+            throws IOException, InterruptedException, CanceledExecutionException;
+
+    /**
+     * Release all resources held for the execution.
+     */
+    @Override
+    void close();
+}
@@ -49,14 +49,20 @@
  */
 package org.knime.knip.ilastik.nodes.headless;
 
+import java.io.File;
+
 import org.knime.core.node.defaultnodesettings.DefaultNodeSettingsPane;
 import org.knime.core.node.defaultnodesettings.DialogComponentBoolean;
 import org.knime.core.node.defaultnodesettings.DialogComponentColumnNameSelection;
 import org.knime.core.node.defaultnodesettings.DialogComponentFileChooser;
 import org.knime.core.node.defaultnodesettings.DialogComponentNumber;
+import org.knime.core.node.defaultnodesettings.DialogComponentPasswordField;
+import org.knime.core.node.defaultnodesettings.DialogComponentString;
 import org.knime.core.node.defaultnodesettings.DialogComponentStringSelection;
 import org.knime.knip.base.data.img.ImgPlusValue;
 import org.knime.knip.ilastik.nodes.headless.IlastikHeadlessNodeModel.ColCreationModes;
+import org.knime.knip.ilastik.nodes.headless.IlastikHeadlessNodeModel.ExecutorModes;
+import org.knime.knip.ilastik.nodes.headless.IlastikHeadlessNodeModel.OutputModes;
 
 /**
  *
@@ -89,6 +95,68 @@ public class IlastikHeadlessNodeDialog extends DefaultNodeSettingsPane {
                 "Ilastik thread count", 1));
         addDialogComponent(new DialogComponentNumber(IlastikHeadlessNodeModel.createIlastikMaxMemoryModel(),
                 "Ilastik max memory (MB)", 1));
+        addDialogComponent(new DialogComponentBoolean(IlastikHeadlessNodeModel.createAutomaticResourcesModel(),
+                "Plan threads, memory and batch size automatically"));
+        closeCurrentGroup();
+
+        createNewGroup("Batch Processing");
+        addDialogComponent(new DialogComponentNumber(IlastikHeadlessNodeModel.createBatchSizeModel(),
+                "Images per ilastik process (0 = all)", 1));
+        addDialogComponent(new DialogComponentNumber(IlastikHeadlessNodeModel.createParallelProcessesModel(),
+                "Parallel ilastik processes", 1));
+        addDialogComponent(new DialogComponentBoolean(IlastikHeadlessNodeModel.createKeepIlastikRunningModel(),
+                "Keep ilastik running between executions"));
+        closeCurrentGroup();
+
+        createNewGroup("Executor");
+        addDialogComponent(new DialogComponentStringSelection(IlastikHeadlessNodeModel.createExecutorModel(),
+                "Run ilastik", ExecutorModes.LOCAL, ExecutorModes.REMOTE));
+        addDialogComponent(new DialogComponentString(IlastikHeadlessNodeModel.createRemoteWorkersModel(),
+                "Remote workers (host:port, separated by ',')", false, 40));
+        addDialogComponent(new DialogComponentPasswordField(IlastikHeadlessNodeModel.createRemoteTokenModel(),
+                "Token of the workers"));
+        closeCurrentGroup();
+
+        createNewGroup("Staging Directories");
+        addDialogComponent(new DialogComponentString(IlastikHeadlessNodeModel.createStagingDirectoriesModel(),
+                "Directories in order of preference (separated by '" + File.pathSeparator + "')", false, 40));
+        addDialogComponent(new DialogComponentBoolean(
+                IlastikHeadlessNodeModel.createRecycleStagingDirectoriesModel(), "Recycle directories between runs"));
+        addDialogComponent(new DialogComponentStringSelection(
+                IlastikHeadlessNodeModel.createStagingCompressionModel(), "Compression",
+                IlastikStagingCompression.MODES));
+        closeCurrentGroup();
+
+        createNewGroup("Result Cache");
+        addDialogComponent(new DialogComponentBoolean(IlastikHeadlessNodeModel.createUseResultCacheModel(),
+                "Reuse results of already processed images"));
+        addDialogComponent(new DialogComponentBoolean(IlastikHeadlessNodeModel.createIncrementalModel(),
+                "Only process new and changed rows on re-execution"));
+        closeCurrentGroup();
+
+        createNewGroup("Exchange Format");
+        addDialogComponent(new DialogComponentStringSelection(IlastikHeadlessNodeModel.createExchangeFormatModel(),
+                "File format", IlastikExchangeFormat.names()));
+        closeCurrentGroup();
+
+        createNewGroup("Export");
+        addDialogComponent(new DialogComponentStringSelection(IlastikHeadlessNodeModel.createExportSourceModel(),
+                "Export source", IlastikHeadlessNodeModel.EXPORT_SOURCES));
+        addDialogComponent(new DialogComponentStringSelection(IlastikHeadlessNodeModel.createExportTypeModel(),
+                "Pixel type", IlastikHeadlessNodeModel.EXPORT_TYPES));
+        addDialogComponent(new DialogComponentBoolean(IlastikHeadlessNodeModel.createExportNormalizeModel(),
+                "Scale [0, 1] to the range of the pixel type"));
+        addDialogComponent(new DialogComponentNumber(IlastikHeadlessNodeModel.createExportFirstChannelModel(),
+                "First channel", 1));
+        addDialogComponent(new DialogComponentNumber(IlastikHeadlessNodeModel.createExportChannelCountModel(),
+                "Number of channels (0 = all)", 1));
+        closeCurrentGroup();
+
+        createNewGroup("Tiling");
+        addDialogComponent(new DialogComponentNumber(IlastikHeadlessNodeModel.createTileSizeModel(),
+                "Tile size (0 = no tiling)", 64));
+        addDialogComponent(new DialogComponentNumber(IlastikHeadlessNodeModel.createTileHaloModel(),
+                "Halo (-1 = from project features)", 1));
         closeCurrentGroup();
 
         createNewGroup("TIFF Bugfix");
@@ -96,6 +164,11 @@ public class IlastikHeadlessNodeDialog extends DefaultNodeSettingsPane {
                 "Override result .tiff dimensions from XYT to XYZC?"));
         closeCurrentGroup();
 
+        createNewGroup("Output");
+        addDialogComponent(new DialogComponentStringSelection(IlastikHeadlessNodeModel.createOutputModeModel(),
+                "Output", OutputModes.IMAGES, OutputModes.OBJECT_TABLE));
+        closeCurrentGroup();
+
         createNewGroup("Column Selection");
 
         addDialogComponent(new DialogComponentStringSelection(IlastikHeadlessNodeModel.createColCreationModeModel(),
@@ -49,9 +49,14 @@
  */
 package org.knime.knip.ilastik.nodes.headless;
 
+import java.util.Optional;
+
+import org.knime.core.node.BufferedDataTable;
+import org.knime.core.node.ConfigurableNodeFactory;
 import org.knime.core.node.NodeDialogPane;
-import org.knime.core.node.NodeFactory;
 import org.knime.core.node.NodeView;
+import org.knime.core.node.context.NodeCreationConfiguration;
+import org.knime.core.node.context.ports.PortsConfigurationBuilder;
 import org.knime.knip.base.nodes.view.TableCellViewNodeView;
 
 import net.imglib2.type.NativeType;
@@ -62,14 +67,32 @@ import net.imglib2.type.numeric.RealType;
  * @author Andreas Graumann, University of Konstanz
  * @param <T>
  */
-public class IlastikHeadlessNodeFactory<T extends RealType<T> & NativeType<T>> extends NodeFactory<IlastikHeadlessNodeModel<T>> {
+public class IlastikHeadlessNodeFactory<T extends RealType<T> & NativeType<T>>
+        extends ConfigurableNodeFactory<IlastikHeadlessNodeModel<T>> {
+
+    /**
+     * the optional output with the metrics of each image and batch
+     */
+    private static final String METRICS_PORT_GROUP = "Metrics";
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Optional<PortsConfigurationBuilder> createPortsConfigBuilder() {
+        final PortsConfigurationBuilder builder = new PortsConfigurationBuilder();
+        builder.addFixedInputPortGroup("Images", BufferedDataTable.TYPE);
+        builder.addFixedOutputPortGroup("Results", BufferedDataTable.TYPE);
+        builder.addOptionalOutputPortGroup(METRICS_PORT_GROUP, BufferedDataTable.TYPE);
+        return Optional.of(builder);
+    }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public IlastikHeadlessNodeModel<T> createNodeModel() {
-        return new IlastikHeadlessNodeModel<>(1, 1);
+    protected IlastikHeadlessNodeModel<T> createNodeModel(final NodeCreationConfiguration creationConfig) {
+        return new IlastikHeadlessNodeModel<>(creationConfig.getPortConfig().get());
     }
 
     /**
@@ -101,7 +124,7 @@ public class IlastikHeadlessNodeFactory<T extends RealType<T> & NativeType<T>> e
      * {@inheritDoc}
      */
     @Override
-    protected NodeDialogPane createNodeDialogPane() {
+    protected NodeDialogPane createNodeDialogPane(final NodeCreationConfiguration creationConfig) {
         return new IlastikHeadlessNodeDialog();
     }
 
@@ -48,24 +48,31 @@
  */
 package org.knime.knip.ilastik.nodes.headless;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
 import java.net.URISyntaxException;
-import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.UUID;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
-import org.apache.commons.io.FileUtils;
+import org.knime.base.data.replace.ReplacedColumnsDataRow;
 import org.knime.core.data.DataCell;
 import org.knime.core.data.DataColumnSpec;
 import org.knime.core.data.DataColumnSpecCreator;
@@ -73,9 +80,8 @@ import org.knime.core.data.DataRow;
 import org.knime.core.data.DataTableSpec;
 import org.knime.core.data.MissingCell;
 import org.knime.core.data.RowKey;
-import org.knime.core.data.container.ColumnRearranger;
-import org.knime.core.data.container.DataContainer;
-import org.knime.core.data.container.SingleCellFactory;
+import org.knime.core.data.append.AppendedColumnRow;
+import org.knime.core.data.container.CloseableRowIterator;
 import org.knime.core.data.def.DefaultRow;
 import org.knime.core.node.BufferedDataContainer;
 import org.knime.core.node.BufferedDataTable;
@@ -89,32 +95,50 @@ import org.knime.core.node.NodeLogger;
 import org.knime.core.node.NodeModel;
 import org.knime.core.node.NodeSettingsRO;
 import org.knime.core.node.NodeSettingsWO;
+import org.knime.core.node.defaultnodesettings.SettingsModel;
 import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
 import org.knime.core.node.defaultnodesettings.SettingsModelInteger;
 import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
+import org.knime.core.node.defaultnodesettings.SettingsModelPassword;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
+import org.knime.core.node.context.ports.PortsConfiguration;
+import org.knime.core.node.port.PortObjectSpec;
+import org.knime.core.node.streamable.InputPortRole;
+import org.knime.core.node.streamable.OutputPortRole;
+import org.knime.core.node.streamable.PartitionInfo;
+import org.knime.core.node.streamable.PortInput;
+import org.knime.core.node.streamable.PortOutput;
+import org.knime.core.node.streamable.RowInput;
+import org.knime.core.node.streamable.RowOutput;
+import org.knime.core.node.streamable.StreamableOperator;
 import org.knime.core.util.FileUtil;
+import org.knime.core.util.ThreadUtils;
 import org.knime.knip.base.data.img.ImgPlusCell;
 import org.knime.knip.base.data.img.ImgPlusCellFactory;
 import org.knime.knip.base.data.img.ImgPlusValue;
 import org.knime.knip.base.node.NodeUtils;
 import org.knime.knip.core.KNIPGateway;
 import org.knime.knip.ilastik.nodes.IlastikPreferencePage;
-import org.knime.knip.io.ScifioImgSource;
-import org.knime.knip.io.nodes.imgwriter2.ImgWriter2;
-import org.scijava.log.DefaultUncaughtExceptionHandler;
 
 import net.imagej.ImgPlus;
 import net.imagej.ImgPlusMetadata;
 import net.imagej.axis.Axes;
 import net.imagej.axis.CalibratedAxis;
 import net.imagej.axis.DefaultLinearAxis;
+import net.imglib2.Cursor;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgView;
+import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.img.planar.PlanarImgFactory;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
 import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
 
@@ -129,8 +153,10 @@ public class IlastikHeadlessNodeModel<T extends RealType<T> & NativeType<T>> ext
         implements BufferedDataTableHolder {
 
     /**
-     *
+     * number of images per batch if all images should be processed at once but the rows are streamed
      */
+    private static final int STREAMING_BATCH_SIZE = 16;
+
     private static final String RESULT_IMG_SUFFIX = "_result";
 
     private static final String COL_NAME = "Result";
@@ -147,6 +173,35 @@ public class IlastikHeadlessNodeModel<T extends RealType<T> & NativeType<T>> ext
         public static final String REPLACE = "Replace";
     }
 
+    /**
+     * keeps the export settings of the project
+     */
+    static final String PROJECT_DEFAULT = "Project default";
+
+    static final String[] EXPORT_SOURCES = {PROJECT_DEFAULT, "Probabilities", "Simple Segmentation", "Uncertainty"};
+
+    static final String[] EXPORT_TYPES = {PROJECT_DEFAULT, "uint8", "uint16", "uint32", "float32"};
+
+    static final class OutputModes {
+        private OutputModes() {
+            // NB Util Class
+        }
+
+        public static final String IMAGES = "Images";
+
+        public static final String OBJECT_TABLE = "Object table";
+    }
+
+    static final class ExecutorModes {
+        private ExecutorModes() {
+            // NB Util Class
+        }
+
+        public static final String LOCAL = "Local";
+
+        public static final String REMOTE = "Remote workers";
+    }
+
     /**
      * Path to ilastik project file
      */
@@ -159,6 +214,23 @@ public class IlastikHeadlessNodeModel<T extends RealType<T> & NativeType<T>> ext
 
     private final SettingsModelString m_colCreationModeModel = createColCreationModeModel();
 
+    /**
+     * output the result images or the object tables of object classification projects
+     */
+    private final SettingsModelString m_outputMode = createOutputModeModel();
+
+    /**
+     * run ilastik on the KNIME host or on remote worker daemons, and their host:port addresses
+     */
+    private final SettingsModelString m_executor = createExecutorModel();
+
+    private final SettingsModelString m_remoteWorkers = createRemoteWorkersModel();
+
+    /**
+     * the shared token of the remote worker daemons
+     */
+    private final SettingsModelPassword m_remoteToken = createRemoteTokenModel();
+
     /**
      * ilastik cpu / memory limits
      */
@@ -166,19 +238,89 @@ public class IlastikHeadlessNodeModel<T extends RealType<T> & NativeType<T>> ext
 
     private final SettingsModelIntegerBounded m_ilastikThreadCount = createIlastikThreadCountModel();
 
+    /**
+     * batching of the input images and number of concurrently running ilastik processes
+     */
+    private final SettingsModelIntegerBounded m_batchSize = createBatchSizeModel();
+
+    private final SettingsModelIntegerBounded m_parallelProcesses = createParallelProcessesModel();
+
+    /**
+     * plan threads, memory and batch size from the machine and the input instead of the settings
+     */
+    private final SettingsModelBoolean m_automaticResources = createAutomaticResourcesModel();
+
     /**
      * tiff output dimensions override (bugfix for ilastik)
      */
     private final SettingsModelBoolean m_outputDimensionsOverride = createOutputDimensionsOverrideModel();
 
     /**
-     * data table for table cell view
+     * file format used to exchange images with ilastik
      */
-    private BufferedDataTable m_data;
+    private final SettingsModelString m_exchangeFormat = createExchangeFormatModel();
+
+    /**
+     * tiling of large images, the halo is derived from the project if negative
+     */
+    private final SettingsModelIntegerBounded m_tileSize = createTileSizeModel();
+
+    private final SettingsModelIntegerBounded m_tileHalo = createTileHaloModel();
+
+    /**
+     * what ilastik exports and as which type, and the range of result channels, all channels if the count is 0
+     */
+    private final SettingsModelString m_exportSource = createExportSourceModel();
+
+    private final SettingsModelString m_exportType = createExportTypeModel();
+
+    private final SettingsModelBoolean m_exportNormalize = createExportNormalizeModel();
+
+    private final SettingsModelIntegerBounded m_exportFirstChannel = createExportFirstChannelModel();
 
-    private Map<RowKey, String> m_outFiles; // rowKey -> out path
+    private final SettingsModelIntegerBounded m_exportChannelCount = createExportChannelCountModel();
 
-    private ImgPlusCellFactory m_imgPlusCellFactory;
+    /**
+     * keep ilastik processes with the loaded project running between executions
+     */
+    private final SettingsModelBoolean m_keepIlastikRunning = createKeepIlastikRunningModel();
+
+    /**
+     * reuse results of images which have already been processed with the same project
+     */
+    private final SettingsModelBoolean m_useResultCache = createUseResultCacheModel();
+
+    /**
+     * only process rows which are new or have changed since the last execution
+     */
+    private final SettingsModelBoolean m_incremental = createIncrementalModel();
+
+    /**
+     * candidate directories the images are staged in, in order of preference
+     */
+    private final SettingsModelString m_stagingDirectories = createStagingDirectoriesModel();
+
+    /**
+     * reuse the staging directories of previous executions instead of creating and deleting them
+     */
+    private final SettingsModelBoolean m_recycleStagingDirectories = createRecycleStagingDirectoriesModel();
+
+    /**
+     * whether the staged images are compressed, or if this is decided by writing the first images both ways
+     */
+    private final SettingsModelString m_stagingCompression = createStagingCompressionModel();
+
+    private final IlastikWorkerPool m_workerPool = new IlastikWorkerPool();
+
+    /**
+     * results of the last incremental execution, kept over resets, null if the node is not executed incrementally
+     */
+    private IlastikResultIndex m_resultIndex;
+
+    /**
+     * data table for table cell view
+     */
+    private BufferedDataTable m_data;
 
     private int m_inputImgColIdx;
 
@@ -196,33 +338,99 @@ public class IlastikHeadlessNodeModel<T extends RealType<T> & NativeType<T>> ext
         super(nrInDataPorts, nrOutDataPorts);
     }
 
+    /**
+     * @param portsConfig the ports of the node, with or without the optional metrics port
+     */
+    protected IlastikHeadlessNodeModel(final PortsConfiguration portsConfig) {
+        super(portsConfig.getInputPorts(), portsConfig.getOutputPorts());
+    }
+
+    /**
+     * @return whether the node has the optional second output with the metrics of each image and batch
+     */
+    private boolean hasMetricsPort() {
+        return getNrOutPorts() > 1;
+    }
+
+    /**
+     * @param outSpec the spec of the first output, null if it is not known yet
+     * @return the specs of the output ports
+     */
+    private DataTableSpec[] createOutSpecs(final DataTableSpec outSpec) {
+        return hasMetricsPort() ? new DataTableSpec[]{outSpec, IlastikMetrics.createSpec()}
+                : new DataTableSpec[]{outSpec};
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     protected DataTableSpec[] configure(final DataTableSpec[] inSpecs) throws InvalidSettingsException {
-        DataTableSpec outSpec;
+        m_inputImgColIdx = getImgColIdx(inSpecs[0]);
+        if (m_tileSize.getIntValue() > 0
+                && !IlastikExchangeFormat.fromName(m_exchangeFormat.getStringValue()).hasExplicitAxes()) {
+            throw new InvalidSettingsException("Tiling requires the HDF5 or NPY exchange format.");
+        }
+        if (isRemoteExecution()) {
+            IlastikRemoteExecutor.parseWorkers(m_remoteWorkers.getStringValue());
+            if (m_remoteToken.getStringValue().isEmpty()) {
+                throw new InvalidSettingsException("The token of the remote workers is missing.");
+            }
+        }
+        if (m_exportChannelCount.getIntValue() > 0
+                && !IlastikExchangeFormat.fromName(m_exchangeFormat.getStringValue()).hasExplicitAxes()) {
+            throw new InvalidSettingsException("Selecting channels requires the HDF5 or NPY exchange format.");
+        }
+        if (m_exportNormalize.getBooleanValue() && PROJECT_DEFAULT.equals(m_exportType.getStringValue())) {
+            throw new InvalidSettingsException("Normalizing the results requires an export type.");
+        }
+        if (isObjectTableOutput()) {
+            if (m_tileSize.getIntValue() > 0) {
+                throw new InvalidSettingsException("The object table can't be computed from tiles.");
+            }
+            // the columns are known once ilastik has exported the first table
+            return createOutSpecs(null);
+        }
+        return createOutSpecs(createOutSpec(inSpecs[0]));
+    }
+
+    /**
+     * @param inSpec spec of the input table
+     * @return the spec of the output table according to the column creation mode
+     */
+    private DataTableSpec createOutSpec(final DataTableSpec inSpec) {
         String colCreationMode = m_colCreationModeModel.getStringValue();
 
         if (colCreationMode.equals(ColCreationModes.NEW_TABLE)) { // new table
-            outSpec = createImgSpec();
+            return createImgSpec();
         } else if (colCreationMode.equals(ColCreationModes.APPEND)) { // Append
-            final ColumnRearranger rearranger = new ColumnRearranger(inSpecs[0]);
             final DataColumnSpec newColSpec = new DataColumnSpecCreator(COL_NAME, ImgPlusCell.TYPE).createSpec();
-            final IlastikCellFactory fac = createResultCellFactory(newColSpec);
-            rearranger.append(fac);
-            outSpec = rearranger.createSpec();
+            return new DataTableSpec(inSpec, new DataTableSpec(newColSpec));
         } else if (colCreationMode.equals(ColCreationModes.REPLACE)) { // Replace
-            final ColumnRearranger rearranger = new ColumnRearranger(inSpecs[0]);
-            final DataColumnSpec newColSpec = inSpecs[0].getColumnSpec(m_srcImgCol.getStringValue());
-            final IlastikCellFactory fac = createResultCellFactory(newColSpec);
-            rearranger.replace(fac, m_srcImgCol.getStringValue());
-            outSpec = rearranger.createSpec();
+            // the result column keeps the spec of the source column
+            return inSpec;
         } else {
             throw new IllegalArgumentException("The value of the column creation setting is invalid!");
         }
+    }
+
+    /**
+     * @param row the input row
+     * @param result the ilastik result for this row
+     * @return the output row according to the column creation mode
+     */
+    private DataRow createOutRow(final DataRow row, final DataCell result) {
+        String colCreationMode = m_colCreationModeModel.getStringValue();
 
-        return new DataTableSpec[]{outSpec};
+        if (colCreationMode.equals(ColCreationModes.NEW_TABLE)) { // new table
+            return new DefaultRow(row.getKey(), result);
+        } else if (colCreationMode.equals(ColCreationModes.APPEND)) { // Append
+            return new AppendedColumnRow(row, result);
+        } else if (colCreationMode.equals(ColCreationModes.REPLACE)) { // Replace
+            return new ReplacedColumnsDataRow(row, result, m_inputImgColIdx);
+        } else {
+            throw new IllegalArgumentException("The value of the column creation setting is invalid!");
+        }
     }
 
     /**
@@ -232,6 +440,9 @@ public class IlastikHeadlessNodeModel<T extends RealType<T> & NativeType<T>> ext
         return new DataTableSpec(new DataColumnSpecCreator(COL_NAME, ImgPlusCell.TYPE).createSpec());
     }
 
+    /**
+     * {@inheritDoc}
+     */
     @Override
     protected BufferedDataTable[] execute(final BufferedDataTable[] inData, final ExecutionContext exec)
             throws Exception {
@@ -240,157 +451,816 @@ public class IlastikHeadlessNodeModel<T extends RealType<T> & NativeType<T>> ext
         final BufferedDataTable tableIn = inData[0];
         m_inputImgColIdx = getImgColIdx(tableIn.getSpec());
 
-        // create tmp directory
-        final String tmpDirPath = KNIMEConstants.getKNIMETempDir() + "/ilastik/" + UUID.randomUUID() + "/";
-        final File tmpDir = new File(tmpDirPath);
-        tmpDir.mkdirs();
+        final IlastikResourcePlanner.InputStatistics statistics =
+                m_automaticResources.getBooleanValue() ? collectStatistics(tableIn) : null;
+
+        final IlastikObjectTable objectTable = isObjectTableOutput() ? new IlastikObjectTable() : null;
+        // the columns of the object table are known once the first table has been read
+        final DataTableSpec outSpec = objectTable == null ? createOutSpec(tableIn.getSpec()) : null;
+        final LazyDataContainer container =
+                new LazyDataContainer(objectTable == null ? () -> outSpec : objectTable::getSpec, exec);
+        final BufferedDataContainer metricsContainer =
+                hasMetricsPort() ? exec.createDataContainer(IlastikMetrics.createSpec()) : null;
+        try (CloseableRowIterator rows = tableIn.iterator()) {
+            processRows(new PeekingIterator<>(rows), tableIn.size(), statistics, container,
+                        metricsContainer == null ? null : metricsContainer::addRowToTable, objectTable, exec);
+        }
+        if (m_resultIndex != null) {
+            // the results of rows which have been removed are not needed anymore
+            m_resultIndex.commit();
+        }
 
-        // list to store all input file names
-        final List<String> files = new ArrayList<>();
+        m_data = container.close();
+        if (metricsContainer == null) {
+            return new BufferedDataTable[]{m_data};
+        }
+        metricsContainer.close();
+        return new BufferedDataTable[]{m_data, metricsContainer.getTable()};
+    }
 
-        final ImgWriter2 iW = new ImgWriter2();
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public InputPortRole[] getInputPortRoles() {
+        // NB: not distributed, the worker pool, the result index and the flow variables belong to the node and the
+        // ilastik processes already run in parallel
+        return new InputPortRole[]{InputPortRole.NONDISTRIBUTED_STREAMABLE};
+    }
 
-        m_outFiles = new HashMap<>();
-        m_imgPlusCellFactory = new ImgPlusCellFactory(exec);
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public OutputPortRole[] getOutputPortRoles() {
+        return hasMetricsPort() ? new OutputPortRole[]{OutputPortRole.NONDISTRIBUTED, OutputPortRole.NONDISTRIBUTED}
+                : new OutputPortRole[]{OutputPortRole.NONDISTRIBUTED};
+    }
 
-        int uniqueFileNameCounter = 0;
+    /**
+     * Processes the streamed rows in micro-batches, results are pushed downstream as soon as their batch is read back.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public StreamableOperator createStreamableOperator(final PartitionInfo partitionInfo,
+                                                       final PortObjectSpec[] inSpecs)
+            throws InvalidSettingsException {
+        if (isObjectTableOutput()) {
+            throw new InvalidSettingsException(
+                    "The object table can't be streamed, its columns are only known after the execution.");
+        }
+        return new StreamableOperator() {
 
-        // iterate over all input images and copy them to the tmp directory
-        for (DataRow row : tableIn) {
+            @Override
+            public void runFinal(final PortInput[] inputs, final PortOutput[] outputs, final ExecutionContext exec)
+                    throws Exception {
+                final RowInput in = (RowInput)inputs[0];
+                final RowOutput out = (RowOutput)outputs[0];
+                final RowOutput metricsOut = outputs.length > 1 ? (RowOutput)outputs[1] : null;
+                m_inputImgColIdx = getImgColIdx(in.getDataTableSpec());
+
+                try {
+                    processRows(new PeekingIterator<>(new RowInputIterator(in)), -1, null, out::push,
+                                metricsOut == null ? null : metricsOut::push, null, exec);
+                } finally {
+                    in.close();
+                }
+                if (m_resultIndex != null) {
+                    // the results of rows which have been removed are not needed anymore
+                    m_resultIndex.commit();
+                }
+                out.close();
+                if (metricsOut != null) {
+                    metricsOut.close();
+                }
+            }
+        };
+    }
 
-            final DataCell cell = row.getCell(m_inputImgColIdx);
+    /**
+     * Processes the input rows as a pipeline of batches: while the oldest batch is read back, the following batches
+     * are processed by ilastik and the next one is written to the staging directories. The number of batches in the
+     * pipeline is bounded, hence also the disk space used for the intermediate images.
+     *
+     * @param rowIterator the input rows
+     * @param rowCount number of input rows, -1 if unknown (streaming)
+     * @param statistics size of the input images for the automatic resource planning, null if unknown
+     * @param output receives the output rows in input order
+     * @param metricsOutput receives the metrics of each image and batch, null if not needed
+     * @param objectTable reads the object tables, null if the result images are output
+     * @param exec
+     * @throws Exception
+     */
+    private void processRows(final PeekingIterator<DataRow> rowIterator, final long rowCount,
+                             final IlastikResourcePlanner.InputStatistics statistics, final RowConsumer output,
+                             final RowConsumer metricsOutput, final IlastikObjectTable objectTable,
+                             final ExecutionContext exec) throws Exception {
+        final long startTime = System.nanoTime();
+        final IlastikMetrics.Record total = new IlastikMetrics.Record();
 
-            if (cell.isMissing()) {
-                KNIPGateway.log().warn("Ignoring missing cell in row " + row.getKey() + "!");
-                continue;
-            }
+        // create the tmp directories
+        final IlastikStagingLocations staging = new IlastikStagingLocations(
+                m_stagingDirectories.getStringValue(), m_recycleStagingDirectories.getBooleanValue());
 
-            // get next image
-            final ImgPlusValue<?> imgvalue = (ImgPlusValue<?>)cell;
+        final IlastikExchangeFormat format = IlastikExchangeFormat.fromName(m_exchangeFormat.getStringValue());
 
-            // create new unique file names
-            String fileName = tmpDirPath + "file" + uniqueFileNameCounter;
-            uniqueFileNameCounter++;
 
-            // store out-image name in iterable
-            // store in map
-            String resultFileName = fileName + RESULT_IMG_SUFFIX + ".tiff";
+        final int tileSize = m_tileSize.getIntValue();
+        final int halo = getHalo();
+        if (tileSize > 0) {
+            KNIPGateway.log().debug("Processing images in tiles of " + tileSize + " pixels with a halo of " + halo
+                    + " pixels.");
+        }
 
-            m_outFiles.put(row.getKey(), resultFileName);
+        final int batchSize;
+        final int nrProcesses;
+        final int threadsPerProcess;
+        final int memoryPerProcess;
+        if (m_automaticResources.getBooleanValue()) {
+            final IlastikResourcePlanner.Plan plan = IlastikResourcePlanner
+                    .plan(statistics, m_parallelProcesses.getIntValue(), STREAMING_BATCH_SIZE);
+            batchSize = plan.getBatchSize();
+            nrProcesses = plan.getProcesses();
+            threadsPerProcess = plan.getThreadsPerProcess();
+            memoryPerProcess = plan.getMemoryPerProcess();
+        } else {
+            // if the rows are streamed all images can't be processed at once
+            batchSize = rowCount < 0 && m_batchSize.getIntValue() <= 0 ? STREAMING_BATCH_SIZE
+                    : m_batchSize.getIntValue();
+            final long nrBatches = rowCount < 0 ? Long.MAX_VALUE
+                    : batchSize <= 0 ? 1 : (rowCount + batchSize - 1) / batchSize;
+            nrProcesses = (int)Math.max(1, Math.min(m_parallelProcesses.getIntValue(), nrBatches));
+            threadsPerProcess = Math.max(1, m_ilastikThreadCount.getIntValue() / nrProcesses);
+            memoryPerProcess = Math.max(1, m_ilastikMaxMemory.getIntValue() / nrProcesses);
+        }
 
-            // attach file extension
-            fileName = fileName + ".tif";
+        m_workerPool.cancelClose();
+        if (m_keepIlastikRunning.getBooleanValue() && !isRemoteExecution()) {
+            // workers of previous executions with other settings can't be reused
+            m_workerPool.retain(IlastikLocalExecutor.createWorkerConfiguration(resolveProjectPath(), threadsPerProcess,
+                                                                               memoryPerProcess));
+        } else {
+            m_workerPool.close();
+        }
 
-            // store in-image name in list
-            files.add(fileName);
+        // only the result images are cached, not the object tables
+        final IlastikResultCache cache = m_useResultCache.getBooleanValue() && objectTable == null
+                ? IlastikResultCache.getInstance(new File(IlastikPreferencePage.getCacheDirectory()),
+                                                 IlastikPreferencePage.getCacheCapacity() * 1024L * 1024L)
+                : null;
+        final IlastikResultIndex index = objectTable == null ? getResultIndex() : null;
+        final String projectSignature = cache != null || index != null ? createProjectSignature() : null;
+
+        KNIPGateway.log().debug("Processing " + (rowCount < 0 ? "streamed" : Long.toString(rowCount))
+                + " rows in batches of " + (batchSize <= 0 ? "all" : Integer.toString(batchSize)) + " images with "
+                + nrProcesses + " ilastik processes (" + threadsPerProcess + " threads, " + memoryPerProcess
+                + " MB each).");
+
+        // one batch is staged, one is read back and the remaining are processed by ilastik
+        final int maxPendingBatches = nrProcesses + 2;
+        final Deque<PendingBatch> pendingBatches = new ArrayDeque<>(maxPendingBatches);
+
+        // the images are written in parallel, each thread with its own writer
+        final int nrStagingThreads = Math.max(1, KNIMEConstants.GLOBAL_THREAD_POOL.getMaxThreads());
+        final ExecutorService stagingExecutor =
+                ThreadUtils.executorServiceWithContext(Executors.newFixedThreadPool(nrStagingThreads));
+        final ExecutorService ilastikExecutor =
+                ThreadUtils.executorServiceWithContext(Executors.newFixedThreadPool(nrProcesses));
+        // the results are read in parallel as well, each thread with its own reader
+        final ExecutorService readbackExecutor =
+                ThreadUtils.executorServiceWithContext(Executors.newFixedThreadPool(nrStagingThreads));
+
+        final IlastikResourcePool<IlastikImageWriter> writers = new IlastikResourcePool<>(format::createWriter);
+        final IlastikStagingCompression compression =
+                new IlastikStagingCompression(m_stagingCompression.getStringValue(), format);
+        final IlastikExecutor executor = createExecutor();
+        final IlastikResourcePool<ResultReader> readers =
+                new IlastikResourcePool<>(() -> new ResultReader(format.createReader(), new ImgPlusCellFactory(exec)));
+
+        // the progress is reported for each row, as the results arrive while ilastik is running
+        final AtomicLong rowsDone = new AtomicLong();
+        final Runnable rowDone = () -> {
+            final long done = rowsDone.incrementAndGet();
+            if (rowCount < 0) {
+                exec.setMessage("Processed " + done + " rows");
+            } else {
+                exec.setProgress((double)done / Math.max(1, rowCount),
+                                 "Processed " + done + " of " + rowCount + " rows");
+            }
+        };
+        final RowConsumer progressOutput = row -> {
+            output.push(row);
+            rowDone.run();
+        };
 
-            // map for dimensions ZCT. -1 means non-existent
-            final ImgPlusMetadata imgMeta = imgvalue.getMetadata();
-            final int[] map = new int[]{imgMeta.dimensionIndex(Axes.Z), imgMeta.dimensionIndex(Axes.CHANNEL),
-                    imgMeta.dimensionIndex(Axes.TIME)};
+        try {
+            final Deque<PendingTile> pendingTiles = new ArrayDeque<>();
+            int batchIndex = 0;
+
+            while (rowIterator.hasNext() || !pendingTiles.isEmpty() || !pendingBatches.isEmpty()) {
+                // fill the pipeline
+                while (pendingBatches.size() < maxPendingBatches
+                        && (rowIterator.hasNext() || !pendingTiles.isEmpty())) {
+                    final IlastikBatch batch = createBatch(rowIterator, pendingTiles, batchSize, tileSize, halo,
+                                                           format, staging, batchIndex++);
+                    final List<Future<?>> staged =
+                            stageBatch(batch, stagingExecutor, writers, compression, format, cache, index,
+                                       projectSignature, exec);
+                    pendingBatches.add(new PendingBatch(batch, ilastikExecutor.submit(() -> {
+                        try {
+                            for (final Future<?> image : staged) {
+                                getResult(image);
+                            }
+                            if (!batch.getInputFiles().isEmpty()) {
+                                staging.addStagedFiles(batch.getDirectory(), batch.getInputFiles());
+                                runIlastik(batch, format, executor, threadsPerProcess, memoryPerProcess, cache,
+                                           index, exec);
+                                staging.addStagedFiles(batch.getDirectory(), batch.getResultFiles());
+                            }
+                            return null;
+                        } catch (final Throwable e) {
+                            // the results which are read back already wait for ilastik
+                            batch.fail(e);
+                            throw e;
+                        }
+                    })));
+                }
 
-            for (int i = 0; i < map.length; i++) {
-                if (map[i] != -1) {
-                    map[i] -= 2; // substract 2 as we start _behind_ XY
+                // read back the oldest batch, each result as soon as ilastik has written it
+                final PendingBatch pending = pendingBatches.poll();
+                final IlastikBatch batch = pending.getBatch();
+                if (objectTable != null) {
+                    readObjectTables(batch, output, rowDone, objectTable, exec);
+                } else {
+                    readBatch(batch, progressOutput, readbackExecutor, readers, format, exec);
                 }
+                waitFor(pending.getProcessing(), exec);
+                addMetrics(batch, total, metricsOutput);
+                // the readers may still hold the last files open, which can't be deleted on all platforms, these
+                // are deleted with the directory of the execution
+                staging.deleteBatchDirectory(batch.getDirectory());
             }
+            KNIPGateway.log().info(staging.report());
+            pushMetrics(total, System.nanoTime() - startTime);
+        } catch (final CanceledExecutionException e) {
+            throw e;
+        } catch (final Exception e) {
+            KNIPGateway.log().error("Error while executing Ilastik.", e);
 
-            // Image Writer
-            exec.checkCanceled();
+            throw new IllegalStateException(e);
+        } finally {
+            // stops the remaining ilastik processes in case of an error or cancellation
+            shutdown(stagingExecutor);
+            shutdown(ilastikExecutor);
+            shutdown(readbackExecutor);
+            writers.close();
+            readers.close();
+            executor.close();
+            // the staged files are deleted in the background
+            staging.close();
+        }
+    }
 
-            // write image to temp folder as input for ilastik
-            iW.writeImage(imgvalue.getImgPlus(), fileName, "TIFF (tif)", "Uncompressed", map);
+    /**
+     * @return whether ilastik is run by remote worker daemons instead of on the KNIME host
+     */
+    private boolean isRemoteExecution() {
+        return ExecutorModes.REMOTE.equals(m_executor.getStringValue());
+    }
+
+    /**
+     * @return the executor of an execution
+     * @throws InvalidSettingsException if the addresses of the remote workers are invalid
+     */
+    private IlastikExecutor createExecutor() throws InvalidSettingsException {
+        if (isRemoteExecution()) {
+            return new IlastikRemoteExecutor(IlastikRemoteExecutor.parseWorkers(m_remoteWorkers.getStringValue()),
+                    m_remoteToken.getStringValue());
         }
+        return new IlastikLocalExecutor(m_keepIlastikRunning.getBooleanValue() ? m_workerPool : null);
+    }
 
-        try {
-            // run ilastik and process images
-            runIlastik(tmpDirPath, files, exec);
-
-            String colCreationMode = m_colCreationModeModel.getStringValue();
-
-            if (colCreationMode.equals(ColCreationModes.NEW_TABLE)) { // new table
-
-                BufferedDataContainer container = exec.createDataContainer(createImgSpec());
-                readResultImages(tableIn, container);
-                container.close();
-                m_data = container.getTable();
-            } else if (colCreationMode.equals(ColCreationModes.APPEND)) { // Append
-                final ColumnRearranger rearranger = new ColumnRearranger(tableIn.getSpec());
-                final DataColumnSpec newColSpec = new DataColumnSpecCreator(COL_NAME, ImgPlusCell.TYPE).createSpec();
-                final IlastikCellFactory fac = createResultCellFactory(newColSpec);
-                rearranger.append(fac);
-                m_data = exec.createColumnRearrangeTable(tableIn, rearranger, exec);
-                fac.closeImgOpener();
-            } else if (colCreationMode.equals(ColCreationModes.REPLACE)) { // Replace
-                final ColumnRearranger rearranger = new ColumnRearranger(tableIn.getSpec());
-                final DataColumnSpec newColSpec = tableIn.getSpec().getColumnSpec(m_srcImgCol.getStringValue());
-                final IlastikCellFactory fac = createResultCellFactory(newColSpec);
-                rearranger.replace(fac, m_srcImgCol.getStringValue());
-                m_data = exec.createColumnRearrangeTable(tableIn, rearranger, exec);
-                fac.closeImgOpener();
-            } else {
-                throw new IllegalArgumentException("The value of the column creation setting is invalid!");
+    /**
+     * @return whether the object tables of an object classification project are output instead of the images
+     */
+    private boolean isObjectTableOutput() {
+        return OutputModes.OBJECT_TABLE.equals(m_outputMode.getStringValue());
+    }
+
+    /**
+     * @return the results of the last execution, null if the node is not executed incrementally
+     */
+    private synchronized IlastikResultIndex getResultIndex() {
+        if (!m_incremental.getBooleanValue()) {
+            if (m_resultIndex != null) {
+                // the results are not needed anymore
+                m_resultIndex.delete();
+                m_resultIndex = null;
             }
+        } else if (m_resultIndex == null) {
+            m_resultIndex = new IlastikResultIndex();
+        }
+        return m_resultIndex;
+    }
 
-            return new BufferedDataTable[]{m_data};
-        } catch (final Exception e) {
-            KNIPGateway.log().error("Error while executing Ilastik.", e);
+    /**
+     * @return the width of the halo of the tiles, 0 if images are not tiled
+     */
+    private int getHalo() {
+        if (m_tileSize.getIntValue() <= 0) {
+            return 0;
+        }
+        return m_tileHalo.getIntValue() < 0 ? IlastikTiling.haloFromProject(resolveProjectPath())
+                : m_tileHalo.getIntValue();
+    }
 
-            throw new IllegalStateException(e);
-        } finally {
-            cleanUp(tmpDir);
+    /**
+     * Add the numbers of a batch which has been read back to the total and to the metrics table.
+     *
+     * @param batch the batch
+     * @param total the numbers of the execution
+     * @param metricsOutput receives the metrics rows, null if not needed
+     * @throws Exception
+     */
+    private static void addMetrics(final IlastikBatch batch, final IlastikMetrics.Record total,
+                                   final RowConsumer metricsOutput) throws Exception {
+        final IlastikMetrics.Record batchRecord = new IlastikMetrics.Record();
+        batchRecord.add(batch.getMetrics());
+        final String batchKey = "Batch" + batch.getIndex();
+        for (int i = 0; i < batch.size(); i++) {
+            final IlastikBatch.Entry entry = batch.getEntries().get(i);
+            if (!entry.hasImage()) {
+                continue;
+            }
+            batchRecord.add(entry.getMetrics());
+            if (metricsOutput != null) {
+                metricsOutput.push(IlastikMetrics.createRow(batchKey + "_Image" + i, "Image", batch.getIndex(),
+                                                            entry.getRow().getKey().getString(), entry.getMetrics()));
+            }
+        }
+        if (metricsOutput != null) {
+            metricsOutput.push(IlastikMetrics.createRow(batchKey, "Batch", batch.getIndex(), null, batchRecord));
         }
+        total.add(batchRecord);
     }
 
     /**
-     * @param newColSpec the column spec
-     * @return a cellfactory that reads the result images from ilastik
+     * Expose the numbers of the execution as flow variables.
+     *
+     * @param total the numbers of the execution
+     * @param wallNanos wall time of the execution
      */
-    private IlastikCellFactory createResultCellFactory(final DataColumnSpec newColSpec) {
-        return new IlastikCellFactory(newColSpec);
+    private void pushMetrics(final IlastikMetrics.Record total, final long wallNanos) {
+        final double wallMs = wallNanos / 1e6;
+        pushFlowVariableDouble("ilastik_total_wall_time_ms", wallMs);
+        for (final IlastikMetrics.Phase phase : IlastikMetrics.Phase.values()) {
+            pushFlowVariableDouble("ilastik_" + phase.getName() + "_wall_time_ms", total.getWallTimeMs(phase));
+            if (phase.hasCpuTime()) {
+                pushFlowVariableDouble("ilastik_" + phase.getName() + "_cpu_time_ms", total.getCpuTimeMs(phase));
+            }
+        }
+        pushFlowVariableDouble("ilastik_bytes_staged", total.getBytesStaged());
+        pushFlowVariableDouble("ilastik_bytes_read_back", total.getBytesRead());
+        pushFlowVariableInt("ilastik_images", total.getImages());
+        pushFlowVariableDouble("ilastik_images_per_second", total.getImages() / Math.max(wallMs / 1000, 1e-3));
     }
 
     /**
+     * Determine the number and size of the ilastik inputs (images or tiles) from the metadata of the images, without
+     * reading them.
      *
-     * Read resulting images every channel is a probability map for one labeling
+     * @param table the input table
+     * @return the statistics
+     */
+    private IlastikResourcePlanner.InputStatistics collectStatistics(final BufferedDataTable table) {
+        final IlastikResourcePlanner.InputStatistics statistics = new IlastikResourcePlanner.InputStatistics();
+        final int tileSize = m_tileSize.getIntValue();
+        final int tileWithHalo = tileSize + 2 * getHalo();
+
+        try (CloseableRowIterator rows = table.iterator()) {
+            while (rows.hasNext()) {
+                final DataCell cell = rows.next().getCell(m_inputImgColIdx);
+                if (cell.isMissing()) {
+                    continue;
+                }
+                final ImgPlusValue<?> value = (ImgPlusValue<?>)cell;
+                final long[] dims = value.getDimensions().clone();
+                int nrTiles = 1;
+                if (tileSize > 0) {
+                    final String axes = getAxes(value);
+                    for (int d = 0; d < dims.length; d++) {
+                        if ("xyz".indexOf(axes.charAt(d)) >= 0) {
+                            nrTiles *= (dims[d] + tileSize - 1) / tileSize;
+                            dims[d] = Math.min(dims[d], tileWithHalo);
+                        }
+                    }
+                }
+                statistics.add(dims, nrTiles);
+            }
+        }
+        return statistics;
+    }
+
+    /**
+     * Collect the next rows of the input table into a batch. If the exchange format has explicit axes, a batch only
+     * contains images with the same axes. Tiled images are split into one entry per tile; the tiles which don't fit
+     * into the batch are kept in the given queue for the next batch. The directory of the batch is chosen once its
+     * size is known.
      *
-     * @param inData
+     * @param rowIterator the input rows
+     * @param pendingTiles the remaining tiles of the last image
+     * @param batchSize number of images or tiles per batch, 0 puts all images into a single batch
+     * @param tileSize edge length of the tiles, 0 if images are not tiled
+     * @param halo width of the halo of the tiles
+     * @param format the exchange format
+     * @param staging the staging locations of this execution
+     * @param batchIndex index of the new batch
+     * @return the batch, containing at least one row
+     */
+    private IlastikBatch createBatch(final PeekingIterator<DataRow> rowIterator, final Deque<PendingTile> pendingTiles,
+                                     final int batchSize, final int tileSize, final int halo,
+                                     final IlastikExchangeFormat format, final IlastikStagingLocations staging,
+                                     final int batchIndex) {
+        // rows of the batch, the tile is null for images which are not tiled and for missing cells
+        final List<PendingTile> items = new ArrayList<>();
+        String axes = pendingTiles.isEmpty() ? null
+                : getAxes((ImgPlusValue<?>)pendingTiles.peek().getRow().getCell(m_inputImgColIdx));
+
+        int nrImages = 0;
+        long nrVoxels = 0;
+        while (true) {
+            // continue with the tiles of the last image
+            while (!pendingTiles.isEmpty() && (batchSize <= 0 || nrImages < batchSize)) {
+                final PendingTile pending = pendingTiles.poll();
+                nrImages++;
+                nrVoxels += Intervals.numElements(pending.getTile().getWithHalo());
+                items.add(pending);
+            }
+
+            if (!pendingTiles.isEmpty() || !rowIterator.hasNext() || (batchSize > 0 && nrImages >= batchSize)) {
+                break;
+            }
+
+            final DataCell cell = rowIterator.peek().getCell(m_inputImgColIdx);
+            if (format.hasExplicitAxes() && !cell.isMissing()) {
+                final String imgAxes = getAxes((ImgPlusValue<?>)cell);
+                if (axes == null) {
+                    axes = imgAxes;
+                } else if (!axes.equals(imgAxes)) {
+                    // start a new batch for images with other axes
+                    break;
+                }
+            }
+
+            final DataRow row = rowIterator.next();
+
+            if (cell.isMissing()) {
+                KNIPGateway.log().warn("Ignoring missing cell in row " + row.getKey() + "!");
+                items.add(new PendingTile(row, null));
+                continue;
+            }
+
+            if (tileSize > 0) {
+                final ImgPlusValue<?> value = (ImgPlusValue<?>)cell;
+                for (final IlastikTiling.Tile tile : IlastikTiling.createTiles(value.getDimensions(),
+                                                                                getAxes(value), tileSize, halo)) {
+                    pendingTiles.add(new PendingTile(row, tile));
+                }
+                continue;
+            }
+
+            nrImages++;
+            nrVoxels += Intervals.numElements(((ImgPlusValue<?>)cell).getDimensions());
+            items.add(new PendingTile(row, null));
+        }
+
+        final String batchDirPath =
+                staging.createBatchDirectory(batchIndex, nrVoxels * IlastikStagingLocations.BYTES_PER_VOXEL);
+
+        final List<IlastikBatch.Entry> entries = new ArrayList<>(items.size());
+        int fileIndex = 0;
+        for (final PendingTile item : items) {
+            if (item.getTile() == null && item.getRow().getCell(m_inputImgColIdx).isMissing()) {
+                entries.add(new IlastikBatch.Entry(item.getRow(), null, null));
+                continue;
+            }
+            // create new unique file names
+            final String fileName = batchDirPath + "file" + fileIndex++;
+            entries.add(new IlastikBatch.Entry(item.getRow(), fileName + format.getInputExtension(),
+                    fileName + RESULT_IMG_SUFFIX + format.getResultExtension(), item.getTile()));
+        }
+        return new IlastikBatch(batchIndex, batchDirPath, axes, entries);
+    }
+
+    /**
+     * @param value an image
+     * @return the ilastik axis keys of the image in imglib2 order, e.g. "xyzc"
+     */
+    private static String getAxes(final ImgPlusValue<?> value) {
+        final ImgPlusMetadata metadata = value.getMetadata();
+        final StringBuilder axes = new StringBuilder();
+        for (int d = 0; d < metadata.numDimensions(); d++) {
+            axes.append(Hdf5Format.toAxisKey(metadata.axis(d).type()));
+        }
+        return axes.toString();
+    }
+
+    /**
+     * Write the images of a batch to its directory as input for ilastik. Images whose result is in the result cache
+     * are not written, their result is taken from the cache instead. Every image is written by its own task, the file
+     * names have already been assigned when the batch was created.
      *
+     * @param batch the batch
+     * @param stagingExecutor executes the tasks
+     * @param writers the image writers, each task uses its own
+     * @param compression decides whether the images are compressed
+     * @param format the exchange format
+     * @param cache the result cache, null if results are not cached
+     * @param index the results of the last execution, null if not executed incrementally
+     * @param projectSignature identifies the project and the ilastik installation, null if results are neither cached
+     *            nor indexed
      * @param exec
+     * @return one future per image of the batch
+     */
+    private List<Future<?>> stageBatch(final IlastikBatch batch, final ExecutorService stagingExecutor,
+                                       final IlastikResourcePool<IlastikImageWriter> writers,
+                                       final IlastikStagingCompression compression,
+                                       final IlastikExchangeFormat format, final IlastikResultCache cache,
+                                       final IlastikResultIndex index, final String projectSignature,
+                                       final ExecutionMonitor exec) {
+        if (!batch.hasImages()) {
+            // only missing cells, which have no axes to derive the export arguments from
+            return Collections.emptyList();
+        }
+
+        // everything besides the image which influences the result file
+        final String cacheSignature = projectSignature == null ? null
+                : projectSignature + "|" + String.join(" ", getExportArguments(format, batch.getAxes()));
+
+        final List<Future<?>> futures = new ArrayList<>();
+        for (final IlastikBatch.Entry entry : batch.getEntries()) {
+            if (entry.hasImage()) {
+                futures.add(stagingExecutor.submit(() -> {
+                    stageImage(entry, writers, compression, cache, index, cacheSignature, exec);
+                    return null;
+                }));
+            }
+        }
+        return futures;
+    }
+
+    /**
+     * Write a single image of a batch, or take its result from the last execution or the cache.
      *
+     * @param entry the row of the image
+     * @param writers the image writers
+     * @param compression decides whether the image is compressed
+     * @param cache the result cache, null if results are not cached
+     * @param index the results of the last execution, null if not executed incrementally
+     * @param cacheSignature identifies the project and settings in the cache key
      * @param exec
-     * @param outFiles
+     * @throws Exception
      */
-    private void readResultImages(final BufferedDataTable inData, final DataContainer container) {
+    private void stageImage(final IlastikBatch.Entry entry, final IlastikResourcePool<IlastikImageWriter> writers,
+                            final IlastikStagingCompression compression, final IlastikResultCache cache,
+                            final IlastikResultIndex index, final String cacheSignature, final ExecutionMonitor exec)
+            throws Exception {
+        // get next image
+        final ImgPlusValue<?> imgvalue = (ImgPlusValue<?>)entry.getRow().getCell(m_inputImgColIdx);
 
-        final ScifioImgSource imgOpener = new ScifioImgSource();
+        // Image Writer
+        exec.checkCanceled();
 
-        //m_outFiles.forEach((final RowKey key, final Pair<String, String> pair) -> {
-        for (DataRow row : inData) {
+        final IlastikMetrics.Stopwatch stopwatch = new IlastikMetrics.Stopwatch();
+        entry.getMetrics().addImages(1);
+        try {
+            final ImgPlus<?> img = imgvalue.getImgPlus();
+            final IlastikTiling.Tile tile = entry.getTile();
+
+            if (cacheSignature != null) {
+                entry.setCacheKey(IlastikResultCache.createKey(img, tile == null ? img : tile.getWithHalo(),
+                                                               cacheSignature));
+                // the index has to see every row, even if the cache has its result
+                final boolean unchanged = index != null && index.get(entry);
+                if (unchanged || (cache != null && cache.get(entry.getCacheKey(), entry.getResultFile()))) {
+                    if (index != null && !unchanged) {
+                        // the cache may evict it before the next execution
+                        index.put(entry);
+                    }
+                    entry.setCached(true);
+                    entry.completeResult();
+                    return;
+                }
+            }
 
+            // write image to temp folder as input for ilastik
+            final ImgPlus<?> input = tile == null ? img : IlastikTiling.crop(img, tile.getWithHalo());
+            final boolean compressed = compression.next();
+            final long start = System.nanoTime();
+            final IlastikImageWriter writer = writers.acquire();
             try {
-                DataCell cell = readImageForRow(row, imgOpener);
-
-                DataCell[] cells = new DataCell[1];
-                cells[0] = cell;
-                container.addRowToTable(new DefaultRow(row.getKey(), cells));
-            } catch (Exception e) {
-                throw new IllegalStateException(
-                        "Can't read image in Ilastik Headless Node at RowId: " + row.getKey() + " : " + e, e);
+                writer.write(input, entry.getInputFile(), compressed);
             } finally {
-                imgOpener.close();
+                writers.release(writer);
+            }
+            final long bytes = new File(entry.getInputFile()).length();
+            compression.record(compressed, input.size(), bytes, System.nanoTime() - start);
+            entry.getMetrics().addBytesStaged(bytes);
+        } finally {
+            stopwatch.stop(entry.getMetrics(), IlastikMetrics.Phase.STAGING);
+        }
+    }
+
+    /**
+     * Add a result ilastik computed to the result cache and the results of the execution, and hand it over to the
+     * readback. The result is cached first, because it may be moved by the reader.
+     *
+     * @param entry the entry whose result is complete
+     * @param cache the result cache, null if results are not cached
+     * @param index the results of the execution, null if not executed incrementally
+     */
+    private static void completeResult(final IlastikBatch.Entry entry, final IlastikResultCache cache,
+                                       final IlastikResultIndex index) {
+        if (new File(entry.getResultFile()).exists()) {
+            if (cache != null) {
+                cache.put(entry.getCacheKey(), entry.getResultFile());
+            }
+            if (index != null) {
+                index.put(entry);
             }
         }
+        entry.completeResult();
+    }
+
+    /**
+     *
+     * Read resulting images of a batch, every channel is a probability map for one labeling. The images are read in
+     * parallel as soon as ilastik has written them, possibly out of order, and added to the output in row order.
+     *
+     * @param batch the processed batch
+     * @param output receives the output rows
+     * @param readbackExecutor executes the read tasks
+     * @param readers the image readers, each task uses its own
+     * @param format the exchange format
+     * @param exec
+     * @throws Exception
+     */
+    private void readBatch(final IlastikBatch batch, final RowConsumer output,
+                           final ExecutorService readbackExecutor, final IlastikResourcePool<ResultReader> readers,
+                           final IlastikExchangeFormat format, final ExecutionMonitor exec) throws Exception {
+
+        final List<Future<DataCell>> cells = new ArrayList<>(batch.size());
+        for (final IlastikBatch.Entry entry : batch.getEntries()) {
+            cells.add(entry.getResult().thenApplyAsync(v -> {
+                final DataRow row = entry.getRow();
+                final IlastikMetrics.Stopwatch stopwatch = new IlastikMetrics.Stopwatch();
+                final ResultReader reader = readers.acquire();
+                try {
+                    exec.checkCanceled();
+                    if (entry.hasImage()) {
+                        // the file may be moved by the reader
+                        entry.getMetrics().addBytesRead(new File(entry.getResultFile()).length());
+                    }
+                    if (entry.getTile() != null) {
+                        // the cell is created once all tiles are pasted
+                        readTile(entry.getTile(), entry.getResultFile(), reader);
+                        return null;
+                    }
+                    return readImageForRow(row, entry.getResultFile(), reader, format, entry.getMetrics());
+                } catch (CanceledExecutionException e) {
+                    throw new CompletionException(e);
+                } catch (Exception e) {
+                    throw new IllegalStateException(
+                            "Can't read image in Ilastik Headless Node at RowId: " + row.getKey() + " : " + e, e);
+                } finally {
+                    readers.release(reader);
+                    stopwatch.stop(entry.getMetrics(), IlastikMetrics.Phase.READBACK);
+                }
+            }, readbackExecutor));
+        }
+
+        for (int i = 0; i < cells.size(); i++) {
+            final IlastikBatch.Entry entry = batch.getEntries().get(i);
+            DataCell cell = waitFor(cells.get(i), exec);
+            if (!entry.completesRow()) {
+                continue;
+            }
+            if (entry.getTile() != null) {
+                // all previous tiles of the row have been pasted
+                final IlastikMetrics.Stopwatch stopwatch = new IlastikMetrics.Stopwatch();
+                final ResultReader reader = readers.acquire();
+                try {
+                    cell = createTiledCell(entry.getRow(), entry.getTile(), reader);
+                } finally {
+                    readers.release(reader);
+                    stopwatch.stop(entry.getMetrics(), IlastikMetrics.Phase.READBACK);
+                }
+            }
+            output.push(createOutRow(entry.getRow(), cell));
+        }
+    }
+
+    /**
+     * Read the object tables of a batch. Each table is parsed in row order as soon as ilastik has written it, and its
+     * rows are output while they are parsed, so that the objects of a batch are never held in memory. The result
+     * images are not read.
+     *
+     * @param batch the processed batch
+     * @param output receives the rows of the objects in row order
+     * @param rowDone called once the objects of an input row have been output
+     * @param objectTable reads the tables
+     * @param exec
+     * @throws Exception
+     */
+    private static void readObjectTables(final IlastikBatch batch, final RowConsumer output, final Runnable rowDone,
+                                         final IlastikObjectTable objectTable, final ExecutionMonitor exec)
+            throws Exception {
+        for (final IlastikBatch.Entry entry : batch.getEntries()) {
+            waitFor(entry.getResult(), exec);
+            if (entry.hasImage()) {
+                final IlastikMetrics.Stopwatch stopwatch = new IlastikMetrics.Stopwatch();
+                final File file = IlastikObjectTable.getTableFile(entry);
+                try {
+                    entry.getMetrics().addBytesRead(file.length());
+                    objectTable.read(entry.getRow().getKey(), file, output);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Can't read the object table of row " + entry.getRow().getKey()
+                            + " in Ilastik Headless Node: " + e.getMessage(), e);
+                } finally {
+                    stopwatch.stop(entry.getMetrics(), IlastikMetrics.Phase.READBACK);
+                }
+            }
+            rowDone.run();
+        }
+    }
+
+    /**
+     * Read the result of a tile and paste it into the result of its image.
+     *
+     * @param tile the tile
+     * @param path location of the ilastik result for the tile
+     * @param reader the image reader
+     * @throws Exception
+     */
+    private void readTile(final IlastikTiling.Tile tile, final String path, final ResultReader reader)
+            throws Exception {
+        if (!Files.isRegularFile(Paths.get(path))) {
+            throw new InvalidPathException(path, "Ilastik output file does not exist");
+        }
+        final ImgPlus<T> img = reader.getImageReader().read(path);
+        tile.getResult().paste(tile, img.getImg());
+    }
+
+    /**
+     * @param row the input row of a tiled image
+     * @param tile the last tile of the image
+     * @param reader provides the cell factory
+     * @return the cell of the stitched result
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    private DataCell createTiledCell(final DataRow row, final IlastikTiling.Tile tile, final ResultReader reader)
+            throws IOException {
+        final ImgPlusValue<?> imgInValue = (ImgPlusValue<?>)row.getCell(m_inputImgColIdx);
+        final ImgPlus<T> imgOut = new ImgPlus<>((Img<T>)tile.getResult().getImg());
+
+        setResultAxes(imgOut, imgInValue.getMetadata());
+
+        imgOut.setSource(imgInValue.getImgPlus().getSource());
+        imgOut.setName(row.getKey() + "_result");
+        return reader.getCellFactory().createCell(imgOut);
+    }
+
+    /**
+     * Set the axes of a result which has the axes of the input image, followed by a channel axis if the input has
+     * none.
+     *
+     * @param result the result image
+     * @param metadata the metadata of the input image
+     */
+    private static void setResultAxes(final ImgPlus<?> result, final ImgPlusMetadata metadata) {
+        for (int d = 0; d < metadata.numDimensions(); d++) {
+            result.setAxis(metadata.axis(d).copy(), d);
+        }
+        if (result.numDimensions() > metadata.numDimensions()) {
+            result.setAxis(new DefaultLinearAxis(Axes.CHANNEL), metadata.numDimensions());
+        }
     }
 
     /**
      *
      * @param row
-     * @param imgOpener
-     * @return DataCell of new Image read from location given by m_outFiles
+     * @param path location of the ilastik result for this row
+     * @param reader the image reader
+     * @param format the exchange format
+     * @param metrics records the time of the dimension override
+     * @return DataCell of new Image read from the given location
      * @throws Exception
      */
-    private DataCell readImageForRow(final DataRow row, final ScifioImgSource imgOpener) throws Exception {
+    private DataCell readImageForRow(final DataRow row, final String path, final ResultReader reader,
+                                     final IlastikExchangeFormat format, final IlastikMetrics.Record metrics)
+            throws Exception {
 
         final DataCell cell_in = row.getCell(m_inputImgColIdx);
 
@@ -402,133 +1272,233 @@ public class IlastikHeadlessNodeModel<T extends RealType<T> & NativeType<T>> ext
 
         final RowKey key = row.getKey();
 
-        final String path = m_outFiles.get(key);
-
         if (!Files.isRegularFile(Paths.get(path))) {
             throw new InvalidPathException(path, "Ilastik output file does not exist");
         }
 
-        final ImgPlus<T> img = (ImgPlus<T>)imgOpener.getImg(path, 0);
-        final ImgPlus<T> imgOut =
-                m_outputDimensionsOverride.getBooleanValue() ? overrideTimeDimension(img, imgInValue) : img;
+        final ImgPlus<T> img = reader.getImageReader().read(path);
+        if (format == IlastikExchangeFormat.NPY) {
+            // numpy files have no axes
+            setResultAxes(img, imgInValue.getMetadata());
+        }
+        // only the TIFF export of ilastik mixes up the axes
+        final ImgPlus<T> imgOut;
+        if (format == IlastikExchangeFormat.TIFF && m_outputDimensionsOverride.getBooleanValue()) {
+            final IlastikMetrics.Stopwatch stopwatch = new IlastikMetrics.Stopwatch();
+            imgOut = overrideTimeDimension(img, imgInValue);
+            stopwatch.stop(metrics, IlastikMetrics.Phase.OVERRIDE);
+        } else {
+            imgOut = img;
+        }
 
         final String source = imgInValue.getImgPlus().getSource();
         imgOut.setSource(source);
         imgOut.setName(key + "_result");
-        final DataCell cell = m_imgPlusCellFactory.createCell(imgOut);
+        final DataCell cell = reader.getCellFactory().createCell(imgOut);
 
         return cell;
     }
 
     /**
-     * Delete temporary directory
+     * Blocks until the given task is done while keeping the node cancelable.
      *
-     * @param tmpDir
-     * @throws IOException
+     * @param future the pending task, e.g. a batch
+     * @param exec
+     * @return the result of the task
+     * @throws Exception if the task failed
      */
-    private void cleanUp(final File tmpDir) throws IOException {
-        //         delete tmp directory
+    private static <R> R waitFor(final Future<R> future, final ExecutionMonitor exec) throws Exception {
+        while (true) {
+            exec.checkCanceled();
+            try {
+                return getResult(future, 500, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // still running
+            }
+        }
+    }
+
+    /**
+     * @return the result of the future, unwrapping the exception of a failed computation
+     */
+    private static <V> V getResult(final Future<V> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+        }
+    }
+
+    private static <V> V getResult(final Future<V> future, final long timeout, final TimeUnit unit)
+            throws Exception {
         try {
-            FileUtils.forceDelete(tmpDir);
-        } catch (RuntimeException e) {
-            throw new IOException(e);
+            return future.get(timeout, unit);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+        }
+    }
+
+    /**
+     * Interrupt all running tasks of the executor and wait for them to terminate.
+     *
+     * @param executor
+     * @throws InterruptedException
+     */
+    private static void shutdown(final ExecutorService executor) throws InterruptedException {
+        executor.shutdownNow();
+        if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+            KNIPGateway.log().warn("Ilastik tasks did not terminate in time.");
         }
     }
 
     /**
+     * @param batch the staged batch, the results are written to its directory
+     * @param format the exchange format
+     * @param executor runs ilastik
+     * @param threadCount value of LAZYFLOW_THREADS
+     * @param maxMemory value of LAZYFLOW_TOTAL_RAM_MB
+     * @param cache the result cache, null if results are not cached
+     * @param index the results of the execution, null if not executed incrementally
      * @param exec
      * @throws IOException
      * @throws InterruptedException
      * @throws CanceledExecutionException
-     * @throws URISyntaxException
      */
-    private void runIlastik(final String tmpDirPath, final List<String> inFiles, final ExecutionContext exec)
-            throws IOException, InterruptedException {
-
-        // get path of ilastik
-        final String path = IlastikPreferencePage.getPath();
+    private void runIlastik(final IlastikBatch batch, final IlastikExchangeFormat format,
+                            final IlastikExecutor executor, final int threadCount, final int maxMemory,
+                            final IlastikResultCache cache, final IlastikResultIndex index,
+                            final ExecutionMonitor exec)
+            throws IOException, InterruptedException, CanceledExecutionException {
+        final List<String> exportArgs = getExportArguments(format, batch.getAxes());
+        exportArgs.add("--output_filename_format=" + batch.getDirectory() + "{nickname}" + RESULT_IMG_SUFFIX);
+        if (isObjectTableOutput()) {
+            exportArgs.add(IlastikObjectTable.getTableArgument(batch.getDirectory()));
+        }
 
-        String outpath;
-        try {
-            outpath = FileUtil.resolveToPath(FileUtil.toURL(m_pathToIlastikProjectFileModel.getStringValue()))
-                    .toAbsolutePath().toString();
-        } catch (InvalidPathException | URISyntaxException e) {
-            throw new IllegalArgumentException("The Path to the project file could not be resolved: " + e, e);
+        final List<String> inputs = new ArrayList<>();
+        for (final String inFile : batch.getInputFiles()) {
+            inputs.add(format.getInputArgument(inFile));
         }
-        if (outpath == null) {
-            throw new IllegalArgumentException("The Path to the project file could not be resolved.");
+        final IlastikExecutor.Job job =
+                new IlastikExecutor.Job(resolveProjectPath(), batch.getDirectory(), batch.getInputFiles(), inputs,
+                                        exportArgs, format.getInputAxes(batch.getAxes()), threadCount, maxMemory,
+                                        batch.getMetrics());
+
+        // the results are handed over to the readback while ilastik is still running
+        try (IlastikResultWatcher watcher =
+                new IlastikResultWatcher(batch, entry -> completeResult(entry, cache, index))) {
+            executor.execute(job, watcher, exec);
+            watcher.completeAll();
         }
+    }
 
-        // DO NOT TOUCH THIS ORDER!
-        inFiles.add(0, path);
-        inFiles.add(1, "--headless");
-        inFiles.add(2, "--project=".concat(outpath));
-        inFiles.add(3, "--output_format=multipage tiff");
-        inFiles.add(4, "--output_filename_format=".concat(tmpDirPath).concat("{nickname}" + RESULT_IMG_SUFFIX));
-
-        KNIPGateway.log().debug("Executing ilastik with " + String.join(", ", inFiles));
-
-        // build process with project and images
-        ProcessBuilder pB = new ProcessBuilder(inFiles);
-
-        // limit cpu + memory usage
-        final Map<String, String> env = pB.environment();
-        env.put("LAZYFLOW_THREADS", String.valueOf(m_ilastikThreadCount.getIntValue()));
-        env.put("LAZYFLOW_TOTAL_RAM_MB", String.valueOf(m_ilastikMaxMemory.getIntValue()));
+    /**
+     * @param format the exchange format
+     * @param axes ilastik axis keys shared by the images in imglib2 order, null if the format has no explicit axes
+     * @return the arguments which determine what ilastik exports and how
+     */
+    private List<String> getExportArguments(final IlastikExchangeFormat format, final String axes) {
+        final List<String> args = new ArrayList<>(format.getOutputArguments(axes));
+        if (!PROJECT_DEFAULT.equals(m_exportSource.getStringValue())) {
+            args.add("--export_source=" + m_exportSource.getStringValue());
+        }
+        final String type = m_exportType.getStringValue();
+        if (!PROJECT_DEFAULT.equals(type)) {
+            args.add("--export_dtype=" + type);
+            if (m_exportNormalize.getBooleanValue()) {
+                // probabilities and uncertainties are in [0, 1]
+                args.add("--export_drange=(0.0,1.0)");
+                args.add("--export_new_drange=" + getTypeRange(type));
+            }
+        }
+        if (m_exportChannelCount.getIntValue() > 0) {
+            args.add("--cutout_subregion=" + createChannelCutout(axes, m_exportFirstChannel.getIntValue(),
+                                                                 m_exportChannelCount.getIntValue()));
+        }
+        return args;
+    }
 
-        // run ilastik
-        Process p = pB.start();
+    /**
+     * @return the range of the values of an export type, as ilastik expects it for --export_new_drange
+     */
+    private static String getTypeRange(final String type) {
+        switch (type) {
+            case "uint8":
+                return "(0,255)";
+            case "uint16":
+                return "(0,65535)";
+            case "uint32":
+                return "(0,4294967295)";
+            default:
+                return "(0.0,1.0)";
+        }
+    }
 
-        // write ilastik output to knime console
-        redirectToKnimeConsole(p.getInputStream(), DirectedLogServiceFactory.debug());
-        redirectToKnimeConsole(p.getErrorStream(), DirectedLogServiceFactory.error());
+    /**
+     * @param axes ilastik axis keys of the input images in imglib2 order
+     * @param first the first channel of the results which is exported
+     * @param count the number of channels
+     * @return the ilastik subregion, i.e. start and stop in the axis order of the export source, which selects the
+     *         channels
+     */
+    static String createChannelCutout(final String axes, final int first, final int count) {
+        // the cutout is applied to the source before the output axis order, i.e. to the axes of the input in HDF5
+        // (reversed) order with the channels ilastik appends
+        final String reversed = new StringBuilder(axes).reverse().toString();
+        final String resultAxes = axes.indexOf('c') < 0 ? reversed + "c" : reversed;
+        final StringBuilder start = new StringBuilder("(");
+        final StringBuilder stop = new StringBuilder("(");
+        for (int d = 0; d < resultAxes.length(); d++) {
+            final boolean channel = resultAxes.charAt(d) == 'c';
+            start.append(d == 0 ? "" : ",").append(channel ? Integer.toString(first) : "None");
+            stop.append(d == 0 ? "" : ",").append(channel ? Long.toString((long)first + count) : "None");
+        }
+        return "[" + start + ")," + stop + ")]";
+    }
 
+    /**
+     * @return the absolute path of the ilastik project file
+     * @throws IOException
+     */
+    private String resolveProjectPath() throws IOException {
+        String outpath;
         try {
-            while (!p.waitFor(500, TimeUnit.MILLISECONDS)) {
-                exec.checkCanceled();
-            }
-        } catch (CanceledExecutionException cee) {
-            KNIPGateway.log().error("Execution canceled, closing Ilastik now.");
-            p.destroy();
+            outpath = FileUtil.resolveToPath(FileUtil.toURL(m_pathToIlastikProjectFileModel.getStringValue()))
+                    .toAbsolutePath().toString();
+        } catch (InvalidPathException | URISyntaxException e) {
+            throw new IllegalArgumentException("The Path to the project file could not be resolved: " + e, e);
         }
-
-        // 0 indicates successful execution
-        if (p.exitValue() != 0) {
-            throw new IllegalStateException("Execution of ilastik was not successful.");
+        if (outpath == null) {
+            throw new IllegalArgumentException("The Path to the project file could not be resolved.");
         }
+        return outpath;
     }
 
     /**
-     * Write stream to knime console
-     *
-     * @param in input stream
-     * @param logService
+     * @return identifies the project file and the ilastik installation which processes it, so that results are not
+     *         reused after the project has been changed or ilastik has been upgraded; for remote execution the
+     *         installations of the workers are identified by their addresses
      * @throws IOException
+     * @throws InvalidSettingsException if the addresses of the remote workers are invalid
      */
-    static void redirectToKnimeConsole(final InputStream in, final DirectedLogService defaultLogger) {
-
-        Thread t = new Thread() {
-            @Override
-            public void run() {
-
-                String line;
-
-                try (BufferedReader bis = new BufferedReader(new InputStreamReader(in, Charset.defaultCharset()))) {
-                    while ((line = bis.readLine()) != null) {
-                        if (line.contains("WARNING")) {
-                            KNIPGateway.log().warn(line);
-                        } else {
-                            defaultLogger.log(line);
-                        }
-                    }
-                } catch (IOException ioe) {
-                    throw new RuntimeException("Could not read ilastik output", ioe);
-                }
+    private String createProjectSignature() throws IOException, InvalidSettingsException {
+        final String projectHash = IlastikResultCache.hashFile(resolveProjectPath());
+        if (isRemoteExecution()) {
+            // NB: sorted, the order of the workers doesn't change the results
+            final List<String> workers = new ArrayList<>();
+            final String addresses = m_remoteWorkers.getStringValue();
+            for (final InetSocketAddress worker : IlastikRemoteExecutor.parseWorkers(addresses)) {
+                workers.add(worker.getHostString() + ":" + worker.getPort());
             }
-        };
-
-        t.setUncaughtExceptionHandler(new DefaultUncaughtExceptionHandler(KNIPGateway.log()));
-        t.start();
+            Collections.sort(workers);
+            return projectHash + "|remote|" + String.join(",", workers);
+        }
+        String signature = projectHash + "|" + IlastikResultCache.describeInstallation(IlastikPreferencePage.getPath());
+        if (m_keepIlastikRunning.getBooleanValue()) {
+            // the worker runs ilastik through the Python interpreter of the installation
+            signature += "|" + IlastikResultCache.describeInstallation(IlastikPreferencePage.getPythonPath());
+        }
+        return signature;
     }
 
     /**
@@ -574,6 +1544,127 @@ public class IlastikHeadlessNodeModel<T extends RealType<T> & NativeType<T>> ext
                 KNIMEConstants.GLOBAL_THREAD_POOL.getMaxThreads(), 1, Integer.MAX_VALUE);
     }
 
+    /**
+     * @return SettingsModelIntegerBounded for the number of images processed by one ilastik process, 0 processes all
+     *         images at once
+     */
+    public static SettingsModelIntegerBounded createBatchSizeModel() {
+        return new SettingsModelIntegerBounded("batch_size", 0, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return SettingsModelIntegerBounded for the number of ilastik processes running at the same time
+     */
+    public static SettingsModelIntegerBounded createParallelProcessesModel() {
+        return new SettingsModelIntegerBounded("parallel_processes", 1, 1, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return SettingsModelBoolean if the resources of the ilastik processes should be planned automatically
+     */
+    public static SettingsModelBoolean createAutomaticResourcesModel() {
+        return new SettingsModelBoolean("automatic_resources", false);
+    }
+
+    /**
+     * @return SettingsModelString for the file format used to exchange images with ilastik
+     */
+    public static SettingsModelString createExchangeFormatModel() {
+        return new SettingsModelString("exchange_format", IlastikExchangeFormat.TIFF.toString());
+    }
+
+    /**
+     * @return SettingsModelIntegerBounded for the edge length of the tiles, 0 processes images as a whole
+     */
+    public static SettingsModelIntegerBounded createTileSizeModel() {
+        return new SettingsModelIntegerBounded("tile_size", 0, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return SettingsModelIntegerBounded for the halo of the tiles, -1 derives it from the features of the project
+     */
+    public static SettingsModelIntegerBounded createTileHaloModel() {
+        return new SettingsModelIntegerBounded("tile_halo", -1, -1, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return SettingsModelString for the export source of ilastik, e.g. the probabilities or the segmentation
+     */
+    public static SettingsModelString createExportSourceModel() {
+        return new SettingsModelString("export_source", PROJECT_DEFAULT);
+    }
+
+    /**
+     * @return SettingsModelString for the pixel type ilastik exports the results as
+     */
+    public static SettingsModelString createExportTypeModel() {
+        return new SettingsModelString("export_dtype", PROJECT_DEFAULT);
+    }
+
+    /**
+     * @return SettingsModelBoolean if the results should be scaled from [0, 1] to the range of the export type
+     */
+    public static SettingsModelBoolean createExportNormalizeModel() {
+        return new SettingsModelBoolean("export_normalize", false);
+    }
+
+    /**
+     * @return SettingsModelIntegerBounded for the first result channel which is exported
+     */
+    public static SettingsModelIntegerBounded createExportFirstChannelModel() {
+        return new SettingsModelIntegerBounded("export_first_channel", 0, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return SettingsModelIntegerBounded for the number of result channels which are exported, 0 exports all
+     */
+    public static SettingsModelIntegerBounded createExportChannelCountModel() {
+        return new SettingsModelIntegerBounded("export_channel_count", 0, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return SettingsModelBoolean if ilastik processes should keep the project loaded between executions
+     */
+    public static SettingsModelBoolean createKeepIlastikRunningModel() {
+        return new SettingsModelBoolean("keep_ilastik_running", false);
+    }
+
+    /**
+     * @return SettingsModelBoolean if results of already processed images should be reused
+     */
+    public static SettingsModelBoolean createUseResultCacheModel() {
+        return new SettingsModelBoolean("use_result_cache", false);
+    }
+
+    /**
+     * @return SettingsModelBoolean if only new and changed rows should be processed on re-execution
+     */
+    public static SettingsModelBoolean createIncrementalModel() {
+        return new SettingsModelBoolean("incremental_execution", false);
+    }
+
+    /**
+     * @return SettingsModelString for the candidate directories the images are staged in, empty uses the KNIME temp
+     *         directory
+     */
+    public static SettingsModelString createStagingDirectoriesModel() {
+        return new SettingsModelString("staging_directories", "");
+    }
+
+    /**
+     * @return SettingsModelBoolean if the staging directories should be recycled between executions
+     */
+    public static SettingsModelBoolean createRecycleStagingDirectoriesModel() {
+        return new SettingsModelBoolean("recycle_staging_directories", false);
+    }
+
+    /**
+     * @return SettingsModelString for the compression of the staged images
+     */
+    public static SettingsModelString createStagingCompressionModel() {
+        return new SettingsModelString("staging_compression", IlastikStagingCompression.NONE);
+    }
+
     /**
      * @return SettingsModelString for source image column.
      */
@@ -589,6 +1680,34 @@ public class IlastikHeadlessNodeModel<T extends RealType<T> & NativeType<T>> ext
 
     }
 
+    /**
+     * @return SettingsModelString for the output of the node, see {@link OutputModes}
+     */
+    public static SettingsModelString createOutputModeModel() {
+        return new SettingsModelString("output_mode", OutputModes.IMAGES);
+    }
+
+    /**
+     * @return SettingsModelString for where ilastik is run, see {@link ExecutorModes}
+     */
+    public static SettingsModelString createExecutorModel() {
+        return new SettingsModelString("executor", ExecutorModes.LOCAL);
+    }
+
+    /**
+     * @return SettingsModelString for the host:port addresses of the remote worker daemons
+     */
+    public static SettingsModelString createRemoteWorkersModel() {
+        return new SettingsModelString("remote_workers", "");
+    }
+
+    /**
+     * @return SettingsModelPassword for the shared token of the remote worker daemons
+     */
+    public static SettingsModelPassword createRemoteTokenModel() {
+        return new SettingsModelPassword("remote_token", "T}8#ilastik-worker", "");
+    }
+
     /**
      * @return SettingsModelBoolean if XYT output dimensions from ilastik should be changed to XYZC
      */
@@ -604,6 +1723,30 @@ public class IlastikHeadlessNodeModel<T extends RealType<T> & NativeType<T>> ext
         m_pathToIlastikProjectFileModel.saveSettingsTo(settings);
         m_srcImgCol.saveSettingsTo(settings);
         m_colCreationModeModel.saveSettingsTo(settings);
+        m_ilastikMaxMemory.saveSettingsTo(settings);
+        m_ilastikThreadCount.saveSettingsTo(settings);
+        m_outputDimensionsOverride.saveSettingsTo(settings);
+        m_batchSize.saveSettingsTo(settings);
+        m_parallelProcesses.saveSettingsTo(settings);
+        m_exchangeFormat.saveSettingsTo(settings);
+        m_tileSize.saveSettingsTo(settings);
+        m_tileHalo.saveSettingsTo(settings);
+        m_exportSource.saveSettingsTo(settings);
+        m_exportType.saveSettingsTo(settings);
+        m_exportNormalize.saveSettingsTo(settings);
+        m_exportFirstChannel.saveSettingsTo(settings);
+        m_exportChannelCount.saveSettingsTo(settings);
+        m_automaticResources.saveSettingsTo(settings);
+        m_keepIlastikRunning.saveSettingsTo(settings);
+        m_useResultCache.saveSettingsTo(settings);
+        m_incremental.saveSettingsTo(settings);
+        m_outputMode.saveSettingsTo(settings);
+        m_executor.saveSettingsTo(settings);
+        m_remoteWorkers.saveSettingsTo(settings);
+        m_remoteToken.saveSettingsTo(settings);
+        m_stagingDirectories.saveSettingsTo(settings);
+        m_recycleStagingDirectories.saveSettingsTo(settings);
+        m_stagingCompression.saveSettingsTo(settings);
     }
 
     /**
@@ -691,6 +1834,31 @@ public class IlastikHeadlessNodeModel<T extends RealType<T> & NativeType<T>> ext
                 throw e;
             }
         }
+
+        loadSettingsBackwardsCompatible(settings, m_batchSize, m_parallelProcesses, m_exchangeFormat,
+                                        m_keepIlastikRunning, m_useResultCache,
+                                        m_tileSize, m_tileHalo, m_automaticResources, m_stagingDirectories,
+                                        m_recycleStagingDirectories, m_incremental,
+                                        m_outputMode, m_exportSource, m_exportType, m_exportNormalize,
+                                        m_exportFirstChannel, m_exportChannelCount, m_stagingCompression,
+                                        m_executor, m_remoteWorkers, m_remoteToken);
+    }
+
+    /**
+     * Load settings which were added in later versions of this node. Missing settings keep their default value so
+     * that existing workflows behave as before.
+     *
+     * @param settings
+     * @param models
+     */
+    private static void loadSettingsBackwardsCompatible(final NodeSettingsRO settings, final SettingsModel... models) {
+        for (final SettingsModel model : models) {
+            try {
+                model.loadSettingsFrom(settings);
+            } catch (InvalidSettingsException e) {
+                // NB: Ignore missing settings for backwards compatibility.
+            }
+        }
     }
 
     /**
@@ -699,6 +1867,26 @@ public class IlastikHeadlessNodeModel<T extends RealType<T> & NativeType<T>> ext
     @Override
     protected void reset() {
         m_data = null;
+        // keep the workers alive for a while, e.g. for the next iteration of a loop
+        m_workerPool.closeLater();
+        // the results of the last execution are kept for the next one
+        if (m_resultIndex != null) {
+            m_resultIndex.discardPending();
+            // a reset node is saved without internals, the results are deleted with the node unless it is saved again
+            m_resultIndex.markUnsaved();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void onDispose() {
+        m_workerPool.close();
+        if (m_resultIndex != null) {
+            m_resultIndex.close();
+            m_resultIndex = null;
+        }
     }
 
     /**
@@ -707,7 +1895,7 @@ public class IlastikHeadlessNodeModel<T extends RealType<T> & NativeType<T>> ext
     @Override
     protected void loadInternals(final File nodeInternDir, final ExecutionMonitor exec)
             throws IOException, CanceledExecutionException {
-        // nothing to do here
+        m_resultIndex = IlastikResultIndex.load(nodeInternDir);
     }
 
     /**
@@ -716,7 +1904,9 @@ public class IlastikHeadlessNodeModel<T extends RealType<T> & NativeType<T>> ext
     @Override
     protected void saveInternals(final File nodeInternDir, final ExecutionMonitor exec)
             throws IOException, CanceledExecutionException {
-        // nothing to do here
+        if (m_resultIndex != null) {
+            m_resultIndex.save(nodeInternDir);
+        }
     }
 
     /**
@@ -763,20 +1953,26 @@ public class IlastikHeadlessNodeModel<T extends RealType<T> & NativeType<T>> ext
         long zSize = imgInDims[zIdx];
         long cSize = tSize / zSize;
 
-        for (int c = 0; c < cSize; c++) {
+        final Img<T> ztImg;
+        if (ilastikImg.numDimensions() == 3 && tIdx == 2) {
+            // XYT, the planes only have to be reordered
+            ztImg = remapPlanes(ilastikImg.getImg(), zSize, cSize);
+        } else {
+            for (int c = 0; c < cSize; c++) {
 
-            List<RandomAccessibleInterval<T>> zStack = new ArrayList<>();
-            for (int z = 0; z < zSize; z++) {
-                final IntervalView<T> hyperSlice = Views.hyperSlice(ilastikImg, tIdx, c + (z * cSize));
-                zStack.add(hyperSlice);
+                List<RandomAccessibleInterval<T>> zStack = new ArrayList<>();
+                for (int z = 0; z < zSize; z++) {
+                    final IntervalView<T> hyperSlice = Views.hyperSlice(ilastikImg, tIdx, c + (z * cSize));
+                    zStack.add(hyperSlice);
+                }
+
+                final RandomAccessibleInterval<T> zStackView = Views.stack(zStack);
+                ztStack.add(zStackView);
             }
+            final RandomAccessibleInterval<T> ztStackView = Views.stack(ztStack);
 
-            final RandomAccessibleInterval<T> zStackView = Views.stack(zStack);
-            ztStack.add(zStackView);
+            ztImg = ImgView.wrap(ztStackView, new ArrayImgFactory<T>());
         }
-        final RandomAccessibleInterval<T> ztStackView = Views.stack(ztStack);
-
-        Img<T> ztImg = ImgView.wrap(ztStackView, new ArrayImgFactory<T>());
 
         CalibratedAxis[] imgInAxes = new CalibratedAxis[imgInDims.length];
         imgInValue.getMetadata().axes(imgInAxes);
@@ -793,32 +1989,286 @@ public class IlastikHeadlessNodeModel<T extends RealType<T> & NativeType<T>> ext
         return imgOut;
     }
 
-    class IlastikCellFactory extends SingleCellFactory {
-        private ScifioImgSource imgOpener;
+    /**
+     * Reinterpret the planes of an XYT image as XYZC, plane t = c + z * cSize becomes plane (z, c). The planes of a
+     * {@link PlanarImg} are reused without copying, array and cell images are copied plane by plane from their storage
+     * arrays.
+     *
+     * @param img XYT image
+     * @param zSize number of z planes
+     * @param cSize number of channels
+     * @return the XYZC image
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <T extends RealType<T> & NativeType<T>> Img<T> remapPlanes(final Img<T> img, final long zSize,
+                                                                             final long cSize) {
+        final long[] dims = {img.dimension(0), img.dimension(1), zSize, cSize};
+        final T type = img.firstElement();
+
+        if (img instanceof PlanarImg) {
+            final PlanarImg<T, ?> planar = (PlanarImg<T, ?>)img;
+            final List planes = new ArrayList<>();
+            for (int c = 0; c < cSize; c++) {
+                for (int z = 0; z < zSize; z++) {
+                    planes.add(planar.getPlane((int)(c + z * cSize)));
+                }
+            }
+            final PlanarImg out = new PlanarImg(planes, dims, type.getEntitiesPerPixel());
+            out.setLinkedType(type.getNativeTypeFactory().createLinkedType(out));
+            return out;
+        }
+
+        final PlanarImg<T, ?> out = new PlanarImgFactory<T>().create(dims, type.createVariable());
+        final boolean isNative = type.getEntitiesPerPixel().getRatio() == 1;
+        final int planeSize = (int)(dims[0] * dims[1]);
+
+        if (isNative && img instanceof ArrayImg && ((ArrayImg)img).update(null) instanceof ArrayDataAccess) {
+            // bulk copy of the planes within the backing array
+            final Object src = ((ArrayDataAccess)((ArrayImg)img).update(null)).getCurrentStorageArray();
+            for (int c = 0; c < cSize; c++) {
+                for (int z = 0; z < zSize; z++) {
+                    final Object dst = ((ArrayDataAccess)out.getPlane((int)(z + c * zSize))).getCurrentStorageArray();
+                    System.arraycopy(src, (int)((c + z * cSize) * planeSize), dst, 0, planeSize);
+                }
+            }
+            return out;
+        }
+
+        if (isNative && img instanceof AbstractCellImg
+                && ((Cell<?>)((AbstractCellImg)img).getCells().firstElement()).getData() instanceof ArrayDataAccess) {
+            // bulk copy of the rows of each cell, a cell covering whole planes is copied with one call per plane
+            for (final Object o : ((AbstractCellImg)img).getCells()) {
+                final Cell<?> cell = (Cell<?>)o;
+                final Object src = ((ArrayDataAccess)cell.getData()).getCurrentStorageArray();
+                final int width = (int)cell.dimension(0);
+                final int height = (int)cell.dimension(1);
+                final boolean wholePlanes = width == dims[0] && height == dims[1];
+                for (int p = 0; p < cell.dimension(2); p++) {
+                    final long t = cell.min(2) + p;
+                    final Object dst = ((ArrayDataAccess)out.getPlane((int)(t / cSize + (t % cSize) * zSize)))
+                            .getCurrentStorageArray();
+                    if (wholePlanes) {
+                        System.arraycopy(src, p * planeSize, dst, 0, planeSize);
+                    } else {
+                        for (int y = 0; y < height; y++) {
+                            System.arraycopy(src, (p * height + y) * width, dst,
+                                             (int)((cell.min(1) + y) * dims[0] + cell.min(0)), width);
+                        }
+                    }
+                }
+            }
+            return out;
+        }
+
+        // other images and types without a flat storage array, e.g. bits, are copied pixel by pixel
+        for (int c = 0; c < cSize; c++) {
+            for (int z = 0; z < zSize; z++) {
+                final Cursor<T> in = Views.flatIterable(Views.hyperSlice(img, 2, c + z * cSize)).cursor();
+                final Cursor<T> outCursor =
+                        Views.flatIterable(Views.hyperSlice(Views.hyperSlice(out, 3, c), 2, z)).cursor();
+                while (in.hasNext()) {
+                    outCursor.next().set(in.next());
+                }
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Creates the output table once its spec is known, i.e. when the first row is added or the table is closed.
+     */
+    private static final class LazyDataContainer implements RowConsumer {
+
+        private final Supplier<DataTableSpec> m_spec;
+
+        private final ExecutionContext m_exec;
+
+        private BufferedDataContainer m_container;
+
+        LazyDataContainer(final Supplier<DataTableSpec> spec, final ExecutionContext exec) {
+            m_spec = spec;
+            m_exec = exec;
+        }
+
+        @Override
+        public void push(final DataRow row) {
+            if (m_container == null) {
+                m_container = m_exec.createDataContainer(m_spec.get());
+            }
+            m_container.addRowToTable(row);
+        }
+
+        BufferedDataTable close() {
+            if (m_container == null) {
+                m_container = m_exec.createDataContainer(m_spec.get());
+            }
+            m_container.close();
+            return m_container.getTable();
+        }
+    }
+
+    /**
+     * A batch which is staged or processed by ilastik while the previous batches are read back.
+     */
+    private static final class PendingBatch {
+
+        private final IlastikBatch m_batch;
+
+        private final Future<?> m_processing;
+
+        PendingBatch(final IlastikBatch batch, final Future<?> processing) {
+            m_batch = batch;
+            m_processing = processing;
+        }
+
+        IlastikBatch getBatch() {
+            return m_batch;
+        }
 
         /**
-         * @param newColSpec
+         * @return completes once the batch is staged and processed by ilastik
          */
-        public IlastikCellFactory(final DataColumnSpec newColSpec) {
-            super(newColSpec);
-            imgOpener = new ScifioImgSource();
+        Future<?> getProcessing() {
+            return m_processing;
+        }
+    }
+
+    /**
+     * A tile of an image which has not been assigned to a batch yet.
+     */
+    private static final class PendingTile {
+
+        private final DataRow m_row;
+
+        private final IlastikTiling.Tile m_tile;
+
+        PendingTile(final DataRow row, final IlastikTiling.Tile tile) {
+            m_row = row;
+            m_tile = tile;
+        }
+
+        DataRow getRow() {
+            return m_row;
+        }
+
+        IlastikTiling.Tile getTile() {
+            return m_tile;
+        }
+    }
+
+    /**
+     * Receives the output rows, either a table or a stream.
+     */
+    interface RowConsumer {
+
+        void push(DataRow row) throws Exception;
+    }
+
+    /**
+     * Iterator over streamed input rows.
+     */
+    private static final class RowInputIterator implements Iterator<DataRow> {
+
+        private final RowInput m_input;
+
+        private DataRow m_next;
+
+        RowInputIterator(final RowInput input) {
+            m_input = input;
         }
 
         @Override
-        // Get the scores weighted by the exploration factor
-        public DataCell getCell(final DataRow row) {
-            DataCell cell;
-            try {
-                cell = readImageForRow(row, imgOpener);
+        public boolean hasNext() {
+            if (m_next == null) {
+                try {
+                    m_next = m_input.poll();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for input rows.", e);
+                }
+            }
+            return m_next != null;
+        }
+
+        @Override
+        public DataRow next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final DataRow next = m_next;
+            m_next = null;
+            return next;
+        }
+    }
+
+    /**
+     * Image reader together with the cell factory storing the images it reads. Neither is thread-safe, so every
+     * thread reading results uses its own instance.
+     */
+    private static final class ResultReader implements AutoCloseable {
+
+        private final IlastikImageReader m_imageReader;
+
+        private final ImgPlusCellFactory m_cellFactory;
+
+        ResultReader(final IlastikImageReader imageReader, final ImgPlusCellFactory cellFactory) {
+            m_imageReader = imageReader;
+            m_cellFactory = cellFactory;
+        }
+
+        IlastikImageReader getImageReader() {
+            return m_imageReader;
+        }
+
+        ImgPlusCellFactory getCellFactory() {
+            return m_cellFactory;
+        }
 
-            } catch (Exception e) {
-                throw new IllegalStateException("Error during execution: " + e, e);
+        @Override
+        public void close() {
+            m_imageReader.close();
+        }
+    }
+
+    /**
+     * Iterator which allows to look at the next element without consuming it.
+     */
+    static final class PeekingIterator<E> implements Iterator<E> {
+        private final Iterator<E> m_iterator;
+
+        private E m_next;
+
+        private boolean m_hasNext;
+
+        PeekingIterator(final Iterator<E> iterator) {
+            m_iterator = iterator;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return m_hasNext || m_iterator.hasNext();
+        }
+
+        @Override
+        public E next() {
+            if (!m_hasNext) {
+                return m_iterator.next();
             }
-            return cell;
+            m_hasNext = false;
+            final E next = m_next;
+            m_next = null;
+            return next;
         }
 
-        public void closeImgOpener() {
-            imgOpener.close();
+        /**
+         * @return the next element without consuming it
+         */
+        E peek() {
+            if (!m_hasNext) {
+                m_next = m_iterator.next();
+                m_hasNext = true;
+            }
+            return m_next;
         }
     }
 
@@ -841,6 +2291,19 @@ public class IlastikHeadlessNodeModel<T extends RealType<T> & NativeType<T>> ext
 
     }
 
+    static class WarnLogService implements DirectedLogService {
+        @Override
+        public void log(final Object arg0) {
+            KNIPGateway.log().warn(arg0);
+        }
+
+        @Override
+        public void log(final Object arg0, final Throwable arg1) {
+            KNIPGateway.log().warn(arg0);
+        }
+
+    }
+
     static class DebugLogService implements DirectedLogService {
         @Override
         public void log(final Object arg0) {
@@ -857,6 +2320,8 @@ public class IlastikHeadlessNodeModel<T extends RealType<T> & NativeType<T>> ext
     static class DirectedLogServiceFactory {
         private static ErrorLogService m_errorLogService;
 
+        private static WarnLogService m_warnLogService;
+
         private static DebugLogService m_debugLogService;
 
         public static ErrorLogService error() {
@@ -866,6 +2331,13 @@ public class IlastikHeadlessNodeModel<T extends RealType<T> & NativeType<T>> ext
             return m_errorLogService;
         }
 
+        public static WarnLogService warn() {
+            if (m_warnLogService == null) {
+                m_warnLogService = new WarnLogService();
+            }
+            return m_warnLogService;
+        }
+
         public static DebugLogService debug() {
             if (m_debugLogService == null) {
                 m_debugLogService = new DebugLogService();
@@ -0,0 +1,198 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2015
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ *
+ */
+package org.knime.knip.ilastik.nodes.headless;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.ExecutionMonitor;
+import org.knime.knip.core.KNIPGateway;
+import org.knime.knip.ilastik.nodes.IlastikPreferencePage;
+import org.knime.knip.ilastik.nodes.headless.IlastikHeadlessNodeModel.DirectedLogServiceFactory;
+
+/**
+ * Runs ilastik on the KNIME host, either as a new headless process per batch or with a worker of the node which keeps
+ * the project loaded.
+ *
+ * @author Andreas Graumann, University of Konstanz
+ */
+final class IlastikLocalExecutor implements IlastikExecutor {
+
+    private static final String OUTPUT_FILENAME_ARG = "--output_filename_format=";
+
+    private static final String TABLE_FILENAME_ARG = "--table_filename=";
+
+    private final IlastikWorkerPool m_workerPool;
+
+    /**
+     * @param workerPool the workers of the node, null if ilastik is started for each batch
+     */
+    IlastikLocalExecutor(final IlastikWorkerPool workerPool) {
+        m_workerPool = workerPool;
+    }
+
+    @Override
+    public void execute(final Job job, final IlastikResultWatcher watcher, final ExecutionMonitor exec)
+            throws IOException, InterruptedException, CanceledExecutionException {
+        if (m_workerPool != null) {
+            executeWithWorker(job, watcher, exec);
+            return;
+        }
+
+        // DO NOT TOUCH THIS ORDER!
+        final List<String> command = new ArrayList<>();
+        command.add(IlastikPreferencePage.getPath());
+        command.add("--headless");
+        command.add("--project=".concat(job.getProject()));
+        command.addAll(job.getExportArgs());
+        if (job.getInputAxes() != null) {
+            command.add("--input_axes=" + job.getInputAxes());
+        }
+        command.addAll(job.getInputs());
+
+        KNIPGateway.log().debug("Executing ilastik with " + String.join(", ", command));
+
+        // build process with project and images
+        ProcessBuilder pB = new ProcessBuilder(command);
+
+        // limit cpu + memory usage
+        final Map<String, String> env = pB.environment();
+        env.put("LAZYFLOW_THREADS", String.valueOf(job.getThreadCount()));
+        env.put("LAZYFLOW_TOTAL_RAM_MB", String.valueOf(job.getMaxMemory()));
+
+        // run ilastik, its startup is part of the inference
+        final IlastikMetrics.Stopwatch stopwatch = new IlastikMetrics.Stopwatch();
+        Process p = pB.start();
+
+        // write ilastik output to knime console
+        final IlastikLogPump logPump = new IlastikLogPump();
+        logPump.pump(p.getInputStream(), DirectedLogServiceFactory.debug());
+        logPump.pump(p.getErrorStream(), DirectedLogServiceFactory.error());
+
+        try {
+            while (!p.waitFor(500, TimeUnit.MILLISECONDS)) {
+                exec.checkCanceled();
+                watcher.poll();
+            }
+        } catch (CanceledExecutionException | InterruptedException e) {
+            KNIPGateway.log().error("Execution canceled, closing Ilastik now.");
+            p.destroy();
+            throw e;
+        } finally {
+            stopwatch.stop(job.getMetrics(), IlastikMetrics.Phase.INFERENCE);
+        }
+
+        // 0 indicates successful execution
+        if (p.exitValue() != 0) {
+            logPump.awaitEnd();
+            throw new IllegalStateException("Execution of ilastik was not successful (exit code " + p.exitValue()
+                    + ")." + logPump.describeTail());
+        }
+    }
+
+    /**
+     * Process the inputs with an ilastik worker which keeps the project loaded. Idle workers with the same
+     * configuration are reused, otherwise a new one is started.
+     */
+    private void executeWithWorker(final Job job, final IlastikResultWatcher watcher, final ExecutionMonitor exec)
+            throws IOException, InterruptedException, CanceledExecutionException {
+        final String key =
+                createWorkerKey(job.getProject(), job.getThreadCount(), job.getMaxMemory(), job.getExportArgs());
+
+        IlastikWorker worker = m_workerPool.acquire(key);
+        if (worker == null) {
+            final IlastikMetrics.Stopwatch stopwatch = new IlastikMetrics.Stopwatch();
+            worker = IlastikWorker.start(key, job.getProject(), job.getThreadCount(), job.getMaxMemory(), exec);
+            stopwatch.stop(job.getMetrics(), IlastikMetrics.Phase.STARTUP);
+        }
+        final IlastikMetrics.Stopwatch stopwatch = new IlastikMetrics.Stopwatch();
+        try {
+            worker.process(job.getInputs(), job.getExportArgs(), job.getInputAxes(), watcher::poll, exec);
+        } finally {
+            m_workerPool.release(worker);
+            stopwatch.stop(job.getMetrics(), IlastikMetrics.Phase.INFERENCE);
+        }
+    }
+
+    /**
+     * @return identifies the processes of workers, changes if the project file is modified
+     */
+    static String createWorkerConfiguration(final String project, final int threadCount, final int maxMemory) {
+        return IlastikPreferencePage.getPythonPath() + "|" + project + "|" + new File(project).lastModified() + "|"
+                + threadCount + "|" + maxMemory + "|";
+    }
+
+    /**
+     * @param exportArgs the export arguments of a job
+     * @return a key identifying workers which can be reused, the configuration of the worker processes followed by
+     *         the format and export arguments, without the output locations which change with every batch
+     */
+    static String createWorkerKey(final String project, final int threadCount, final int maxMemory,
+                                  final List<String> exportArgs) {
+        final StringBuilder key = new StringBuilder(createWorkerConfiguration(project, threadCount, maxMemory));
+        for (final String arg : exportArgs) {
+            if (arg.startsWith(OUTPUT_FILENAME_ARG) || arg.startsWith(TABLE_FILENAME_ARG)) {
+                key.append(' ').append(arg, 0, arg.indexOf('=') + 1);
+            } else {
+                key.append(' ').append(arg);
+            }
+        }
+        return key.toString();
+    }
+
+    @Override
+    public void close() {
+        // NB: the workers are kept by the node
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2015
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ *
+ */
+package org.knime.knip.ilastik.nodes.headless;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.knime.knip.core.KNIPGateway;
+import org.knime.knip.ilastik.nodes.headless.IlastikHeadlessNodeModel.DirectedLogService;
+import org.knime.knip.ilastik.nodes.headless.IlastikHeadlessNodeModel.DirectedLogServiceFactory;
+
+/**
+ * Forwards the output of an ilastik process to the KNIME log. The streams are read by a shared pool of daemon
+ * threads, which classify the level of each line by its prefix and hand it to a bounded queue. Each open stream
+ * occupies a thread of the pool, as the pipes of a process can only be read blocking. The queue is drained into the
+ * log by another thread of the pool, so that a slow log does not block ilastik on a full pipe. Lines which don't fit
+ * into the queue are dropped and counted. Each level is limited to a number of lines per second over all ilastik
+ * processes, so that parallel processes can't flood the log; suppressed lines are summarized once per second. The
+ * last lines of the output are kept in a ring buffer for the error message if ilastik fails.
+ *
+ * @author Andreas Graumann, University of Konstanz
+ */
+final class IlastikLogPump {
+
+    private static final int MAX_LINES_PER_SECOND = 100;
+
+    private static final int TAIL_LINES = 20;
+
+    private static final int QUEUE_CAPACITY = 1000;
+
+    /**
+     * time after which an idle log thread returns to the pool
+     */
+    private static final long IDLE_TIMEOUT_MS = 1000;
+
+    private static final long STREAM_END_TIMEOUT_MS = 5000;
+
+    private static final ExecutorService PUMPS = Executors.newCachedThreadPool(r -> {
+        final Thread t = new Thread(r, "Ilastik log pump");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Limits the lines of a level to {@link #MAX_LINES_PER_SECOND}.
+     */
+    private static final class RateLimit {
+
+        private long m_windowStart;
+
+        private int m_lines;
+
+        private int m_suppressed;
+
+        /**
+         * @param now the current time in milliseconds
+         * @return the number of lines suppressed in the last window if it is over, 0 otherwise
+         */
+        int nextWindow(final long now) {
+            if (now - m_windowStart < 1000) {
+                return 0;
+            }
+            final int suppressed = m_suppressed;
+            m_windowStart = now;
+            m_lines = 0;
+            m_suppressed = 0;
+            return suppressed;
+        }
+
+        boolean tryAcquire() {
+            if (m_lines < MAX_LINES_PER_SECOND) {
+                m_lines++;
+                return true;
+            }
+            m_suppressed++;
+            return false;
+        }
+
+        int takeSuppressed() {
+            final int suppressed = m_suppressed;
+            m_suppressed = 0;
+            return suppressed;
+        }
+    }
+
+    /**
+     * A line of the output and the logger of its level.
+     */
+    private static final class Line {
+
+        private final String m_text;
+
+        private final DirectedLogService m_logger;
+
+        Line(final String text, final DirectedLogService logger) {
+            m_text = text;
+            m_logger = logger;
+        }
+    }
+
+    /**
+     * the limits of the levels, shared by all pumps
+     */
+    private static final Map<DirectedLogService, RateLimit> LIMITS = new IdentityHashMap<>();
+
+    private final Deque<String> m_tail = new ArrayDeque<>(TAIL_LINES);
+
+    private final List<Future<?>> m_streams = new ArrayList<>();
+
+    private final BlockingQueue<Line> m_queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    private final AtomicInteger m_dropped = new AtomicInteger();
+
+    private final AtomicBoolean m_draining = new AtomicBoolean();
+
+    /**
+     * Forward the lines of a stream until it ends.
+     *
+     * @param in output of the ilastik process
+     * @param defaultLogger logs the lines which have no level of their own
+     */
+    void pump(final InputStream in, final DirectedLogService defaultLogger) {
+        m_streams.add(PUMPS.submit(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, Charset.defaultCharset()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    log(line, defaultLogger);
+                }
+            } catch (IOException e) {
+                KNIPGateway.log().debug("Could not read ilastik output: " + e.getMessage());
+            }
+        }));
+    }
+
+    /**
+     * Hand a single line to the log thread. The line is dropped if the queue is full.
+     *
+     * @param line a line of the ilastik output
+     * @param defaultLogger logs the line if it has no level of its own
+     */
+    void log(final String line, final DirectedLogService defaultLogger) {
+        synchronized (m_tail) {
+            if (m_tail.size() == TAIL_LINES) {
+                m_tail.removeFirst();
+            }
+            m_tail.addLast(line);
+        }
+
+        if (!m_queue.offer(new Line(line, levelOf(line, defaultLogger)))) {
+            m_dropped.incrementAndGet();
+        }
+        if (m_draining.compareAndSet(false, true)) {
+            PUMPS.execute(this::drain);
+        }
+    }
+
+    /**
+     * @return the logger of the level given by the prefix of the line, e.g. "WARNING lazyflow..." or
+     *         "WARNING:root:...", the default logger if the line has no prefix
+     */
+    private static DirectedLogService levelOf(final String line, final DirectedLogService defaultLogger) {
+        int end = 0;
+        while (end < line.length() && Character.isUpperCase(line.charAt(end))) {
+            end++;
+        }
+        switch (line.substring(0, end)) {
+            case "ERROR":
+            case "CRITICAL":
+                return DirectedLogServiceFactory.error();
+            case "WARNING":
+                return DirectedLogServiceFactory.warn();
+            case "INFO":
+            case "DEBUG":
+                return DirectedLogServiceFactory.debug();
+            default:
+                return defaultLogger;
+        }
+    }
+
+    /**
+     * Forward the queued lines to the log until the queue stays empty for {@link #IDLE_TIMEOUT_MS}.
+     */
+    private void drain() {
+        try {
+            while (true) {
+                final Line line = m_queue.poll(IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if (line != null) {
+                    write(line);
+                    continue;
+                }
+                flushSuppressed();
+                m_draining.set(false);
+                // NB: a line may have been queued after the poll timed out, without starting another log thread
+                if (m_queue.isEmpty() || !m_draining.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            m_draining.set(false);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Forward a single line, if the limit of its level is not exceeded.
+     */
+    private void write(final Line line) {
+        final int dropped = m_dropped.getAndSet(0);
+        if (dropped > 0) {
+            line.m_logger.log(describeDropped(dropped));
+        }
+
+        synchronized (LIMITS) {
+            final RateLimit limit = LIMITS.computeIfAbsent(line.m_logger, l -> new RateLimit());
+            final int suppressed = limit.nextWindow(System.currentTimeMillis());
+            if (suppressed > 0) {
+                line.m_logger.log(suppressed + " lines of ilastik output suppressed");
+            }
+            if (limit.tryAcquire()) {
+                line.m_logger.log(line.m_text);
+            }
+        }
+    }
+
+    private static String describeDropped(final int dropped) {
+        return dropped + " lines of ilastik output dropped, the log could not keep up";
+    }
+
+    private void flushSuppressed() {
+        final int dropped = m_dropped.getAndSet(0);
+        if (dropped > 0) {
+            DirectedLogServiceFactory.debug().log(describeDropped(dropped));
+        }
+        synchronized (LIMITS) {
+            for (final Map.Entry<DirectedLogService, RateLimit> entry : LIMITS.entrySet()) {
+                final int suppressed = entry.getValue().takeSuppressed();
+                if (suppressed > 0) {
+                    entry.getKey().log(suppressed + " lines of ilastik output suppressed");
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait until the pumped streams have ended, e.g. after the process terminated, so that the tail is complete.
+     *
+     * @throws InterruptedException
+     */
+    void awaitEnd() throws InterruptedException {
+        for (final Future<?> stream : m_streams) {
+            try {
+                stream.get(STREAM_END_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                // NB: the tail is incomplete
+            }
+        }
+    }
+
+    /**
+     * @return the last lines of the output for an error message, empty if there was none
+     */
+    String describeTail() {
+        synchronized (m_tail) {
+            if (m_tail.isEmpty()) {
+                return "";
+            }
+            return "\nLast lines of the ilastik output:\n" + String.join("\n", m_tail);
+        }
+    }
+}
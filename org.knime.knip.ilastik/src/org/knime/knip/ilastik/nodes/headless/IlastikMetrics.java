@@ -0,0 +1,257 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2015
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ *
+ */
+package org.knime.knip.ilastik.nodes.headless;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataColumnSpec;
+import org.knime.core.data.DataColumnSpecCreator;
+import org.knime.core.data.DataRow;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.DataType;
+import org.knime.core.data.def.DefaultRow;
+import org.knime.core.data.def.DoubleCell;
+import org.knime.core.data.def.IntCell;
+import org.knime.core.data.def.LongCell;
+import org.knime.core.data.def.StringCell;
+
+/**
+ * Wall and CPU time of the phases of an execution, the bytes staged and read back and the number of processed images.
+ * The numbers are recorded per image (or tile) and per batch and summed up for the whole execution.
+ * <p>
+ * The CPU time is the time of the KNIME threads, the CPU time of the ilastik processes is not known. If ilastik is
+ * started for each batch, its startup is part of the inference time.
+ *
+ * @author Andreas Graumann, University of Konstanz
+ */
+final class IlastikMetrics {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private static final double NANOS_PER_MS = 1e6;
+
+    /**
+     * Phases of the processing of a batch.
+     */
+    enum Phase {
+            STAGING("staging", true), STARTUP("startup", false), INFERENCE("inference", false),
+            READBACK("readback", true), OVERRIDE("override", true);
+
+        private final String m_name;
+
+        private final boolean m_cpuTime;
+
+        Phase(final String name, final boolean cpuTime) {
+            m_name = name;
+            m_cpuTime = cpuTime;
+        }
+
+        String getName() {
+            return m_name;
+        }
+
+        /**
+         * @return whether the phase runs in KNIME threads and has a CPU time
+         */
+        boolean hasCpuTime() {
+            return m_cpuTime;
+        }
+    }
+
+    /**
+     * Measures the wall and CPU time of the current thread from its creation.
+     */
+    static final class Stopwatch {
+
+        private final long m_wall = System.nanoTime();
+
+        private final long m_cpu = cpuTime();
+
+        /**
+         * Add the time since the creation of this stopwatch to a phase.
+         *
+         * @param record the record
+         * @param phase the phase
+         */
+        void stop(final Record record, final Phase phase) {
+            record.add(phase, System.nanoTime() - m_wall, phase.hasCpuTime() ? cpuTime() - m_cpu : 0);
+        }
+    }
+
+    /**
+     * The numbers of a single image, batch or execution.
+     */
+    static final class Record {
+
+        private final long[] m_wallNanos = new long[Phase.values().length];
+
+        private final long[] m_cpuNanos = new long[Phase.values().length];
+
+        private long m_bytesStaged;
+
+        private long m_bytesRead;
+
+        private int m_images;
+
+        synchronized void add(final Phase phase, final long wallNanos, final long cpuNanos) {
+            m_wallNanos[phase.ordinal()] += wallNanos;
+            m_cpuNanos[phase.ordinal()] += cpuNanos;
+        }
+
+        synchronized void addBytesStaged(final long bytes) {
+            m_bytesStaged += bytes;
+        }
+
+        synchronized void addBytesRead(final long bytes) {
+            m_bytesRead += bytes;
+        }
+
+        synchronized void addImages(final int images) {
+            m_images += images;
+        }
+
+        synchronized void add(final Record record) {
+            synchronized (record) {
+                for (int p = 0; p < m_wallNanos.length; p++) {
+                    m_wallNanos[p] += record.m_wallNanos[p];
+                    m_cpuNanos[p] += record.m_cpuNanos[p];
+                }
+                m_bytesStaged += record.m_bytesStaged;
+                m_bytesRead += record.m_bytesRead;
+                m_images += record.m_images;
+            }
+        }
+
+        synchronized double getWallTimeMs(final Phase phase) {
+            return m_wallNanos[phase.ordinal()] / NANOS_PER_MS;
+        }
+
+        synchronized double getCpuTimeMs(final Phase phase) {
+            return m_cpuNanos[phase.ordinal()] / NANOS_PER_MS;
+        }
+
+        synchronized long getBytesStaged() {
+            return m_bytesStaged;
+        }
+
+        synchronized long getBytesRead() {
+            return m_bytesRead;
+        }
+
+        synchronized int getImages() {
+            return m_images;
+        }
+    }
+
+    private IlastikMetrics() {
+        // NB Util Class
+    }
+
+    /**
+     * @return the CPU time of the current thread in nanoseconds, 0 if not supported
+     */
+    static long cpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : 0;
+    }
+
+    /**
+     * @return the spec of the metrics table, which has one row per image or tile and one per batch
+     */
+    static DataTableSpec createSpec() {
+        final List<DataColumnSpec> columns = new ArrayList<>();
+        columns.add(new DataColumnSpecCreator("Level", StringCell.TYPE).createSpec());
+        columns.add(new DataColumnSpecCreator("Batch", IntCell.TYPE).createSpec());
+        columns.add(new DataColumnSpecCreator("Row ID", StringCell.TYPE).createSpec());
+        columns.add(new DataColumnSpecCreator("Images", IntCell.TYPE).createSpec());
+        for (final Phase phase : Phase.values()) {
+            final String name = capitalize(phase.getName());
+            columns.add(new DataColumnSpecCreator(name + " wall time (ms)", DoubleCell.TYPE).createSpec());
+            if (phase.hasCpuTime()) {
+                columns.add(new DataColumnSpecCreator(name + " CPU time (ms)", DoubleCell.TYPE).createSpec());
+            }
+        }
+        columns.add(new DataColumnSpecCreator("Bytes staged", LongCell.TYPE).createSpec());
+        columns.add(new DataColumnSpecCreator("Bytes read back", LongCell.TYPE).createSpec());
+        return new DataTableSpec(columns.toArray(new DataColumnSpec[columns.size()]));
+    }
+
+    /**
+     * @param key key of the row
+     * @param level "Image" or "Batch"
+     * @param batch index of the batch
+     * @param rowId the input row of an image, null for a batch
+     * @param record the numbers
+     * @return a row of the metrics table
+     */
+    static DataRow createRow(final String key, final String level, final int batch, final String rowId,
+                             final Record record) {
+        final List<DataCell> cells = new ArrayList<>();
+        cells.add(new StringCell(level));
+        cells.add(new IntCell(batch));
+        cells.add(rowId == null ? DataType.getMissingCell() : new StringCell(rowId));
+        cells.add(new IntCell(record.getImages()));
+        for (final Phase phase : Phase.values()) {
+            cells.add(new DoubleCell(record.getWallTimeMs(phase)));
+            if (phase.hasCpuTime()) {
+                cells.add(new DoubleCell(record.getCpuTimeMs(phase)));
+            }
+        }
+        cells.add(new LongCell(record.getBytesStaged()));
+        cells.add(new LongCell(record.getBytesRead()));
+        return new DefaultRow(key, cells);
+    }
+
+    private static String capitalize(final String name) {
+        return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2015
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ *
+ */
+package org.knime.knip.ilastik.nodes.headless;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataColumnSpec;
+import org.knime.core.data.DataColumnSpecCreator;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.DataType;
+import org.knime.core.data.MissingCell;
+import org.knime.core.data.RowKey;
+import org.knime.core.data.def.DefaultRow;
+import org.knime.core.data.def.DoubleCell;
+import org.knime.core.data.def.LongCell;
+import org.knime.core.data.def.StringCell;
+
+/**
+ * Reads the object tables ilastik exports for object classification projects, i.e. the features and predictions of
+ * each object of an image. The tables are CSV files which are parsed line by line. The columns are taken from the
+ * header of the first table, their types from all values of the first table with objects: ids are read as longs and
+ * other numbers as doubles unless a value doesn't fit, columns with other values are read as strings.
+ *
+ * @author Andreas Graumann, University of Konstanz
+ */
+final class IlastikObjectTable {
+
+    private static final String TABLE_NAME = "objects";
+
+    private static final String SOURCE_COL_NAME = "Source Row ID";
+
+    /**
+     * columns of ilastik which hold ids, all other numeric columns are read as doubles
+     */
+    private static final Set<String> ID_COLUMNS = new HashSet<>(
+            Arrays.asList("object_id", "timestep", "labelimage_oid", "track_id", "lineage_id", "parent_track_id"));
+
+    private List<String> m_header;
+
+    private DataTableSpec m_spec;
+
+    /**
+     * @param directory the directory of a batch
+     * @return the ilastik command line argument which exports the object tables of a batch
+     */
+    static String getTableArgument(final String directory) {
+        return "--table_filename=" + directory + TABLE_NAME + ".csv";
+    }
+
+    /**
+     * @param entry an entry of a batch
+     * @return the location of the object table of the entry, ilastik appends the nickname of the input file
+     */
+    static File getTableFile(final IlastikBatch.Entry entry) {
+        final File input = new File(entry.getInputFile());
+        final String name = input.getName();
+        final int dot = name.lastIndexOf('.');
+        return new File(input.getParentFile(), TABLE_NAME + "-" + (dot < 0 ? name : name.substring(0, dot)) + ".csv");
+    }
+
+    /**
+     * @return the spec of the tables read so far, only the source column if none has been read
+     */
+    synchronized DataTableSpec getSpec() {
+        if (m_spec == null) {
+            final List<String> header = m_header == null ? new ArrayList<>() : m_header;
+            return createSpec(header, createTypes(header));
+        }
+        return m_spec;
+    }
+
+    /**
+     * Parse an object table and output a row per object as soon as it is parsed. If no table has had objects yet,
+     * the table is read twice, first to derive the types of the columns from all its values.
+     *
+     * @param sourceKey the key of the row of the image the objects were found in
+     * @param file the table exported by ilastik
+     * @param output receives one row per object
+     * @throws IOException if the file can't be read, has other columns than the previous tables or a value which
+     *             doesn't fit the type of its column
+     * @throws Exception if a row can't be output
+     */
+    void read(final RowKey sourceKey, final File file, final IlastikHeadlessNodeModel.RowConsumer output)
+            throws Exception {
+        final DataTableSpec spec;
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            final String line = reader.readLine();
+            if (line == null) {
+                // no objects and no header
+                return;
+            }
+            final List<String> header = parseLine(line);
+            checkHeader(header, file);
+            spec = getSpec(header, reader);
+        }
+        if (spec == null) {
+            // no objects
+            return;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            // the header has been checked
+            reader.readLine();
+            long index = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                final List<String> values = parseLine(line);
+                final DataCell[] cells = new DataCell[spec.getNumColumns()];
+                cells[0] = new StringCell(sourceKey.getString());
+                for (int i = 1; i < cells.length; i++) {
+                    final String value = i - 1 < values.size() ? values.get(i - 1) : "";
+                    cells[i] = createCell(spec.getColumnSpec(i), value, file);
+                }
+                output.push(new DefaultRow(new RowKey(sourceKey.getString() + "_" + index++), cells));
+            }
+        }
+    }
+
+    private synchronized void checkHeader(final List<String> header, final File file) throws IOException {
+        if (m_header == null) {
+            m_header = header;
+        } else if (!m_header.equals(header)) {
+            throw new IOException("The object table " + file + " has other columns than the previous tables: "
+                    + header + " instead of " + m_header);
+        }
+    }
+
+    /**
+     * @param header the columns of a table
+     * @param rows the rows of the table after its header
+     * @return the spec of the tables, derived from the values of the given rows if no table has had rows yet, null
+     *         if there are none
+     */
+    private synchronized DataTableSpec getSpec(final List<String> header, final BufferedReader rows)
+            throws IOException {
+        if (m_spec == null) {
+            final DataType[] types = createTypes(header);
+            boolean empty = true;
+            String line;
+            while ((line = rows.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                empty = false;
+                final List<String> values = parseLine(line);
+                for (int i = 0; i < types.length && i < values.size(); i++) {
+                    types[i] = widen(types[i], values.get(i));
+                }
+            }
+            if (empty) {
+                return null;
+            }
+            m_spec = createSpec(header, types);
+        }
+        return m_spec;
+    }
+
+    /**
+     * @return the narrowest types of the columns, longs for the ids and doubles for all others
+     */
+    private static DataType[] createTypes(final List<String> header) {
+        final DataType[] types = new DataType[header.size()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = ID_COLUMNS.contains(header.get(i)) ? LongCell.TYPE : DoubleCell.TYPE;
+        }
+        return types;
+    }
+
+    /**
+     * @return the type, widened to doubles or strings if the value doesn't fit
+     */
+    private static DataType widen(final DataType type, final String value) {
+        if (value.isEmpty() || fits(type, value)) {
+            return type;
+        }
+        return type.equals(LongCell.TYPE) && parseDouble(value) != null ? DoubleCell.TYPE : StringCell.TYPE;
+    }
+
+    private static boolean fits(final DataType type, final String value) {
+        if (type.equals(LongCell.TYPE)) {
+            return parseLong(value) != null;
+        }
+        if (type.equals(DoubleCell.TYPE)) {
+            return parseDouble(value) != null;
+        }
+        return true;
+    }
+
+    private static DataTableSpec createSpec(final List<String> header, final DataType[] types) {
+        final Set<String> names = new HashSet<>();
+        names.add(SOURCE_COL_NAME);
+        final DataColumnSpec[] columns = new DataColumnSpec[header.size() + 1];
+        columns[0] = new DataColumnSpecCreator(SOURCE_COL_NAME, StringCell.TYPE).createSpec();
+        for (int i = 0; i < header.size(); i++) {
+            // the column names have to be unique in the KNIME table
+            final String base = header.get(i).isEmpty() ? "Column " + i : header.get(i);
+            String name = base;
+            for (int suffix = 1; !names.add(name); suffix++) {
+                name = base + " (#" + suffix + ")";
+            }
+            columns[i + 1] = new DataColumnSpecCreator(name, types[i]).createSpec();
+        }
+        return new DataTableSpec(columns);
+    }
+
+    /**
+     * @throws IOException if the value doesn't fit the type of the column
+     */
+    private static DataCell createCell(final DataColumnSpec column, final String value, final File file)
+            throws IOException {
+        if (value.isEmpty()) {
+            return new MissingCell(null);
+        }
+        final DataType type = column.getType();
+        if (!fits(type, value)) {
+            throw new IOException("The value \"" + value + "\" of the column \"" + column.getName()
+                    + "\" in the object table " + file + " doesn't fit the type " + type
+                    + " of the column, which was derived from the first object table.");
+        }
+        if (type.equals(LongCell.TYPE)) {
+            return new LongCell(parseLong(value));
+        }
+        if (type.equals(DoubleCell.TYPE)) {
+            return new DoubleCell(parseDouble(value));
+        }
+        return new StringCell(value);
+    }
+
+    private static Long parseLong(final String value) {
+        try {
+            return Long.valueOf(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static Double parseDouble(final String value) {
+        // numpy writes nan and inf in lower case
+        switch (value.toLowerCase()) {
+            case "nan":
+                return Double.NaN;
+            case "inf":
+                return Double.POSITIVE_INFINITY;
+            case "-inf":
+                return Double.NEGATIVE_INFINITY;
+            default:
+                try {
+                    return Double.valueOf(value);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+        }
+    }
+
+    /**
+     * Split a line of a CSV file written with Python's csv module: fields are separated by commas and may be quoted,
+     * quotes in quoted fields are doubled.
+     */
+    static List<String> parseLine(final String line) {
+        final List<String> fields = new ArrayList<>();
+        final StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            final char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    field.append(c);
+                } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString().trim());
+        return fields;
+    }
+}
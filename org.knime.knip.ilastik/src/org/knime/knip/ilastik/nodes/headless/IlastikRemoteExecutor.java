@@ -0,0 +1,269 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2015
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ *
+ */
+package org.knime.knip.ilastik.nodes.headless;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.ExecutionMonitor;
+import org.knime.core.node.InvalidSettingsException;
+import org.knime.knip.core.KNIPGateway;
+import org.knime.knip.ilastik.nodes.headless.IlastikHeadlessNodeModel.DirectedLogServiceFactory;
+
+/**
+ * Ships the staged images of a batch to an {@link IlastikWorkerDaemon} over TCP, which runs ilastik on another host,
+ * and receives its results into the directory of the batch while it is running. Each batch goes to the daemon with the
+ * fewest running batches, so that the parallel ilastik processes of an execution are spread over the daemons.
+ *
+ * @author Andreas Graumann, University of Konstanz
+ */
+final class IlastikRemoteExecutor implements IlastikExecutor {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+
+    private static final ExecutorService RECEIVERS = Executors.newCachedThreadPool(r -> {
+        final Thread t = new Thread(r, "Ilastik remote executor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final List<InetSocketAddress> m_workers;
+
+    private final int[] m_running;
+
+    private final String m_token;
+
+    /**
+     * @param workers the addresses of the daemons
+     * @param token the shared token of the daemons
+     */
+    IlastikRemoteExecutor(final List<InetSocketAddress> workers, final String token) {
+        m_workers = workers;
+        m_running = new int[workers.size()];
+        m_token = token;
+    }
+
+    /**
+     * @param workers host:port pairs separated by commas or whitespace, the port defaults to
+     *            {@link IlastikRemoteProtocol#DEFAULT_PORT}
+     * @return the addresses of the daemons
+     * @throws InvalidSettingsException if there is no address or one is invalid
+     */
+    static List<InetSocketAddress> parseWorkers(final String workers) throws InvalidSettingsException {
+        final List<InetSocketAddress> addresses = new ArrayList<>();
+        for (final String worker : workers.trim().split("[,\\s]+")) {
+            if (worker.isEmpty()) {
+                continue;
+            }
+            final int colon = worker.lastIndexOf(':');
+            try {
+                final int port =
+                        colon < 0 ? IlastikRemoteProtocol.DEFAULT_PORT : Integer.parseInt(worker.substring(colon + 1));
+                addresses.add(InetSocketAddress.createUnresolved(colon < 0 ? worker : worker.substring(0, colon),
+                                                                 port));
+            } catch (final IllegalArgumentException e) {
+                throw new InvalidSettingsException("Invalid worker address: " + worker, e);
+            }
+        }
+        if (addresses.isEmpty()) {
+            throw new InvalidSettingsException("No worker addresses given.");
+        }
+        return Collections.unmodifiableList(addresses);
+    }
+
+    @Override
+    public void execute(final Job job, final IlastikResultWatcher watcher, final ExecutionMonitor exec)
+            throws IOException, InterruptedException, CanceledExecutionException {
+        final int worker = acquireWorker();
+        final InetSocketAddress address = m_workers.get(worker);
+        final IlastikMetrics.Stopwatch stopwatch = new IlastikMetrics.Stopwatch();
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(address.getHostString(), address.getPort()),
+                           CONNECT_TIMEOUT_MILLIS);
+            socket.setTcpNoDelay(true);
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            KNIPGateway.log().debug("Executing ilastik on " + address + " for " + job.getInputs().size() + " images.");
+
+            // the results are received in the background, so that the execution can be canceled
+            final IlastikLogPump logPump = new IlastikLogPump();
+            final Future<Integer> exitCode = RECEIVERS.submit(() -> transfer(job, in, out, logPump));
+            try {
+                while (true) {
+                    try {
+                        final int code = exitCode.get(500, TimeUnit.MILLISECONDS);
+                        if (code == IlastikRemoteProtocol.REJECTED) {
+                            throw new IllegalStateException(address + " did not run ilastik." + logPump.describeTail());
+                        } else if (code != 0) {
+                            throw new IllegalStateException("Execution of ilastik on " + address
+                                    + " was not successful (exit code " + code + ")." + logPump.describeTail());
+                        }
+                        return;
+                    } catch (final TimeoutException e) {
+                        exec.checkCanceled();
+                        watcher.poll();
+                    }
+                }
+            } catch (CanceledExecutionException | InterruptedException e) {
+                KNIPGateway.log().error("Execution canceled, closing the connection to " + address + " now.");
+                throw e;
+            } catch (final ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw new IOException("Execution of ilastik on " + address + " failed: "
+                            + e.getCause().getMessage() + logPump.describeTail(), e.getCause());
+                }
+                throw new IllegalStateException(e.getCause());
+            } finally {
+                // closing the socket cancels the job on the daemon
+                socket.close();
+                exitCode.cancel(true);
+            }
+        } finally {
+            releaseWorker(worker);
+            stopwatch.stop(job.getMetrics(), IlastikMetrics.Phase.INFERENCE);
+        }
+    }
+
+    /**
+     * Send the job and receive the output and the results of ilastik.
+     *
+     * @return the exit code of ilastik
+     */
+    private int transfer(final Job job, final DataInputStream in, final DataOutputStream out,
+                                final IlastikLogPump logPump) throws IOException {
+        final String directory = job.getDirectory();
+        out.writeInt(IlastikRemoteProtocol.VERSION);
+        out.writeUTF(m_token);
+        out.writeUTF(IlastikResultCache.hashFile(job.getProject()));
+        out.writeUTF(directory);
+        IlastikRemoteProtocol.writeStrings(out, job.getExportArgs());
+        out.writeUTF(job.getInputAxes() == null ? "" : job.getInputAxes());
+        out.writeInt(job.getThreadCount());
+        out.writeInt(job.getMaxMemory());
+        IlastikRemoteProtocol.writeStrings(out, job.getInputs());
+        out.flush();
+
+        // the daemon either accepts the job or sends the reason why it doesn't
+        byte message = in.readByte();
+        if (message == IlastikRemoteProtocol.HAVE_PROJECT || message == IlastikRemoteProtocol.NEED_PROJECT) {
+            out.writeInt(job.getInputFiles().size());
+            for (final String file : job.getInputFiles()) {
+                out.writeUTF(file.substring(directory.length()));
+                IlastikRemoteProtocol.writeFile(out, Paths.get(file));
+            }
+            if (message == IlastikRemoteProtocol.NEED_PROJECT) {
+                IlastikRemoteProtocol.writeFile(out, Paths.get(job.getProject()));
+            }
+            out.flush();
+            message = in.readByte();
+        }
+
+        final Path target = Paths.get(directory);
+        while (true) {
+            switch (message) {
+                case IlastikRemoteProtocol.LOG:
+                    logPump.log(in.readUTF(), DirectedLogServiceFactory.debug());
+                    break;
+                case IlastikRemoteProtocol.FILE:
+                    final Path file = target.resolve(in.readUTF()).normalize();
+                    if (!file.startsWith(target)) {
+                        throw new IOException("The worker sent a file outside of the batch directory.");
+                    }
+                    IlastikRemoteProtocol.readFile(in, file);
+                    break;
+                case IlastikRemoteProtocol.EXIT:
+                    return in.readInt();
+                default:
+                    throw new EOFException("Unexpected message " + message + " from the worker.");
+            }
+            message = in.readByte();
+        }
+    }
+
+    /**
+     * @return the index of the daemon with the fewest running batches
+     */
+    private synchronized int acquireWorker() {
+        int worker = 0;
+        for (int i = 1; i < m_running.length; i++) {
+            if (m_running[i] < m_running[worker]) {
+                worker = i;
+            }
+        }
+        m_running[worker]++;
+        return worker;
+    }
+
+    private synchronized void releaseWorker(final int worker) {
+        m_running[worker]--;
+    }
+
+    @Override
+    public void close() {
+        // NB: each batch has its own connection
+    }
+}
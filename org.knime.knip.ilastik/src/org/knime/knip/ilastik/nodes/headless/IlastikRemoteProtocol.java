@@ -0,0 +1,199 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2015
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ *
+ */
+package org.knime.knip.ilastik.nodes.headless;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The protocol between the {@link IlastikRemoteExecutor} and the {@link IlastikWorkerDaemon}. Only depends on the JDK,
+ * as the daemon runs without KNIME.
+ * <p>
+ * A connection carries a single job. The client sends the {@link #VERSION}, the shared token of the daemon, the SHA-256
+ * hash of the project, its directory of the batch, the export arguments, the input axes ("" if none), LAZYFLOW_THREADS,
+ * LAZYFLOW_TOTAL_RAM_MB and the input arguments. All paths in the arguments start with the directory of the batch,
+ * which the daemon replaces by its own. The daemon answers {@link #HAVE_PROJECT} or {@link #NEED_PROJECT}, and the
+ * client sends the input files followed by the project file if it is needed. The daemon then runs ilastik and sends
+ * {@link #LOG} messages with its output and {@link #FILE} messages with each result as soon as it is complete, and
+ * finally {@link #EXIT} with the exit code. Instead of the answer, a job which is rejected, e.g. because of a wrong
+ * token or an argument the daemon doesn't accept, gets a {@link #LOG} message with the reason and {@link #EXIT} with
+ * {@link #REJECTED}; so does a job whose project file doesn't match the hash, after the files have been sent.
+ * The client closes the connection to cancel the job.
+ *
+ * @author Andreas Graumann, University of Konstanz
+ */
+final class IlastikRemoteProtocol {
+
+    static final int VERSION = 2;
+
+    static final int DEFAULT_PORT = 7770;
+
+    static final byte HAVE_PROJECT = 1;
+
+    static final byte NEED_PROJECT = 2;
+
+    /**
+     * a line of output, followed by the line
+     */
+    static final byte LOG = 'L';
+
+    /**
+     * a result file, followed by its name relative to the directory of the batch and its content
+     */
+    static final byte FILE = 'F';
+
+    /**
+     * the end of the job, followed by the exit code of ilastik
+     */
+    static final byte EXIT = 'X';
+
+    /**
+     * exit code of a job the daemon refused to run
+     */
+    static final int REJECTED = -1;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private IlastikRemoteProtocol() {
+        // NB Util Class
+    }
+
+    static void writeStrings(final DataOutputStream out, final List<String> strings) throws IOException {
+        out.writeInt(strings.size());
+        for (final String s : strings) {
+            out.writeUTF(s);
+        }
+    }
+
+    static List<String> readStrings(final DataInputStream in) throws IOException {
+        final int n = in.readInt();
+        final List<String> strings = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            strings.add(in.readUTF());
+        }
+        return strings;
+    }
+
+    /**
+     * Write the length and the content of a file.
+     */
+    static void writeFile(final DataOutputStream out, final Path file) throws IOException {
+        out.writeLong(Files.size(file));
+        Files.copy(file, out);
+    }
+
+    /**
+     * Read a file written by {@link #writeFile(DataOutputStream, Path)}. The file is written under a temporary name and
+     * moved to the target, so that it appears complete.
+     */
+    static void readFile(final DataInputStream in, final Path target) throws IOException {
+        final long length = in.readLong();
+        final Path part = target.resolveSibling(target.getFileName() + ".part");
+        try (OutputStream out = Files.newOutputStream(part)) {
+            copy(in, out, length);
+        }
+        Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read a file written by {@link #writeFile(DataOutputStream, Path)} like {@link #readFile(DataInputStream, Path)},
+     * but only move it to the target if its content has the SHA-256 hash.
+     *
+     * @param sha256 the expected hash in lower case hex digits
+     * @return whether the content had the hash, the file is discarded otherwise
+     */
+    static boolean readFile(final DataInputStream in, final Path target, final String sha256) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        final long length = in.readLong();
+        final Path part = target.resolveSibling(target.getFileName() + ".part");
+        try (OutputStream out = new DigestOutputStream(Files.newOutputStream(part), digest)) {
+            copy(in, out, length);
+        }
+        final StringBuilder hash = new StringBuilder();
+        for (final byte b : digest.digest()) {
+            hash.append(String.format("%02x", b));
+        }
+        if (!hash.toString().equals(sha256)) {
+            Files.delete(part);
+            return false;
+        }
+        Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return true;
+    }
+
+    private static void copy(final InputStream in, final OutputStream out, final long length) throws IOException {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        long remaining = length;
+        while (remaining > 0) {
+            final int n = in.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+            if (n < 0) {
+                throw new EOFException("The connection was closed while a file was transferred.");
+            }
+            out.write(buffer, 0, n);
+            remaining -= n;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2015
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ *
+ */
+package org.knime.knip.ilastik.nodes.headless;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.knime.knip.core.KNIPGateway;
+
+/**
+ * Plans the number of ilastik processes, their threads and memory limits and the batch size from the resources of
+ * the machine and the size of the input images.
+ * <p>
+ * The memory for ilastik is the available physical memory, minus the memory the JVM is expected to claim in addition
+ * (up to twice its live heap) and a safety margin for the system. ilastik computes its features as float32, so the
+ * memory needed per image is estimated from the number of voxels rather than from the pixel type of the input.
+ *
+ * @author Andreas Graumann, University of Konstanz
+ */
+final class IlastikResourcePlanner {
+
+    private static final long MB = 1024L * 1024L;
+
+    /**
+     * memory used by an ilastik process besides the image data
+     */
+    private static final long BASE_MEMORY_MB = 1024;
+
+    /**
+     * bytes per voxel needed by ilastik, float32 for about 16 features
+     */
+    private static final long BYTES_PER_VOXEL = 4 * 16;
+
+    /**
+     * fewer threads per process are not worth another process
+     */
+    private static final int MIN_THREADS_PER_PROCESS = 2;
+
+    /**
+     * batches per process, so that the pipeline can stage and read back while ilastik runs
+     */
+    private static final int BATCHES_PER_PROCESS = 2;
+
+    private static final String MEMINFO = "/proc/meminfo";
+
+    private IlastikResourcePlanner() {
+        // utility class
+    }
+
+    /**
+     * The planned resources.
+     */
+    static final class Plan {
+
+        private final int m_processes;
+
+        private final int m_threadsPerProcess;
+
+        private final int m_memoryPerProcess;
+
+        private final int m_batchSize;
+
+        Plan(final int processes, final int threadsPerProcess, final int memoryPerProcess, final int batchSize) {
+            m_processes = processes;
+            m_threadsPerProcess = threadsPerProcess;
+            m_memoryPerProcess = memoryPerProcess;
+            m_batchSize = batchSize;
+        }
+
+        /**
+         * @return number of ilastik processes running at the same time
+         */
+        int getProcesses() {
+            return m_processes;
+        }
+
+        /**
+         * @return LAZYFLOW_THREADS of each process
+         */
+        int getThreadsPerProcess() {
+            return m_threadsPerProcess;
+        }
+
+        /**
+         * @return LAZYFLOW_TOTAL_RAM_MB of each process
+         */
+        int getMemoryPerProcess() {
+            return m_memoryPerProcess;
+        }
+
+        /**
+         * @return number of images per batch
+         */
+        int getBatchSize() {
+            return m_batchSize;
+        }
+
+        @Override
+        public String toString() {
+            return m_processes + " ilastik processes with " + m_threadsPerProcess + " threads and "
+                    + m_memoryPerProcess + " MB each, " + m_batchSize + " images per batch";
+        }
+    }
+
+    /**
+     * Number and size of the inputs of ilastik, i.e. of the images or, if they are tiled, of their tiles.
+     */
+    static final class InputStatistics {
+
+        private int m_nrImages;
+
+        private long m_totalVoxels;
+
+        private long m_maxVoxels;
+
+        /**
+         * @param dims dimensions of an input
+         * @param count number of inputs of this size
+         */
+        void add(final long[] dims, final int count) {
+            long voxels = 1;
+            for (final long dim : dims) {
+                voxels *= dim;
+            }
+            m_nrImages += count;
+            m_totalVoxels += voxels * count;
+            m_maxVoxels = Math.max(m_maxVoxels, voxels);
+        }
+
+        int getNrImages() {
+            return m_nrImages;
+        }
+
+        long getTotalVoxels() {
+            return m_totalVoxels;
+        }
+
+        long getMaxVoxels() {
+            return m_maxVoxels;
+        }
+    }
+
+    /**
+     * @param statistics the ilastik inputs, i.e. images or tiles, null if unknown (streaming)
+     * @param maxProcesses maximum number of parallel processes
+     * @param defaultBatchSize batch size if the number of images is unknown
+     * @return the plan
+     */
+    static Plan plan(final InputStatistics statistics, final int maxProcesses,
+                     final int defaultBatchSize) {
+        final Runtime runtime = Runtime.getRuntime();
+        final long heapCommitted = runtime.totalMemory();
+        final long heapLive = heapCommitted - runtime.freeMemory();
+        final long heapMax = runtime.maxMemory();
+
+        final long[] physical = readPhysicalMemory();
+        final long total = physical[0];
+        final long available = physical[1];
+
+        // the JVM may still grow, reserve up to twice its live heap and a margin for the system
+        final long jvmReserve = Math.max(0, Math.min(heapMax, 2 * heapLive) - heapCommitted);
+        final long margin = Math.max(512 * MB, total / 20);
+        final long budgetMB = Math.max(BASE_MEMORY_MB, (available - jvmReserve - margin) / MB);
+
+        final long voxels = statistics == null ? 0 : statistics.getMaxVoxels();
+        final long neededMB = BASE_MEMORY_MB + voxels * BYTES_PER_VOXEL / MB;
+
+        final int cores = runtime.availableProcessors();
+        long processes = Math.min(maxProcesses, Math.max(1, cores / MIN_THREADS_PER_PROCESS));
+        processes = Math.min(processes, Math.max(1, budgetMB / neededMB));
+        if (statistics != null) {
+            processes = Math.min(processes, Math.max(1, statistics.getNrImages()));
+        }
+        final int nrProcesses = (int)Math.max(1, processes);
+
+        final int batchSize = statistics == null ? defaultBatchSize
+                : Math.max(1, (statistics.getNrImages() + nrProcesses * BATCHES_PER_PROCESS - 1)
+                        / (nrProcesses * BATCHES_PER_PROCESS));
+
+        final Plan plan = new Plan(nrProcesses, Math.max(1, cores / nrProcesses),
+                (int)Math.min(Integer.MAX_VALUE, budgetMB / nrProcesses), batchSize);
+
+        KNIPGateway.log().info("Planned " + plan + " (physical memory " + total / MB + " MB, available "
+                + available / MB + " MB, JVM heap " + heapLive / MB + " MB live / " + heapCommitted / MB
+                + " MB committed / " + heapMax / MB + " MB max, " + cores + " cores"
+                + (statistics == null ? ""
+                        : ", " + statistics.getNrImages() + " inputs with " + statistics.getTotalVoxels()
+                                + " voxels, at most " + voxels + " voxels per ilastik input")
+                + ").");
+        if (budgetMB < neededMB) {
+            KNIPGateway.log().warn("The images probably need more memory (" + neededMB + " MB) than is available for "
+                    + "ilastik (" + budgetMB + " MB). Consider processing them in tiles.");
+        }
+        return plan;
+    }
+
+    /**
+     * @return total and available physical memory in bytes
+     */
+    private static long[] readPhysicalMemory() {
+        final Path meminfo = Paths.get(MEMINFO);
+        if (Files.isReadable(meminfo)) {
+            try {
+                long total = -1;
+                long available = -1;
+                for (final String line : Files.readAllLines(meminfo, StandardCharsets.US_ASCII)) {
+                    if (line.startsWith("MemTotal:")) {
+                        total = parseKilobytes(line);
+                    } else if (line.startsWith("MemAvailable:")) {
+                        available = parseKilobytes(line);
+                    }
+                }
+                if (total > 0 && available >= 0) {
+                    return new long[]{total, available};
+                }
+            } catch (IOException | NumberFormatException e) {
+                KNIPGateway.log().debug("Could not read " + MEMINFO + ": " + e.getMessage());
+            }
+        }
+
+        // other systems, or kernels without MemAvailable
+        final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            final com.sun.management.OperatingSystemMXBean sunOs = (com.sun.management.OperatingSystemMXBean)os;
+            return new long[]{sunOs.getTotalPhysicalMemorySize(), sunOs.getFreePhysicalMemorySize()};
+        }
+
+        // nothing known, assume the JVM may use half of the memory
+        final long max = Runtime.getRuntime().maxMemory();
+        return new long[]{2 * max, max};
+    }
+
+    private static long parseKilobytes(final String line) {
+        final String[] parts = line.trim().split("\\s+");
+        return Long.parseLong(parts[1]) * 1024L;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2015
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ *
+ */
+package org.knime.knip.ilastik.nodes.headless;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Supplier;
+
+import org.knime.knip.core.KNIPGateway;
+
+/**
+ * Pool of resources which are not thread-safe, e.g. image writers or readers. Each thread acquires its own instance
+ * and returns it afterwards, so that the pool holds at most one instance per concurrently running thread and the
+ * instances are reused.
+ *
+ * @author Andreas Graumann, University of Konstanz
+ * @param <R> type of the resource
+ */
+final class IlastikResourcePool<R extends AutoCloseable> implements AutoCloseable {
+
+    private final Supplier<R> m_factory;
+
+    private final Deque<R> m_idle = new ArrayDeque<>();
+
+    private final List<R> m_all = new ArrayList<>();
+
+    private boolean m_closed;
+
+    /**
+     * @param factory creates new instances
+     */
+    IlastikResourcePool(final Supplier<R> factory) {
+        m_factory = factory;
+    }
+
+    /**
+     * @return an idle instance or a new one if all instances are in use
+     */
+    synchronized R acquire() {
+        if (m_closed) {
+            throw new IllegalStateException("Pool has been closed.");
+        }
+        R resource = m_idle.poll();
+        if (resource == null) {
+            resource = m_factory.get();
+            m_all.add(resource);
+        }
+        return resource;
+    }
+
+    /**
+     * @param resource an instance acquired from this pool which is not used anymore
+     */
+    synchronized void release(final R resource) {
+        if (!m_closed) {
+            m_idle.push(resource);
+        }
+    }
+
+    /**
+     * Closes all instances, including the ones still in use.
+     */
+    @Override
+    public synchronized void close() {
+        m_closed = true;
+        for (final R resource : m_all) {
+            try {
+                resource.close();
+            } catch (Exception e) {
+                KNIPGateway.log().debug("Could not close " + resource + ": " + e.getMessage());
+            }
+        }
+        m_all.clear();
+        m_idle.clear();
+    }
+}
@@ -0,0 +1,457 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2015
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ *
+ */
+package org.knime.knip.ilastik.nodes.headless;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.knime.knip.core.KNIPGateway;
+
+import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.Type;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Disk-backed cache of ilastik results. The results are stored under a content hash of the input image, the project
+ * file, the ilastik installation and the settings which influence the result. If the cache exceeds its capacity the least recently used results
+ * are removed.
+ * <p>
+ * Files are hard linked into and out of the cache where possible, so that a result which is evicted while it is read
+ * stays readable.
+ *
+ * @author Andreas Graumann, University of Konstanz
+ */
+final class IlastikResultCache {
+
+    private static final Map<File, IlastikResultCache> CACHES = new HashMap<>();
+
+    /**
+     * hashes of project files, key is path, modification time and size of the file
+     */
+    private static final Map<String, String> FILE_HASHES = new ConcurrentHashMap<>();
+
+    /**
+     * version in the name of an ilastik installation, e.g. 1.4.0rc8 in ilastik-1.4.0rc8-Linux
+     */
+    private static final Pattern INSTALLATION_VERSION = Pattern.compile("ilastik-(\\d+(?:\\.\\d+)*(?:[a-z]+\\d+)?)");
+
+    private final File m_dir;
+
+    private long m_capacity;
+
+    /**
+     * file name -> size, in access order
+     */
+    private final LinkedHashMap<String, Long> m_entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long m_size;
+
+    private IlastikResultCache(final File dir) {
+        m_dir = dir;
+        m_dir.mkdirs();
+
+        // restore the entries of earlier sessions, the modification time is the time of the last access
+        final File[] files = m_dir.listFiles(File::isFile);
+        if (files != null) {
+            Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+            for (final File file : files) {
+                if (file.getName().equals(IlastikStagingReaper.LOCK_FILE)) {
+                    // the lock of a result store of the incremental execution
+                    continue;
+                }
+                if (file.getName().startsWith(".")) {
+                    // incomplete entry
+                    file.delete();
+                    continue;
+                }
+                m_entries.put(file.getName(), file.length());
+                m_size += file.length();
+            }
+        }
+    }
+
+    /**
+     * @param dir the cache directory
+     * @param capacity maximum size of the cache in bytes
+     * @return the cache for the given directory
+     */
+    static synchronized IlastikResultCache getInstance(final File dir, final long capacity) {
+        final IlastikResultCache cache = CACHES.computeIfAbsent(dir.getAbsoluteFile(), IlastikResultCache::new);
+        cache.setCapacity(capacity);
+        return cache;
+    }
+
+    private synchronized void setCapacity(final long capacity) {
+        m_capacity = capacity;
+        evict();
+    }
+
+    /**
+     * Provide a cached result at the given location.
+     *
+     * @param key the key of the result
+     * @param target the location of the result
+     * @return whether the result was in the cache
+     */
+    synchronized boolean get(final String key, final String target) {
+        final String name = key + getExtension(target);
+        if (m_entries.get(name) == null) {
+            return false;
+        }
+
+        final File file = new File(m_dir, name);
+        try {
+            link(file.toPath(), new File(target).toPath());
+            file.setLastModified(System.currentTimeMillis());
+            return true;
+        } catch (IOException e) {
+            KNIPGateway.log().warn("Could not read cached ilastik result " + file + ": " + e.getMessage());
+            remove(name);
+            return false;
+        }
+    }
+
+    /**
+     * Add a result to the cache.
+     *
+     * @param key the key of the result
+     * @param source the result file
+     */
+    void put(final String key, final String source) {
+        final String name = key + getExtension(source);
+        final File file = new File(m_dir, name);
+        // link to a hidden file first, so that the entry is never incomplete
+        final File tmpFile = new File(m_dir, "." + UUID.randomUUID());
+        try {
+            link(new File(source).toPath(), tmpFile.toPath());
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            KNIPGateway.log().warn("Could not cache ilastik result " + source + ": " + e.getMessage());
+            tmpFile.delete();
+            return;
+        }
+
+        synchronized (this) {
+            final Long previous = m_entries.put(name, file.length());
+            m_size += file.length() - (previous == null ? 0 : previous);
+            evict();
+        }
+    }
+
+    /**
+     * Remove all results but the given ones.
+     *
+     * @param keys the keys of the results to keep
+     */
+    synchronized void retain(final Set<String> keys) {
+        final Iterator<Map.Entry<String, Long>> it = m_entries.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<String, Long> entry = it.next();
+            final String name = entry.getKey();
+            final int dot = name.indexOf('.');
+            if (!keys.contains(dot < 0 ? name : name.substring(0, dot))) {
+                it.remove();
+                m_size -= entry.getValue();
+                new File(m_dir, name).delete();
+            }
+        }
+    }
+
+    private void evict() {
+        final Iterator<Map.Entry<String, Long>> it = m_entries.entrySet().iterator();
+        while (m_size > m_capacity && it.hasNext()) {
+            final Map.Entry<String, Long> eldest = it.next();
+            it.remove();
+            m_size -= eldest.getValue();
+            new File(m_dir, eldest.getKey()).delete();
+        }
+    }
+
+    private void remove(final String name) {
+        final Long size = m_entries.remove(name);
+        if (size != null) {
+            m_size -= size;
+        }
+        new File(m_dir, name).delete();
+    }
+
+    /**
+     * Hard link the source to the target, copy it if that is not possible, e.g. across file systems.
+     */
+    private static void link(final Path source, final Path target) throws IOException {
+        try {
+            Files.createLink(target, source);
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static String getExtension(final String path) {
+        final String name = new File(path).getName();
+        final int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot);
+    }
+
+    /**
+     * @param img an input image
+     * @param signature identifies the project and the settings which influence the result
+     * @return the key of the result for the image
+     */
+    static String createKey(final ImgPlus<?> img, final String signature) {
+        return createKey(img, img, signature);
+    }
+
+    /**
+     * @param img an input image
+     * @param interval the part of the image which is processed, e.g. a tile
+     * @param signature identifies the project and the settings which influence the result
+     * @return the key of the result for the part of the image
+     */
+    static String createKey(final ImgPlus<?> img, final Interval interval, final String signature) {
+        final MessageDigest digest = createDigest();
+        digest.update(signature.getBytes(StandardCharsets.UTF_8));
+        digest.update(img.firstElement().getClass().getName().getBytes(StandardCharsets.UTF_8));
+        for (int d = 0; d < img.numDimensions(); d++) {
+            digest.update(img.axis(d).type().getLabel().getBytes(StandardCharsets.UTF_8));
+            digest.update(ByteBuffer.allocate(8).putLong(0, interval.min(d)));
+            digest.update(ByteBuffer.allocate(8).putLong(0, interval.max(d)));
+        }
+        digestPixels(digest, img.getImg(), interval);
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Digest the raw values of the pixels in the interval row by row. The rows of array and planar images are taken
+     * from their storage arrays, the rows of other images are copied into an array first, so that the digest does not
+     * depend on the storage of the image.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static void digestPixels(final MessageDigest digest, final Img<?> img, final Interval interval) {
+        final int n = img.numDimensions();
+        final long[] dims = Intervals.dimensionsAsLongArray(img);
+        final int rowLength = (int)interval.dimension(0);
+        final NativeType<?> type = (NativeType<?>)img.firstElement();
+        final boolean isNative = type.getEntitiesPerPixel().getRatio() == 1;
+
+        final Object array;
+        if (isNative && img instanceof ArrayImg && ((ArrayImg)img).update(null) instanceof ArrayDataAccess) {
+            array = ((ArrayDataAccess)((ArrayImg)img).update(null)).getCurrentStorageArray();
+        } else {
+            array = null;
+        }
+        final PlanarImg<?, ?> planar = isNative && img instanceof PlanarImg
+                && ((PlanarImg)img).getPlane(0) instanceof ArrayDataAccess ? (PlanarImg<?, ?>)img : null;
+
+        // row buffer of the other images
+        final ArrayImg rowImg = array == null && planar == null
+                ? (ArrayImg)new ArrayImgFactory().create(new long[]{rowLength}, type.createVariable()) : null;
+        final Cursor<Type> rowCursor = rowImg == null ? null : rowImg.cursor();
+
+        final ByteBuffer buffer = ByteBuffer.allocate(8192);
+        final long[] pos = Intervals.minAsLongArray(interval);
+        while (true) {
+            if (array != null) {
+                long offset = 0;
+                for (int d = n - 1; d >= 0; d--) {
+                    offset = offset * dims[d] + pos[d];
+                }
+                digestArray(digest, array, (int)offset, rowLength, buffer);
+            } else if (planar != null) {
+                long plane = 0;
+                for (int d = n - 1; d >= 2; d--) {
+                    plane = plane * dims[d] + pos[d];
+                }
+                final long offset = n < 2 ? pos[0] : pos[1] * dims[0] + pos[0];
+                digestArray(digest, ((ArrayDataAccess)planar.getPlane((int)plane)).getCurrentStorageArray(),
+                            (int)offset, rowLength, buffer);
+            } else {
+                final long[] max = pos.clone();
+                max[0] += rowLength - 1;
+                final Cursor<Type> in = Views.flatIterable(Views.interval((Img)img, pos.clone(), max)).cursor();
+                rowCursor.reset();
+                while (in.hasNext()) {
+                    rowCursor.next().set(in.next());
+                }
+                final Object row = ((ArrayDataAccess)rowImg.update(null)).getCurrentStorageArray();
+                digestArray(digest, row, 0, Array.getLength(row), buffer);
+            }
+
+            // next row
+            int d = 1;
+            while (d < n && pos[d] == interval.max(d)) {
+                pos[d] = interval.min(d);
+                d++;
+            }
+            if (d >= n) {
+                return;
+            }
+            pos[d]++;
+        }
+    }
+
+    /**
+     * Digest a part of a primitive storage array, multi-byte values in big endian byte order.
+     */
+    private static void digestArray(final MessageDigest digest, final Object array, final int offset,
+                                    final int length, final ByteBuffer buffer) {
+        if (array instanceof byte[]) {
+            digest.update((byte[])array, offset, length);
+            return;
+        }
+        final int bytesPerValue = array instanceof short[] || array instanceof char[] ? 2
+                : array instanceof int[] || array instanceof float[] ? 4 : 8;
+        final int chunk = buffer.capacity() / bytesPerValue;
+        for (int i = 0; i < length; i += chunk) {
+            final int count = Math.min(chunk, length - i);
+            buffer.clear();
+            if (array instanceof short[]) {
+                buffer.asShortBuffer().put((short[])array, offset + i, count);
+            } else if (array instanceof char[]) {
+                buffer.asCharBuffer().put((char[])array, offset + i, count);
+            } else if (array instanceof int[]) {
+                buffer.asIntBuffer().put((int[])array, offset + i, count);
+            } else if (array instanceof float[]) {
+                buffer.asFloatBuffer().put((float[])array, offset + i, count);
+            } else if (array instanceof long[]) {
+                buffer.asLongBuffer().put((long[])array, offset + i, count);
+            } else {
+                buffer.asDoubleBuffer().put((double[])array, offset + i, count);
+            }
+            buffer.limit(count * bytesPerValue);
+            digest.update(buffer);
+        }
+    }
+
+    /**
+     * @param path a file
+     * @return the hash of the file content
+     * @throws IOException
+     */
+    static String hashFile(final String path) throws IOException {
+        final File file = new File(path);
+        final String fileKey = file.getAbsolutePath() + "|" + file.lastModified() + "|" + file.length();
+
+        String hash = FILE_HASHES.get(fileKey);
+        if (hash == null) {
+            final MessageDigest digest = createDigest();
+            try (InputStream in = new DigestInputStream(Files.newInputStream(file.toPath()), digest)) {
+                final byte[] buffer = new byte[65536];
+                while (in.read(buffer) >= 0) {
+                    // only digest
+                }
+            }
+            hash = toHex(digest.digest());
+            FILE_HASHES.put(fileKey, hash);
+        }
+        return hash;
+    }
+
+    /**
+     * @param executable path of the ilastik executable or of the Python interpreter running the ilastik worker
+     * @return identifies the ilastik installation by the path of the executable and the version in the path, e.g.
+     *         ilastik-1.4.0-Linux, the modification time and size of the executable change if ilastik is upgraded in
+     *         place
+     */
+    static String describeInstallation(final String executable) {
+        final File file = new File(executable).getAbsoluteFile();
+        String version = "";
+        final Matcher matcher = INSTALLATION_VERSION.matcher(file.getPath());
+        while (matcher.find()) {
+            version = matcher.group(1);
+        }
+        return file.getPath() + "|" + version + "|" + file.lastModified() + "|" + file.length();
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(final byte[] bytes) {
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (final byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2015
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ *
+ */
+package org.knime.knip.ilastik.nodes.headless;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.knime.knip.core.KNIPGateway;
+import org.knime.knip.ilastik.nodes.IlastikPreferencePage;
+
+import net.imglib2.util.Intervals;
+
+/**
+ * Results of the last execution of a node in incremental mode, so that a re-execution only processes the rows which
+ * are new or have changed. The index maps the key of each row (and tile) to the content hash of its image, the
+ * results are stored in a directory of the node below the cache directory. The index is saved with the internals of
+ * the node, the results outlive resets of the node.
+ * <p>
+ * Each node locks its store, a node whose internals refer to a store which is locked by another node, e.g. a copy,
+ * starts with a new one. The store is deleted with the node unless the index is saved; stores which no node has used
+ * for {@link #STORE_RETENTION_MS}, e.g. of deleted nodes or discarded workflows, are swept.
+ *
+ * @author Andreas Graumann, University of Konstanz
+ */
+final class IlastikResultIndex {
+
+    private static final String FILE_NAME = "ilastik_result_index.bin";
+
+    private static final int VERSION = 1;
+
+    private static final long STORE_RETENTION_MS = TimeUnit.DAYS.toMillis(14);
+
+    private final String m_storeId;
+
+    private final FileLock m_lock;
+
+    /**
+     * whether the index is saved with the internals of the node, so that the store is still referenced once the node
+     * is disposed
+     */
+    private boolean m_saved;
+
+    /**
+     * row key -> content hash, of the last successful execution
+     */
+    private final Map<String, String> m_hashes;
+
+    /**
+     * row key -> content hash, of the running execution
+     */
+    private final Map<String, String> m_pendingHashes = new ConcurrentHashMap<>();
+
+    private final AtomicInteger m_reused = new AtomicInteger();
+
+    private final AtomicInteger m_changed = new AtomicInteger();
+
+    private final AtomicInteger m_added = new AtomicInteger();
+
+    /**
+     * Create an empty index with a new result directory.
+     */
+    IlastikResultIndex() {
+        this(UUID.randomUUID().toString(), new HashMap<>(), false);
+    }
+
+    private IlastikResultIndex(final String storeId, final Map<String, String> hashes, final boolean saved) {
+        m_storeId = storeId;
+        m_lock = lockStore(storeId);
+        m_hashes = hashes;
+        m_saved = saved;
+    }
+
+    /**
+     * @param entry an entry of a batch
+     * @return the key of the entry in the index, the row key and the position of the tile if the image is tiled
+     */
+    static String getId(final IlastikBatch.Entry entry) {
+        final String rowKey = entry.getRow().getKey().getString();
+        return entry.getTile() == null ? rowKey
+                : rowKey + " " + Arrays.toString(Intervals.minAsLongArray(entry.getTile().getCore()));
+    }
+
+    private IlastikResultCache getStore() {
+        return IlastikResultCache.getInstance(getDirectory(), Long.MAX_VALUE);
+    }
+
+    /**
+     * @return the directory of the store
+     */
+    File getDirectory() {
+        return new File(getParentDirectory(), m_storeId);
+    }
+
+    private static File getParentDirectory() {
+        return new File(IlastikPreferencePage.getCacheDirectory(), "incremental");
+    }
+
+    /**
+     * Take the lock of a store, which keeps other nodes from using it and the sweep from deleting it, and sweep the
+     * unused stores.
+     *
+     * @param storeId the ID of the store
+     * @return the lock, null if another node holds it
+     */
+    private static FileLock lockStore(final String storeId) {
+        final File directory = new File(getParentDirectory(), storeId);
+        directory.mkdirs();
+        final FileLock lock = IlastikStagingReaper.lock(directory);
+        if (lock != null) {
+            // the time of the last use, for the sweep
+            new File(directory, IlastikStagingReaper.LOCK_FILE).setLastModified(System.currentTimeMillis());
+        }
+        IlastikStagingReaper.sweepUnused(getParentDirectory(), STORE_RETENTION_MS);
+        return lock;
+    }
+
+    /**
+     * Provide the result of the last execution, if the image of the row has not changed since. Each entry of an
+     * execution has to be looked up, otherwise its result is not kept.
+     *
+     * @param entry an entry of a batch, its cache key is the content hash of the image
+     * @return whether the result was provided at the result location of the entry
+     */
+    boolean get(final IlastikBatch.Entry entry) {
+        final String id = getId(entry);
+        m_pendingHashes.put(id, entry.getCacheKey());
+
+        final String hash;
+        synchronized (this) {
+            hash = m_hashes.get(id);
+        }
+        if (hash == null) {
+            m_added.incrementAndGet();
+        } else if (!hash.equals(entry.getCacheKey())) {
+            m_changed.incrementAndGet();
+        } else if (getStore().get(hash, entry.getResultFile())) {
+            m_reused.incrementAndGet();
+            return true;
+        } else {
+            // the result has been deleted
+            m_changed.incrementAndGet();
+        }
+        return false;
+    }
+
+    /**
+     * Keep a result computed in the running execution.
+     *
+     * @param entry an entry of a batch
+     */
+    void put(final IlastikBatch.Entry entry) {
+        getStore().put(entry.getCacheKey(), entry.getResultFile());
+    }
+
+    /**
+     * Make the results of the running execution available for the next one. All rows have been processed, so the
+     * results of removed rows are deleted.
+     */
+    synchronized void commit() {
+        m_hashes.clear();
+        m_hashes.putAll(m_pendingHashes);
+        m_pendingHashes.clear();
+        getStore().retain(new HashSet<>(m_hashes.values()));
+
+        KNIPGateway.log().info("Incremental execution: reused the results of " + m_reused.getAndSet(0)
+                + " images, processed " + m_added.getAndSet(0) + " new and " + m_changed.getAndSet(0)
+                + " changed images.");
+    }
+
+    /**
+     * Forget the rows of an execution which did not finish, their results are kept until the next complete execution.
+     */
+    synchronized void discardPending() {
+        m_pendingHashes.clear();
+        m_reused.set(0);
+        m_changed.set(0);
+        m_added.set(0);
+    }
+
+    /**
+     * The internals of the node have been discarded, e.g. by a reset, the store is only referenced again once the
+     * index is saved.
+     */
+    synchronized void markUnsaved() {
+        m_saved = false;
+    }
+
+    /**
+     * Release the store when the node is disposed. If the index is saved with the internals of the node the results
+     * are kept for the next time the node is loaded, otherwise nothing refers to them anymore and they are deleted.
+     */
+    synchronized void close() {
+        if (m_saved) {
+            IlastikStagingReaper.unlock(m_lock);
+        } else {
+            delete();
+        }
+    }
+
+    /**
+     * Delete all results in the background, the index must not be used afterwards.
+     */
+    synchronized void delete() {
+        getStore().retain(new HashSet<>());
+        IlastikStagingReaper.unlock(m_lock);
+        IlastikStagingReaper.delete(getDirectory(), null);
+        m_hashes.clear();
+    }
+
+    /**
+     * @param nodeInternDir the internals directory of the node
+     * @return the saved index, null if the node has not been executed incrementally
+     * @throws IOException
+     */
+    static IlastikResultIndex load(final File nodeInternDir) throws IOException {
+        final File file = new File(nodeInternDir, FILE_NAME);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+            final int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported version of the ilastik result index: " + version);
+            }
+            final String storeId = in.readUTF();
+            final int size = in.readInt();
+            final Map<String, String> hashes = new HashMap<>(size * 2);
+            for (int i = 0; i < size; i++) {
+                hashes.put(in.readUTF(), in.readUTF());
+            }
+            final IlastikResultIndex index = new IlastikResultIndex(storeId, hashes, true);
+            if (index.m_lock == null) {
+                // e.g. a copy of a node, whose internals refer to the store of the original
+                KNIPGateway.log().debug("The ilastik result store " + storeId
+                        + " is used by another node, the incremental execution starts over.");
+                return new IlastikResultIndex();
+            }
+            return index;
+        }
+    }
+
+    /**
+     * @param nodeInternDir the internals directory of the node
+     * @throws IOException
+     */
+    synchronized void save(final File nodeInternDir) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(new FileOutputStream(new File(nodeInternDir, FILE_NAME)))))) {
+            out.writeInt(VERSION);
+            out.writeUTF(m_storeId);
+            out.writeInt(m_hashes.size());
+            for (final Map.Entry<String, String> entry : m_hashes.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeUTF(entry.getValue());
+            }
+        }
+        m_saved = true;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2015
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ *
+ */
+package org.knime.knip.ilastik.nodes.headless;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.knime.knip.core.KNIPGateway;
+
+/**
+ * Watches the directory of a batch while ilastik is running and reports the entries whose results are complete.
+ * ilastik processes the images in the order they are passed and creates the result file of an image when it starts
+ * exporting it, so the result of an image is complete once the result of a later image has been created, and all
+ * results are complete once ilastik is done.
+ *
+ * @author Andreas Graumann, University of Konstanz
+ */
+final class IlastikResultWatcher implements AutoCloseable {
+
+    private final List<IlastikBatch.Entry> m_entries = new ArrayList<>();
+
+    private final Map<Path, Integer> m_indices = new HashMap<>();
+
+    private final Consumer<IlastikBatch.Entry> m_onComplete;
+
+    private final WatchService m_watchService;
+
+    private int m_completed;
+
+    private int m_created;
+
+    /**
+     * @param batch the batch ilastik is processing, its directory has to exist
+     * @param onComplete called in the thread of {@link #poll()} for each entry whose result is complete, in the order
+     *            of the entries
+     */
+    IlastikResultWatcher(final IlastikBatch batch, final Consumer<IlastikBatch.Entry> onComplete) {
+        m_onComplete = onComplete;
+        for (final IlastikBatch.Entry entry : batch.getEntries()) {
+            if (entry.hasImage() && !entry.isCached()) {
+                m_indices.put(Paths.get(entry.getResultFile()).getFileName(), m_entries.size());
+                m_entries.add(entry);
+            }
+        }
+
+        WatchService watchService = null;
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            Paths.get(batch.getDirectory()).register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
+        } catch (IOException | UnsupportedOperationException e) {
+            // e.g. on some network file systems, the files are checked instead
+            KNIPGateway.log().debug("Can't watch " + batch.getDirectory() + ": " + e.getMessage());
+            close(watchService);
+            watchService = null;
+        }
+        m_watchService = watchService;
+    }
+
+    /**
+     * Report the entries whose results have been completed since the last call, doesn't block.
+     */
+    void poll() {
+        if (m_completed == m_entries.size()) {
+            return;
+        }
+        if (m_watchService == null || !pollEvents()) {
+            // the events are lost, look for the results themselves
+            while (m_created < m_entries.size() && Files.exists(Paths.get(m_entries.get(m_created).getResultFile()))) {
+                m_created++;
+            }
+        }
+        // the latest result is still being written
+        complete(m_created - 1);
+    }
+
+    /**
+     * @return false if events may have been lost
+     */
+    private boolean pollEvents() {
+        WatchKey key;
+        try {
+            while ((key = m_watchService.poll()) != null) {
+                for (final WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        key.reset();
+                        return false;
+                    }
+                    final Integer index = m_indices.get(event.context());
+                    if (index != null) {
+                        m_created = Math.max(m_created, index + 1);
+                    }
+                }
+                if (!key.reset()) {
+                    // the directory is gone
+                    return false;
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Report all remaining entries, after ilastik has finished successfully.
+     */
+    void completeAll() {
+        complete(m_entries.size());
+    }
+
+    private void complete(final int end) {
+        while (m_completed < end) {
+            m_onComplete.accept(m_entries.get(m_completed++));
+        }
+    }
+
+    @Override
+    public void close() {
+        close(m_watchService);
+    }
+
+    private static void close(final WatchService watchService) {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                // NB: nothing to do
+            }
+        }
+    }
+}
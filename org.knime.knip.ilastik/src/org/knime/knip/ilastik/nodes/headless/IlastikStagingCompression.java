@@ -0,0 +1,146 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2015
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ *
+ */
+package org.knime.knip.ilastik.nodes.headless;
+
+import org.knime.knip.core.KNIPGateway;
+
+/**
+ * Decides whether the staged input images are compressed. In automatic mode, the first images are written alternately
+ * with and without compression, and the one which takes less time per pixel, encoding and writing together, is used
+ * for all further images. Compression pays off if the staging directory is slow, e.g. a network share, and costs time
+ * if it is fast, e.g. a local SSD or RAM disk. Thread-safe, one instance per execution.
+ *
+ * @author Andreas Graumann, University of Konstanz
+ */
+final class IlastikStagingCompression {
+
+    static final String NONE = "Uncompressed";
+
+    static final String COMPRESSED = "Compressed";
+
+    static final String AUTOMATIC = "Automatic";
+
+    static final String[] MODES = {NONE, COMPRESSED, AUTOMATIC};
+
+    /**
+     * number of images written with and without compression before deciding
+     */
+    private static final int SAMPLES = 3;
+
+    private final int[] m_started = new int[2];
+
+    private final int[] m_recorded = new int[2];
+
+    private final long[] m_nanos = new long[2];
+
+    private final long[] m_pixels = new long[2];
+
+    private final long[] m_bytes = new long[2];
+
+    private Boolean m_decision;
+
+    /**
+     * @param mode one of {@link #MODES}
+     * @param format the exchange format, NPY files can't be compressed
+     */
+    IlastikStagingCompression(final String mode, final IlastikExchangeFormat format) {
+        if (format == IlastikExchangeFormat.NPY || NONE.equals(mode)) {
+            m_decision = false;
+        } else if (COMPRESSED.equals(mode)) {
+            m_decision = true;
+        }
+    }
+
+    /**
+     * @return whether the next image should be compressed
+     */
+    synchronized boolean next() {
+        if (m_decision != null) {
+            return m_decision;
+        }
+        // the images which are still being written count as samples, so that parallel writes alternate as well
+        final boolean compress = m_started[1] < m_started[0];
+        m_started[compress ? 1 : 0]++;
+        return compress;
+    }
+
+    /**
+     * Record the time it took to write an image.
+     *
+     * @param compressed whether the image was compressed
+     * @param pixels the number of pixels of the image
+     * @param bytes the size of the written file
+     * @param nanos the time it took to encode and write the image
+     */
+    synchronized void record(final boolean compressed, final long pixels, final long bytes, final long nanos) {
+        if (m_decision != null) {
+            return;
+        }
+        final int i = compressed ? 1 : 0;
+        m_recorded[i]++;
+        m_pixels[i] += pixels;
+        m_bytes[i] += bytes;
+        m_nanos[i] += nanos;
+        if (m_recorded[0] >= SAMPLES && m_recorded[1] >= SAMPLES) {
+            m_decision = nanosPerPixel(1) < nanosPerPixel(0);
+            KNIPGateway.log().info(String.format("Staging %s images (compressed %.2f ns and %.2f bytes per pixel, "
+                    + "uncompressed %.2f ns and %.2f bytes per pixel).", m_decision ? "compressed" : "uncompressed",
+                                                 nanosPerPixel(1), bytesPerPixel(1), nanosPerPixel(0),
+                                                 bytesPerPixel(0)));
+        }
+    }
+
+    private double nanosPerPixel(final int i) {
+        return (double)m_nanos[i] / Math.max(1, m_pixels[i]);
+    }
+
+    private double bytesPerPixel(final int i) {
+        return (double)m_bytes[i] / Math.max(1, m_pixels[i]);
+    }
+}
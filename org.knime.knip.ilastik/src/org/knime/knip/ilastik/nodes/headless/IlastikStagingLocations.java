@@ -0,0 +1,294 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2015
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ *
+ */
+package org.knime.knip.ilastik.nodes.headless;
+
+import java.io.File;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.knime.core.node.KNIMEConstants;
+import org.knime.knip.core.KNIPGateway;
+
+/**
+ * The directories the images of an execution are staged in for ilastik. Several candidate locations can be given,
+ * e.g. a RAM disk, a local scratch disk and the KNIME temp directory. Each batch is put into the first location with
+ * enough free space, hence the batches spill over to the next location when the preferred one runs low. The bytes
+ * staged at each location are counted for the report at the end of the execution.
+ * <p>
+ * The free space of a location is reduced by the estimated size of its batches which are still on disk, since their
+ * images are written and deleted asynchronously. The directories are deleted or recycled in the background by the
+ * {@link IlastikStagingReaper}.
+ *
+ * @author Andreas Graumann, University of Konstanz
+ */
+final class IlastikStagingLocations {
+
+    /**
+     * estimated bytes per voxel of a batch on disk: the input image and a float32 result with two classes
+     */
+    static final long BYTES_PER_VOXEL = 12;
+
+    /**
+     * space which is always left free on a location
+     */
+    private static final long MIN_FREE_SPACE = 256L * 1024L * 1024L;
+
+    private static final Pattern SEPARATOR = Pattern.compile("[\\r\\n" + File.pathSeparator + "]+");
+
+    /**
+     * A candidate location and the directory of the execution in it.
+     */
+    private static final class Location {
+
+        private final File m_root;
+
+        private final File m_directory;
+
+        private final FileLock m_lock;
+
+        private long m_reserved;
+
+        private long m_stagedBytes;
+
+        Location(final File root, final File directory) {
+            m_root = root;
+            m_directory = directory;
+            // protects the directory from being swept by other executions
+            m_lock = IlastikStagingReaper.lock(directory);
+        }
+
+        long getFreeSpace() {
+            return m_root.getUsableSpace() - m_reserved;
+        }
+    }
+
+    private final List<Location> m_locations = new ArrayList<>();
+
+    private final boolean m_recycle;
+
+    /**
+     * the location and estimated size of the batches which are on disk
+     */
+    private final Map<String, Location> m_batchLocations = new HashMap<>();
+
+    private final Map<String, Long> m_batchEstimates = new HashMap<>();
+
+    /**
+     * Creates the directory of a new execution in each usable location.
+     *
+     * @param locations the candidate locations in order of preference, separated by line breaks or the path
+     *            separator; the KNIME temp directory is used if empty or none is usable
+     * @param recycle whether idle directories of previous executions are reused and the directories are recycled
+     *            instead of deleted
+     */
+    IlastikStagingLocations(final String locations, final boolean recycle) {
+        m_recycle = recycle;
+        final String execution = UUID.randomUUID().toString();
+        for (final String path : parse(locations)) {
+            final File root = new File(path);
+            final File directory = createDirectory(root, execution);
+            if (directory.isDirectory() && directory.canWrite()) {
+                m_locations.add(new Location(root, directory));
+            } else {
+                KNIPGateway.log().warn("Ignoring the staging directory " + path + ", it can't be written.");
+            }
+        }
+        if (m_locations.isEmpty()) {
+            final File root = new File(KNIMEConstants.getKNIMETempDir());
+            m_locations.add(new Location(root, createDirectory(root, execution)));
+        }
+    }
+
+    /**
+     * @param root a location
+     * @param execution name of the directory of the execution
+     * @return the directory of the execution in the location, claimed from an idle one if recycling
+     */
+    private File createDirectory(final File root, final String execution) {
+        final File parent = new File(root, "ilastik");
+        parent.mkdirs();
+        IlastikStagingReaper.sweep(parent);
+        final File directory = new File(parent, execution);
+        if (!m_recycle || !IlastikStagingReaper.claim(directory)) {
+            directory.mkdirs();
+        }
+        return directory;
+    }
+
+    /**
+     * @param locations the setting
+     * @return the paths of the candidate locations
+     */
+    static List<String> parse(final String locations) {
+        final List<String> paths = new ArrayList<>();
+        for (final String path : SEPARATOR.split(locations == null ? "" : locations)) {
+            if (!path.trim().isEmpty()) {
+                paths.add(path.trim());
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Create the directory of a batch in the first location which has enough free space for it. If no location has,
+     * the location with the most free space is used.
+     *
+     * @param batchIndex index of the batch
+     * @param estimatedBytes estimated size of the batch on disk
+     * @return the path of the directory, ending with a separator
+     */
+    synchronized String createBatchDirectory(final int batchIndex, final long estimatedBytes) {
+        Location chosen = null;
+        for (final Location location : m_locations) {
+            if (location.getFreeSpace() - estimatedBytes >= MIN_FREE_SPACE) {
+                chosen = location;
+                break;
+            }
+            if (chosen == null || location.getFreeSpace() > chosen.getFreeSpace()) {
+                chosen = location;
+            }
+        }
+        if (chosen.getFreeSpace() - estimatedBytes < MIN_FREE_SPACE) {
+            KNIPGateway.log().warn("No staging directory has enough free space for batch " + batchIndex + " ("
+                    + FileUtils.byteCountToDisplaySize(estimatedBytes) + "), using " + chosen.m_root + ".");
+        }
+
+        final File directory = new File(chosen.m_directory, "batch" + batchIndex);
+        directory.mkdirs();
+        final String path = directory.getPath() + File.separator;
+        chosen.m_reserved += estimatedBytes;
+        m_batchLocations.put(path, chosen);
+        m_batchEstimates.put(path, estimatedBytes);
+        return path;
+    }
+
+    /**
+     * Count the size of the given files towards the location of a batch.
+     *
+     * @param batchDirectory the directory of the batch
+     * @param files files of the batch, missing files are ignored
+     */
+    synchronized void addStagedFiles(final String batchDirectory, final List<String> files) {
+        final Location location = m_batchLocations.get(batchDirectory);
+        if (location != null) {
+            for (final String file : files) {
+                location.m_stagedBytes += new File(file).length();
+            }
+        }
+    }
+
+    /**
+     * Delete the files of a batch in the background. The space reserved for the batch is freed once they are deleted.
+     *
+     * @param batchDirectory the directory of the batch
+     */
+    void deleteBatchDirectory(final String batchDirectory) {
+        final File directory = new File(batchDirectory);
+        if (m_recycle) {
+            // the next execution creates the batch directories with the same names
+            IlastikStagingReaper.empty(directory, () -> release(batchDirectory));
+        } else {
+            IlastikStagingReaper.delete(directory, () -> release(batchDirectory));
+        }
+    }
+
+    private synchronized void release(final String batchDirectory) {
+        final Location location = m_batchLocations.remove(batchDirectory);
+        if (location != null) {
+            location.m_reserved -= m_batchEstimates.remove(batchDirectory);
+        }
+    }
+
+    /**
+     * @return the bytes staged at each location, in order of preference
+     */
+    synchronized Map<String, Long> getStagedBytes() {
+        final Map<String, Long> bytes = new LinkedHashMap<>();
+        for (final Location location : m_locations) {
+            bytes.put(location.m_root.getPath(), location.m_stagedBytes);
+        }
+        return Collections.unmodifiableMap(bytes);
+    }
+
+    /**
+     * @return a summary of the bytes staged at each location, e.g. for the log
+     */
+    String report() {
+        final StringBuilder report = new StringBuilder("Staged");
+        String separator = " ";
+        for (final Map.Entry<String, Long> entry : getStagedBytes().entrySet()) {
+            report.append(separator).append(FileUtils.byteCountToDisplaySize(entry.getValue())).append(" in ")
+                    .append(entry.getKey());
+            separator = ", ";
+        }
+        return report.append('.').toString();
+    }
+
+    /**
+     * Unlock the directories of the execution in all locations and delete or recycle them in the background.
+     */
+    void close() {
+        for (final Location location : m_locations) {
+            IlastikStagingReaper.unlock(location.m_lock);
+            if (m_recycle) {
+                IlastikStagingReaper.recycle(location.m_directory);
+            } else {
+                IlastikStagingReaper.delete(location.m_directory, null);
+            }
+        }
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2015
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ *
+ */
+package org.knime.knip.ilastik.nodes.headless;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.knime.knip.core.KNIPGateway;
+
+/**
+ * Deletes staging directories in the background, so that the node doesn't have to wait until all staged images are
+ * removed. The directory of each execution contains a lock file which is locked while the execution is running; the
+ * directories of executions which crashed are unlocked and are swept when a location is used for the first time.
+ * <p>
+ * Optionally the directories are recycled: their files are deleted, but the directory tree is kept as an idle
+ * directory which the next execution claims instead of creating a new one.
+ *
+ * @author Andreas Graumann, University of Konstanz
+ */
+final class IlastikStagingReaper {
+
+    static final String LOCK_FILE = ".lock";
+
+    private static final String IDLE_PREFIX = "idle-";
+
+    /**
+     * age of an unlocked directory before it is swept, since the lock is taken right after its creation
+     */
+    private static final long GRACE_PERIOD_MS = TimeUnit.MINUTES.toMillis(10);
+
+    private static final int MAX_IDLE_DIRECTORIES = 4;
+
+    private static final ExecutorService REAPER = Executors.newSingleThreadExecutor(r -> {
+        final Thread t = new Thread(r, "Ilastik staging reaper");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+
+    private static final Set<File> SWEPT_PARENTS = ConcurrentHashMap.newKeySet();
+
+    private IlastikStagingReaper() {
+        // NB Util Class
+    }
+
+    /**
+     * Delete a directory in the background.
+     *
+     * @param directory the directory
+     * @param whenDone called after the directory has been deleted, may be null
+     */
+    static void delete(final File directory, final Runnable whenDone) {
+        REAPER.execute(() -> {
+            FileUtils.deleteQuietly(directory);
+            if (whenDone != null) {
+                whenDone.run();
+            }
+        });
+    }
+
+    /**
+     * Delete the files of a directory in the background, but keep its subdirectories.
+     *
+     * @param directory the directory
+     * @param whenDone called after the files have been deleted, may be null
+     */
+    static void empty(final File directory, final Runnable whenDone) {
+        REAPER.execute(() -> {
+            deleteFiles(directory);
+            if (whenDone != null) {
+                whenDone.run();
+            }
+        });
+    }
+
+    /**
+     * Delete the files of an execution directory in the background and make it available to {@link #claim}. If there
+     * are enough idle directories already, the directory is deleted.
+     *
+     * @param directory the directory of a finished execution, unlocked
+     */
+    static void recycle(final File directory) {
+        REAPER.execute(() -> {
+            final File[] idle = directory.getParentFile().listFiles((dir, name) -> name.startsWith(IDLE_PREFIX));
+            if (idle != null && idle.length >= MAX_IDLE_DIRECTORIES) {
+                FileUtils.deleteQuietly(directory);
+                return;
+            }
+            // left over files would collide with the files of the next execution
+            if (!deleteFiles(directory)
+                    || !directory.renameTo(new File(directory.getParentFile(), IDLE_PREFIX + UUID.randomUUID()))) {
+                FileUtils.deleteQuietly(directory);
+            }
+        });
+    }
+
+    /**
+     * Claim an idle directory for a new execution.
+     *
+     * @param directory the directory of the new execution, which doesn't exist yet
+     * @return whether an idle directory has been renamed to the given directory
+     */
+    static boolean claim(final File directory) {
+        final File[] idle = directory.getParentFile().listFiles((dir, name) -> name.startsWith(IDLE_PREFIX));
+        if (idle != null) {
+            for (final File candidate : idle) {
+                // the rename fails if another execution claimed the directory first
+                if (candidate.renameTo(directory)) {
+                    // not yet locked, keep it from being swept
+                    directory.setLastModified(System.currentTimeMillis());
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Take the lock of an execution directory.
+     *
+     * @param directory the directory of a new execution
+     * @return the lock, null if it can't be taken
+     */
+    static FileLock lock(final File directory) {
+        try {
+            final FileChannel channel = FileChannel.open(new File(directory, LOCK_FILE).toPath(),
+                                                         StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            final FileLock lock = channel.tryLock();
+            if (lock == null) {
+                channel.close();
+            }
+            return lock;
+        } catch (IOException | OverlappingFileLockException e) {
+            KNIPGateway.log().debug("Can't lock the staging directory " + directory + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Release the lock of an execution directory.
+     *
+     * @param lock the lock, may be null
+     */
+    static void unlock(final FileLock lock) {
+        if (lock != null) {
+            try {
+                lock.release();
+                lock.channel().close();
+            } catch (IOException e) {
+                KNIPGateway.log().debug("Can't release the lock of a staging directory: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Delete the directories of crashed executions in the background, once per parent directory and JVM.
+     *
+     * @param parent the directory containing the execution directories
+     */
+    static void sweep(final File parent) {
+        if (!SWEPT_PARENTS.add(parent.getAbsoluteFile())) {
+            return;
+        }
+        REAPER.execute(() -> {
+            final File[] directories = parent.listFiles(
+                    file -> file.isDirectory() && !file.getName().startsWith(IDLE_PREFIX));
+            if (directories == null) {
+                return;
+            }
+            for (final File directory : directories) {
+                if (System.currentTimeMillis() - directory.lastModified() >= GRACE_PERIOD_MS && isOrphaned(directory)) {
+                    KNIPGateway.log().debug("Deleting the orphaned staging directory " + directory + ".");
+                    FileUtils.deleteQuietly(directory);
+                }
+            }
+        });
+    }
+
+    /**
+     * Delete the directories which nobody has locked for the given time in the background, once per parent directory
+     * and JVM. Used for the result stores of the incremental execution, whose lock file is touched whenever a node
+     * takes the lock.
+     *
+     * @param parent the directory containing the locked directories
+     * @param maxAgeMs time since the last use after which an unlocked directory is deleted
+     */
+    static void sweepUnused(final File parent, final long maxAgeMs) {
+        if (!SWEPT_PARENTS.add(parent.getAbsoluteFile())) {
+            return;
+        }
+        REAPER.execute(() -> {
+            final File[] directories = parent.listFiles(File::isDirectory);
+            if (directories == null) {
+                return;
+            }
+            for (final File directory : directories) {
+                final File lockFile = new File(directory, LOCK_FILE);
+                final long lastUse = lockFile.exists() ? lockFile.lastModified() : directory.lastModified();
+                if (System.currentTimeMillis() - lastUse >= maxAgeMs && isOrphaned(directory)) {
+                    KNIPGateway.log().debug("Deleting the unused directory " + directory + ".");
+                    FileUtils.deleteQuietly(directory);
+                }
+            }
+        });
+    }
+
+    /**
+     * @param directory an execution directory
+     * @return whether no execution holds the lock of the directory
+     */
+    private static boolean isOrphaned(final File directory) {
+        final File lockFile = new File(directory, LOCK_FILE);
+        if (!lockFile.exists()) {
+            // crashed before taking the lock
+            return true;
+        }
+        try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.WRITE)) {
+            final FileLock lock = channel.tryLock();
+            if (lock == null) {
+                // locked by another process
+                return false;
+            }
+            lock.release();
+            return true;
+        } catch (IOException | OverlappingFileLockException e) {
+            // locked by an execution of this JVM
+            return false;
+        }
+    }
+
+    /**
+     * @param directory a directory
+     * @return whether all files of the directory and its subdirectories have been deleted
+     */
+    private static boolean deleteFiles(final File directory) {
+        final boolean[] deleted = {true};
+        try {
+            Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+                    try {
+                        Files.delete(file);
+                    } catch (IOException e) {
+                        // e.g. still opened by a reader on Windows
+                        deleted[0] = false;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(final Path file, final IOException exc) {
+                    deleted[0] = false;
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            KNIPGateway.log().debug("Can't delete the files of " + directory + ": " + e.getMessage());
+            return false;
+        }
+        return deleted[0];
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2015
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ *
+ */
+package org.knime.knip.ilastik.nodes.headless;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.knime.knip.core.KNIPGateway;
+
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import net.imagej.ImgPlus;
+import net.imagej.axis.CalibratedAxis;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgView;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Cuts images into tiles which are processed by ilastik separately and stitches the results. Each tile is extended by
+ * a halo, so that the features of the pixels at the border of the tile are computed as for the whole image; the halo
+ * is cropped from the results.
+ *
+ * @author Andreas Graumann, University of Konstanz
+ */
+final class IlastikTiling {
+
+    /**
+     * path of the feature scales in an ilastik project file
+     */
+    private static final String SCALES_DATASET = "FeatureSelections/Scales";
+
+    /**
+     * radius of the filter kernels in multiples of sigma, as used by the ilastik features
+     */
+    private static final double WINDOW_SIZE = 3.5;
+
+    /**
+     * halo used if the project has no feature scales
+     */
+    private static final int DEFAULT_HALO = 32;
+
+    private IlastikTiling() {
+        // utility class
+    }
+
+    /**
+     * A tile of an image. All positions are given in the dimensions of the input image.
+     */
+    static final class Tile {
+
+        private final Interval m_core;
+
+        private final Interval m_withHalo;
+
+        private final StitchedResult m_result;
+
+        private final boolean m_last;
+
+        Tile(final Interval core, final Interval withHalo, final StitchedResult result, final boolean last) {
+            m_core = core;
+            m_withHalo = withHalo;
+            m_result = result;
+            m_last = last;
+        }
+
+        /**
+         * @return the part of the image covered by this tile in the result
+         */
+        Interval getCore() {
+            return m_core;
+        }
+
+        /**
+         * @return the part of the image processed by ilastik
+         */
+        Interval getWithHalo() {
+            return m_withHalo;
+        }
+
+        /**
+         * @return the result the tile belongs to
+         */
+        StitchedResult getResult() {
+            return m_result;
+        }
+
+        /**
+         * @return whether this is the last tile of its image
+         */
+        boolean isLast() {
+            return m_last;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder s = new StringBuilder();
+            for (int d = 0; d < m_withHalo.numDimensions(); d++) {
+                s.append(d == 0 ? "" : ",").append(m_withHalo.min(d)).append('-').append(m_withHalo.max(d));
+            }
+            return s.toString();
+        }
+    }
+
+    /**
+     * The result image of a tiled image, which is assembled from the results of the tiles. The tiles may be pasted
+     * concurrently, as they cover distinct cells of the result.
+     */
+    static final class StitchedResult {
+
+        private final long[] m_dims;
+
+        private final String m_resultAxes;
+
+        private final int m_tileSize;
+
+        private Img<?> m_img;
+
+        /**
+         * @param dims dimensions of the input image
+         * @param resultAxes ilastik axis keys of the results of the tiles
+         * @param tileSize edge length of the tiles
+         */
+        StitchedResult(final long[] dims, final String resultAxes, final int tileSize) {
+            m_dims = dims;
+            m_resultAxes = resultAxes;
+            m_tileSize = tileSize;
+        }
+
+        /**
+         * Copy the core of the result of a tile into this result.
+         *
+         * @param tile the tile
+         * @param tileResult the result of ilastik for the tile, including the halo
+         */
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        void paste(final Tile tile, final Img<? extends RealType<?>> tileResult) {
+            final Img img = getImg(tileResult);
+
+            final int n = img.numDimensions();
+            final long[] srcMin = new long[n];
+            final long[] srcMax = new long[n];
+            final long[] dstMin = new long[n];
+            final long[] dstMax = new long[n];
+            for (int d = 0; d < n; d++) {
+                if (isTiled(m_resultAxes.charAt(d))) {
+                    srcMin[d] = tile.getCore().min(d) - tile.getWithHalo().min(d);
+                    srcMax[d] = tile.getCore().max(d) - tile.getWithHalo().min(d);
+                    dstMin[d] = tile.getCore().min(d);
+                    dstMax[d] = tile.getCore().max(d);
+                } else {
+                    srcMax[d] = tileResult.dimension(d) - 1;
+                    dstMax[d] = img.dimension(d) - 1;
+                }
+            }
+
+            final Cursor<RealType> in = Views.flatIterable(Views.interval((Img)tileResult, srcMin, srcMax)).cursor();
+            final Cursor<RealType> out = Views.flatIterable(Views.interval(img, dstMin, dstMax)).cursor();
+            while (in.hasNext()) {
+                out.next().set(in.next());
+            }
+        }
+
+        /**
+         * @return the stitched image, null if no tile has been pasted
+         */
+        synchronized Img<?> getImg() {
+            return m_img;
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private synchronized Img<?> getImg(final Img<? extends RealType<?>> tileResult) {
+            if (m_img == null) {
+                final int n = m_resultAxes.length();
+                final long[] dims = new long[n];
+                final int[] cellDims = new int[n];
+                for (int d = 0; d < n; d++) {
+                    final boolean tiled = isTiled(m_resultAxes.charAt(d));
+                    // the channels of the result are the ones computed by ilastik
+                    dims[d] = tiled || m_resultAxes.charAt(d) == 't' ? m_dims[d] : tileResult.dimension(d);
+                    cellDims[d] = tiled ? (int)Math.min(m_tileSize, dims[d]) : 1;
+                }
+                // one cell per tile, so that tiles are pasted into distinct cells
+                final NativeType type = (NativeType)tileResult.firstElement();
+                m_img = new CellImgFactory(cellDims).create(dims, type.createVariable());
+            }
+            return m_img;
+        }
+    }
+
+    /**
+     * @param key an ilastik axis key
+     * @return whether images are cut along the axis
+     */
+    private static boolean isTiled(final char key) {
+        return key == 'x' || key == 'y' || key == 'z';
+    }
+
+    /**
+     * Cut an image into tiles.
+     *
+     * @param dims dimensions of the image
+     * @param axes ilastik axis keys of the image
+     * @param tileSize edge length of the tiles along the spatial axes
+     * @param halo width of the halo
+     * @return the tiles in order, the last one marked as such
+     */
+    static List<Tile> createTiles(final long[] dims, final String axes, final int tileSize, final int halo) {
+        final int n = dims.length;
+        final String resultAxes = axes.indexOf('c') < 0 ? axes + 'c' : axes;
+        final StitchedResult result = new StitchedResult(dims, resultAxes, tileSize);
+
+        final long[] nrTiles = new long[n];
+        long total = 1;
+        for (int d = 0; d < n; d++) {
+            nrTiles[d] = isTiled(axes.charAt(d)) ? (dims[d] + tileSize - 1) / tileSize : 1;
+            total *= nrTiles[d];
+        }
+
+        final List<Tile> tiles = new ArrayList<>();
+        final long[] min = new long[n];
+        final long[] max = new long[n];
+        final long[] haloMin = new long[n];
+        final long[] haloMax = new long[n];
+        for (long i = 0; i < total; i++) {
+            long rest = i;
+            for (int d = 0; d < n; d++) {
+                final long pos = rest % nrTiles[d];
+                rest /= nrTiles[d];
+                if (isTiled(axes.charAt(d))) {
+                    min[d] = pos * tileSize;
+                    max[d] = Math.min(dims[d], min[d] + tileSize) - 1;
+                    haloMin[d] = Math.max(0, min[d] - halo);
+                    haloMax[d] = Math.min(dims[d] - 1, max[d] + halo);
+                } else {
+                    min[d] = haloMin[d] = 0;
+                    max[d] = haloMax[d] = dims[d] - 1;
+                }
+            }
+            tiles.add(new Tile(new FinalInterval(min, max), new FinalInterval(haloMin, haloMax), result,
+                    i == total - 1));
+        }
+        return tiles;
+    }
+
+    /**
+     * @param img an image
+     * @param interval part of the image
+     * @return the part of the image as image with the same axes
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static ImgPlus<?> crop(final ImgPlus<?> img, final Interval interval) {
+        final CalibratedAxis[] axes = new CalibratedAxis[img.numDimensions()];
+        img.axes(axes);
+        final Img crop = ImgView.wrap(Views.zeroMin(Views.interval((ImgPlus)img, interval)), new ArrayImgFactory());
+        return new ImgPlus(crop, img.getName(), axes);
+    }
+
+    /**
+     * Determine the halo needed for the features of a project, which is given by the largest scale of the features.
+     *
+     * @param projectPath the ilastik project file
+     * @return width of the halo in pixels
+     */
+    static int haloFromProject(final String projectPath) {
+        try (IHDF5Reader reader = HDF5Factory.openForReading(projectPath)) {
+            if (!reader.object().exists(SCALES_DATASET)) {
+                KNIPGateway.log().warn("The ilastik project has no feature scales, using a halo of " + DEFAULT_HALO
+                        + " pixels.");
+                return DEFAULT_HALO;
+            }
+            double maxScale = 0;
+            for (final double scale : reader.float64().readArray(SCALES_DATASET)) {
+                maxScale = Math.max(maxScale, scale);
+            }
+            return (int)Math.ceil(WINDOW_SIZE * maxScale) + 1;
+        }
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2015
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ *
+ */
+package org.knime.knip.ilastik.nodes.headless;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonReader;
+
+import org.eclipse.core.runtime.FileLocator;
+import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.ExecutionMonitor;
+import org.knime.knip.core.KNIPGateway;
+import org.knime.knip.ilastik.nodes.IlastikPreferencePage;
+import org.knime.knip.ilastik.nodes.headless.IlastikHeadlessNodeModel.DirectedLogServiceFactory;
+import org.osgi.framework.FrameworkUtil;
+import org.scijava.log.DefaultUncaughtExceptionHandler;
+
+/**
+ * A long running ilastik process which loads a project once and then processes batches of images. The requests are
+ * sent as JSON lines over stdin of the process, see {@code scripts/ilastik_worker.py} for the protocol.
+ *
+ * @author Andreas Graumann, University of Konstanz
+ */
+final class IlastikWorker implements AutoCloseable {
+
+    private static final String SCRIPT = "scripts/ilastik_worker.py";
+
+    private static final String REPLY_PREFIX = "@@ilastik-worker@@ ";
+
+    private final String m_key;
+
+    private final Process m_process;
+
+    private final Writer m_requests;
+
+    private final BlockingQueue<JsonObject> m_replies = new LinkedBlockingQueue<>();
+
+    private final IlastikLogPump m_logPump = new IlastikLogPump();
+
+    private final Thread m_outputReader;
+
+    private volatile boolean m_broken;
+
+    private IlastikWorker(final String key, final Process process) {
+        m_key = key;
+        m_process = process;
+        m_requests = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+
+        m_outputReader = new Thread("Ilastik worker output") {
+            @Override
+            public void run() {
+                readOutput();
+            }
+        };
+        m_outputReader.setUncaughtExceptionHandler(new DefaultUncaughtExceptionHandler(KNIPGateway.log()));
+        m_outputReader.setDaemon(true);
+        m_outputReader.start();
+
+        m_logPump.pump(process.getErrorStream(), DirectedLogServiceFactory.error());
+    }
+
+    /**
+     * Start a worker and wait until it has loaded the project.
+     *
+     * @param key identifies the configuration of the worker
+     * @param project path of the ilastik project file
+     * @param threadCount value of LAZYFLOW_THREADS
+     * @param maxMemory value of LAZYFLOW_TOTAL_RAM_MB
+     * @param exec
+     * @return the started worker
+     * @throws IOException
+     * @throws InterruptedException
+     * @throws CanceledExecutionException
+     */
+    static IlastikWorker start(final String key, final String project, final int threadCount, final int maxMemory,
+                               final ExecutionMonitor exec)
+            throws IOException, InterruptedException, CanceledExecutionException {
+        final List<String> command = new ArrayList<>();
+        command.add(IlastikPreferencePage.getPythonPath());
+        command.add(getScriptPath());
+        command.add(project);
+
+        KNIPGateway.log().debug("Starting ilastik worker with " + String.join(", ", command));
+
+        final ProcessBuilder pB = new ProcessBuilder(command);
+
+        // limit cpu + memory usage
+        final Map<String, String> env = pB.environment();
+        env.put("LAZYFLOW_THREADS", String.valueOf(threadCount));
+        env.put("LAZYFLOW_TOTAL_RAM_MB", String.valueOf(maxMemory));
+
+        final IlastikWorker worker = new IlastikWorker(key, pB.start());
+        try {
+            final JsonObject reply = worker.waitForReply(null, exec);
+            if (!"ready".equals(reply.getString("status", null))) {
+                throw new IllegalStateException(
+                        "The ilastik worker could not be started: " + reply.getString("message", ""));
+            }
+        } catch (Exception e) {
+            worker.destroy();
+            throw e;
+        }
+        return worker;
+    }
+
+    /**
+     * @return the location of the worker script on disk
+     * @throws IOException
+     */
+    private static String getScriptPath() throws IOException {
+        final URL url = FileLocator.toFileURL(FrameworkUtil.getBundle(IlastikWorker.class).getEntry(SCRIPT));
+        return new File(url.getPath()).getAbsolutePath();
+    }
+
+    /**
+     * Process a batch of images. Blocks until ilastik wrote all results.
+     *
+     * @param inputs the input arguments
+     * @param exportArgs the export arguments of ilastik's headless mode
+     * @param inputAxes axes of the input files, null if the files carry them
+     * @param whileWaiting called regularly while ilastik is processing the inputs
+     * @param exec
+     * @throws IOException
+     * @throws InterruptedException
+     * @throws CanceledExecutionException
+     */
+    void process(final List<String> inputs, final List<String> exportArgs, final String inputAxes,
+                 final Runnable whileWaiting, final ExecutionMonitor exec)
+            throws IOException, InterruptedException, CanceledExecutionException {
+        final JsonObjectBuilder builder =
+                Json.createObjectBuilder().add("inputs", toJson(inputs)).add("args", toJson(exportArgs));
+        if (inputAxes != null) {
+            builder.add("input_axes", inputAxes);
+        }
+        final JsonObject request = builder.build();
+
+        KNIPGateway.log().debug("Sending request to ilastik worker: " + request);
+
+        final JsonObject reply;
+        try {
+            m_requests.write(request.toString());
+            m_requests.write('\n');
+            m_requests.flush();
+            reply = waitForReply(whileWaiting, exec);
+        } catch (IOException | CanceledExecutionException | InterruptedException e) {
+            // the worker is in an undefined state
+            destroy();
+            throw e;
+        }
+
+        if (!"ok".equals(reply.getString("status", null))) {
+            throw new IllegalStateException(
+                    "Execution of ilastik was not successful: " + reply.getString("message", "")
+                            + m_logPump.describeTail());
+        }
+    }
+
+    private static JsonArrayBuilder toJson(final List<String> values) {
+        final JsonArrayBuilder array = Json.createArrayBuilder();
+        for (final String value : values) {
+            array.add(value);
+        }
+        return array;
+    }
+
+    private JsonObject waitForReply(final Runnable whileWaiting, final ExecutionMonitor exec)
+            throws InterruptedException, CanceledExecutionException {
+        while (true) {
+            final JsonObject reply = m_replies.poll(500, TimeUnit.MILLISECONDS);
+            if (reply != null) {
+                return reply;
+            }
+            exec.checkCanceled();
+            if (whileWaiting != null) {
+                whileWaiting.run();
+            }
+            if (!m_process.isAlive()) {
+                // the reply may have been written right before the worker exited, e.g. if it can't load the project
+                m_outputReader.join(1000);
+                final JsonObject last = m_replies.poll();
+                if (last != null) {
+                    return last;
+                }
+                m_broken = true;
+                m_logPump.awaitEnd();
+                throw new IllegalStateException("The ilastik worker terminated unexpectedly with exit code "
+                        + m_process.exitValue() + "." + m_logPump.describeTail());
+            }
+        }
+    }
+
+    /**
+     * Separates the replies of the worker from the log output of ilastik.
+     */
+    private void readOutput() {
+        try (BufferedReader bis =
+                new BufferedReader(new InputStreamReader(m_process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = bis.readLine()) != null) {
+                if (line.startsWith(REPLY_PREFIX)) {
+                    final String reply = line.substring(REPLY_PREFIX.length());
+                    try (JsonReader reader = Json.createReader(new StringReader(reply))) {
+                        m_replies.add(reader.readObject());
+                    }
+                } else {
+                    m_logPump.log(line, DirectedLogServiceFactory.debug());
+                }
+            }
+        } catch (IOException ioe) {
+            throw new RuntimeException("Could not read ilastik output", ioe);
+        }
+    }
+
+    /**
+     * @return the configuration of this worker
+     */
+    String getKey() {
+        return m_key;
+    }
+
+    /**
+     * @return whether the worker can process further requests
+     */
+    boolean isAlive() {
+        return !m_broken && m_process.isAlive();
+    }
+
+    private void destroy() {
+        m_broken = true;
+        m_process.destroy();
+    }
+
+    /**
+     * Ask the worker to shut down and kill it if it does not terminate in time.
+     */
+    @Override
+    public void close() {
+        if (isAlive()) {
+            try {
+                m_requests.write("{\"command\": \"shutdown\"}\n");
+                m_requests.flush();
+                if (m_process.waitFor(10, TimeUnit.SECONDS)) {
+                    return;
+                }
+            } catch (IOException e) {
+                KNIPGateway.log().debug("Could not shut down ilastik worker: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        destroy();
+    }
+}
@@ -0,0 +1,556 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2015
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ *
+ */
+package org.knime.knip.ilastik.nodes.headless;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Runs ilastik for {@link IlastikRemoteExecutor}s on a compute node. Each connection is a job: the staged images are
+ * received into a directory of its own, ilastik is run on them with the same command line as on the KNIME host, and
+ * its output and results are sent back while it is running. Only depends on the JDK, e.g.
+ *
+ * <pre>
+ * java -cp knipilastik.jar org.knime.knip.ilastik.nodes.headless.IlastikWorkerDaemon \
+ *     --ilastik /opt/ilastik/run_ilastik.sh
+ * </pre>
+ *
+ * The projects are kept in the work directory by their hash, so that they are transferred only once.
+ * <p>
+ * The daemon runs programs with arguments sent over the network, hence it only listens on the loopback interface
+ * unless another address is given with --bind, and only runs jobs of clients which know its token, which is read from
+ * the file given with --token-file. Only the export arguments and values the node uses are accepted, and all files
+ * ilastik reads and writes have to be in the directory of the job. A project is only stored if it matches the hash it
+ * is sent with. The connection is not encrypted, so the daemon must only be run in a trusted network.
+ *
+ * @author Andreas Graumann, University of Konstanz
+ */
+public final class IlastikWorkerDaemon implements AutoCloseable {
+
+    /**
+     * interval in which the job directory is checked for complete results
+     */
+    private static final long POLL_MILLIS = 200;
+
+    private static final String OUTPUT_FILENAME_FLAG = "--output_filename_format=";
+
+    /**
+     * the export arguments which are paths, they have to be in the directory of the job
+     */
+    private static final List<String> PATH_FLAGS = Arrays.asList(OUTPUT_FILENAME_FLAG, "--table_filename=");
+
+    /**
+     * the other export arguments the node passes to ilastik with the values it passes, all others are rejected
+     */
+    private static final Map<String, Pattern> EXPORT_FLAGS = createExportFlags();
+
+    private static final Pattern PROJECT_HASH = Pattern.compile("[0-9a-f]{64}");
+
+    private static final Pattern INPUT_AXES = Pattern.compile("[xyzct]{0,5}");
+
+    private final byte[] m_token;
+
+    private final String m_ilastik;
+
+    private final Path m_workDir;
+
+    private final ServerSocket m_serverSocket;
+
+    private final ExecutorService m_jobs = Executors.newCachedThreadPool(r -> {
+        final Thread t = new Thread(r, "Ilastik worker daemon job");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * @param bindAddress the address to listen on, e.g. the loopback address
+     * @param port the port to listen on, 0 for any free port
+     * @param token the shared token clients have to send
+     * @param ilastik path of the ilastik executable
+     * @param workDir directory for the projects and jobs
+     * @throws IOException if the port can't be bound
+     */
+    public IlastikWorkerDaemon(final InetAddress bindAddress, final int port, final String token,
+                               final String ilastik, final Path workDir)
+            throws IOException {
+        if (token == null || token.isEmpty()) {
+            throw new IllegalArgumentException("The token must not be empty.");
+        }
+        m_token = token.getBytes(StandardCharsets.UTF_8);
+        m_ilastik = ilastik;
+        m_workDir = workDir.toAbsolutePath().normalize();
+        Files.createDirectories(m_workDir.resolve("projects"));
+        m_serverSocket = new ServerSocket(port, 50, bindAddress);
+    }
+
+    /**
+     * @return the port the daemon listens on
+     */
+    public int getPort() {
+        return m_serverSocket.getLocalPort();
+    }
+
+    /**
+     * Accept jobs in a background thread until the daemon is closed.
+     */
+    public void start() {
+        final Thread acceptor = new Thread(this::serve, "Ilastik worker daemon");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Accept jobs until the daemon is closed.
+     */
+    public void serve() {
+        while (!m_serverSocket.isClosed()) {
+            try {
+                final Socket socket = m_serverSocket.accept();
+                m_jobs.execute(() -> handle(socket));
+            } catch (final IOException e) {
+                if (!m_serverSocket.isClosed()) {
+                    System.err.println("Could not accept a job: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void handle(final Socket socket) {
+        Path jobDir = null;
+        Process process = null;
+        try (Socket s = socket) {
+            socket.setTcpNoDelay(true);
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            final int version = in.readInt();
+            if (version != IlastikRemoteProtocol.VERSION) {
+                reject(out, "Unsupported protocol version " + version + ".");
+                return;
+            }
+            if (!MessageDigest.isEqual(m_token, in.readUTF().getBytes(StandardCharsets.UTF_8))) {
+                System.err.println("Rejected a client with a wrong token from " + socket.getRemoteSocketAddress());
+                reject(out, "Wrong token.");
+                return;
+            }
+            final String projectHash = in.readUTF();
+            final String clientDir = in.readUTF();
+            final List<String> exportArgs = IlastikRemoteProtocol.readStrings(in);
+            final String inputAxes = in.readUTF();
+            final int threadCount = in.readInt();
+            final int maxMemory = in.readInt();
+            final List<String> inputs = IlastikRemoteProtocol.readStrings(in);
+
+            if (!PROJECT_HASH.matcher(projectHash).matches() || !INPUT_AXES.matcher(inputAxes).matches()) {
+                reject(out, "Invalid project hash or input axes.");
+                return;
+            }
+
+            jobDir = Files.createTempDirectory(m_workDir, "job");
+            final String dir = jobDir.toString() + jobDir.getFileSystem().getSeparator();
+            // the same command line as on the KNIME host, with the paths of this job
+            final List<String> command = new ArrayList<>();
+            try {
+                command.addAll(createArguments(exportArgs, inputs, clientDir, jobDir, dir));
+            } catch (final IllegalArgumentException e) {
+                reject(out, e.getMessage());
+                return;
+            }
+            final Map<String, Integer> resultIndices = indexResults(command, inputs.size(), jobDir);
+
+            final Path project = m_workDir.resolve("projects").resolve(projectHash + ".ilp");
+            final boolean needProject = !Files.exists(project);
+            out.writeByte(needProject ? IlastikRemoteProtocol.NEED_PROJECT : IlastikRemoteProtocol.HAVE_PROJECT);
+            out.flush();
+
+            final Set<Path> inputFiles = new HashSet<>();
+            final int nrInputFiles = in.readInt();
+            for (int i = 0; i < nrInputFiles; i++) {
+                final Path file = resolve(jobDir, in.readUTF());
+                IlastikRemoteProtocol.readFile(in, file);
+                inputFiles.add(file);
+            }
+            if (needProject) {
+                final boolean valid;
+                synchronized (this) {
+                    // another job may be receiving the same project
+                    valid = IlastikRemoteProtocol.readFile(in, project, projectHash);
+                }
+                if (!valid) {
+                    System.err.println("Rejected a project which doesn't match its hash from "
+                            + socket.getRemoteSocketAddress());
+                    reject(out, "The project file doesn't match its hash.");
+                    return;
+                }
+            }
+
+            command.add(0, m_ilastik);
+            command.add(1, "--headless");
+            command.add(2, "--project=" + project);
+            if (!inputAxes.isEmpty()) {
+                command.add(3, "--input_axes=" + inputAxes);
+            }
+            final ProcessBuilder builder = new ProcessBuilder(command).redirectErrorStream(true);
+            builder.environment().put("LAZYFLOW_THREADS", String.valueOf(threadCount));
+            builder.environment().put("LAZYFLOW_TOTAL_RAM_MB", String.valueOf(maxMemory));
+            final Process p = builder.start();
+            process = p;
+
+            // the client closes the connection to cancel the job
+            final Thread canceler = new Thread(() -> {
+                try {
+                    in.read();
+                } catch (final IOException e) {
+                    // closed
+                }
+                p.destroy();
+            }, "Ilastik worker daemon cancellation");
+            canceler.setDaemon(true);
+            canceler.start();
+
+            final Thread output = new Thread(() -> forwardOutput(p, out), "Ilastik worker daemon output");
+            output.setDaemon(true);
+            output.start();
+
+            // ilastik writes the results one after the other in the order of the inputs, all but the latest one are
+            // complete
+            final Set<Path> sent = new HashSet<>(inputFiles);
+            while (!p.waitFor(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                final List<Path> results = listNewResults(jobDir, sent, resultIndices);
+                sendFiles(out, jobDir, results.subList(0, Math.max(0, results.size() - 1)), sent);
+            }
+            output.join();
+            sendFiles(out, jobDir, listNewResults(jobDir, sent, resultIndices), sent);
+            // e.g. the object tables
+            sendFiles(out, jobDir, listNewFiles(jobDir, sent), sent);
+            synchronized (out) {
+                out.writeByte(IlastikRemoteProtocol.EXIT);
+                out.writeInt(p.exitValue());
+                out.flush();
+            }
+        } catch (final IOException e) {
+            System.err.println("Job failed: " + e.getMessage());
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (process != null) {
+                process.destroy();
+            }
+            delete(jobDir);
+        }
+    }
+
+    /**
+     * Map the export arguments and inputs of the client to the directory of the job.
+     *
+     * @return the export arguments followed by the inputs
+     * @throws IllegalArgumentException if an argument is not accepted or a path is outside of the job directory
+     */
+    private static List<String> createArguments(final List<String> exportArgs, final List<String> inputs,
+                                                final String clientDir, final Path jobDir, final String dir) {
+        final List<String> args = new ArrayList<>();
+        for (final String arg : exportArgs) {
+            final String pathFlag = PATH_FLAGS.stream().filter(arg::startsWith).findFirst().orElse(null);
+            if (pathFlag != null) {
+                args.add(pathFlag + checkPath(arg.substring(pathFlag.length()), clientDir, jobDir, dir));
+                continue;
+            }
+            final String flag = EXPORT_FLAGS.keySet().stream().filter(arg::startsWith).findFirst()
+                    .orElseThrow(() -> new IllegalArgumentException("Argument not accepted: " + arg));
+            if (!EXPORT_FLAGS.get(flag).matcher(arg.substring(flag.length())).matches()) {
+                throw new IllegalArgumentException("Argument not accepted: " + arg);
+            }
+            args.add(arg);
+        }
+        for (final String input : inputs) {
+            if (input.startsWith("-")) {
+                throw new IllegalArgumentException("Argument not accepted: " + input);
+            }
+            args.add(checkPath(input, clientDir, jobDir, dir));
+        }
+        return args;
+    }
+
+    /**
+     * @return the values of the export arguments, as IlastikHeadlessNodeModel and IlastikExchangeFormat create them
+     */
+    private static Map<String, Pattern> createExportFlags() {
+        final String range = "\\(-?\\d+(\\.\\d+)?,-?\\d+(\\.\\d+)?\\)";
+        final String bound = "\\((None|\\d+)(,(None|\\d+)){0,5}\\)";
+        final Map<String, Pattern> flags = new LinkedHashMap<>();
+        flags.put("--output_format=", Pattern.compile("multipage tiff|hdf5|numpy"));
+        flags.put("--output_internal_path=", Pattern.compile("exported_data"));
+        flags.put("--output_axis_order=", Pattern.compile("[xyzct]{1,5}"));
+        flags.put("--export_source=", Pattern.compile("Probabilities|Simple Segmentation|Uncertainty"));
+        flags.put("--export_dtype=", Pattern.compile("uint8|uint16|uint32|float32"));
+        flags.put("--export_drange=", Pattern.compile(range));
+        flags.put("--export_new_drange=", Pattern.compile(range));
+        flags.put("--cutout_subregion=", Pattern.compile("\\[" + bound + "," + bound + "\\]"));
+        return Collections.unmodifiableMap(flags);
+    }
+
+    /**
+     * @return the path in the directory of the job
+     * @throws IllegalArgumentException if it is outside of the directory of the job
+     */
+    private static String checkPath(final String path, final String clientDir, final Path jobDir, final String dir) {
+        if (!path.startsWith(clientDir)) {
+            throw new IllegalArgumentException("Path outside of the batch directory: " + path);
+        }
+        final String mapped = dir + path.substring(clientDir.length());
+        try {
+            if (!Paths.get(mapped).normalize().startsWith(jobDir)) {
+                throw new IllegalArgumentException("Path outside of the batch directory: " + path);
+            }
+        } catch (final InvalidPathException e) {
+            throw new IllegalArgumentException("Invalid path: " + path, e);
+        }
+        return mapped;
+    }
+
+    /**
+     * Tell the client why its job is not run.
+     */
+    private static void reject(final DataOutputStream out, final String reason) throws IOException {
+        out.writeByte(IlastikRemoteProtocol.LOG);
+        out.writeUTF("The ilastik worker daemon rejected the job: " + reason);
+        out.writeByte(IlastikRemoteProtocol.EXIT);
+        out.writeInt(IlastikRemoteProtocol.REJECTED);
+        out.flush();
+    }
+
+    /**
+     * @return the file, if it is in the directory
+     */
+    private static Path resolve(final Path dir, final String name) throws IOException {
+        final Path file = dir.resolve(name).normalize();
+        if (!file.startsWith(dir)) {
+            throw new IOException("Invalid file name: " + name);
+        }
+        return file;
+    }
+
+    private static void forwardOutput(final Process p, final DataOutputStream out) {
+        try (BufferedReader reader =
+                new BufferedReader(new InputStreamReader(p.getInputStream(), Charset.defaultCharset()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                synchronized (out) {
+                    out.writeByte(IlastikRemoteProtocol.LOG);
+                    // writeUTF is limited to 64k bytes
+                    out.writeUTF(line.length() > 8192 ? line.substring(0, 8192) : line);
+                    out.flush();
+                }
+            }
+        } catch (final IOException e) {
+            // the job is canceled
+        }
+    }
+
+    /**
+     * @param args the export arguments followed by the inputs, mapped to the directory of the job
+     * @param nrInputs the number of inputs
+     * @return the index of the input of each result by the name of the result without its extension, the nickname
+     *         ilastik substitutes in the output filename format is the name of the input file without its extension
+     */
+    private static Map<String, Integer> indexResults(final List<String> args, final int nrInputs, final Path jobDir) {
+        final String format = args.stream().filter(arg -> arg.startsWith(OUTPUT_FILENAME_FLAG)).findFirst()
+                .map(arg -> Paths.get(arg.substring(OUTPUT_FILENAME_FLAG.length())).getFileName().toString())
+                .orElse(null);
+        final Map<String, Integer> indices = new HashMap<>();
+        if (format == null) {
+            return indices;
+        }
+        final List<String> inputs = args.subList(args.size() - nrInputs, args.size());
+        for (int i = 0; i < inputs.size(); i++) {
+            // NB: HDF5 inputs are given with the path of the dataset within the file
+            final String fileName = jobDir.relativize(Paths.get(inputs.get(i)).normalize()).getName(0).toString();
+            final int dot = fileName.lastIndexOf('.');
+            indices.put(format.replace("{nickname}", dot < 0 ? fileName : fileName.substring(0, dot)), i);
+        }
+        return indices;
+    }
+
+    /**
+     * @param resultIndices the index of the input of each result, see {@link #indexResults(List, int, Path)}
+     * @return the results which have not been sent yet, in the order of their inputs, which is the order ilastik
+     *         writes them in
+     */
+    private static List<Path> listNewResults(final Path dir, final Set<Path> sent,
+                                             final Map<String, Integer> resultIndices) throws IOException {
+        final Map<Path, Integer> results = new HashMap<>();
+        for (final Path file : listNewFiles(dir, sent)) {
+            final String name = file.getFileName().toString();
+            final int dot = name.lastIndexOf('.');
+            final Integer index = resultIndices.get(dot < 0 ? name : name.substring(0, dot));
+            if (index != null) {
+                results.put(file, index);
+            }
+        }
+        return results.keySet().stream().sorted(Comparator.comparing(results::get)).collect(Collectors.toList());
+    }
+
+    /**
+     * @return the files which have not been sent yet, by name
+     */
+    private static List<Path> listNewFiles(final Path dir, final Set<Path> sent) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(f -> !sent.contains(f) && Files.isRegularFile(f)).sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static void sendFiles(final DataOutputStream out, final Path dir, final List<Path> files,
+                                  final Set<Path> sent) throws IOException {
+        for (final Path file : files) {
+            synchronized (out) {
+                out.writeByte(IlastikRemoteProtocol.FILE);
+                out.writeUTF(dir.relativize(file).toString());
+                IlastikRemoteProtocol.writeFile(out, file);
+                out.flush();
+            }
+            sent.add(file);
+        }
+    }
+
+    private static void delete(final Path dir) {
+        if (dir == null) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (final Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(file);
+            }
+        } catch (final IOException e) {
+            System.err.println("Could not delete " + dir + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        m_serverSocket.close();
+        m_jobs.shutdownNow();
+    }
+
+    /**
+     * @param args --ilastik &lt;path&gt; --token-file &lt;file&gt; [--bind &lt;address&gt;] [--port &lt;port&gt;]
+     *            [--work-dir &lt;directory&gt;]
+     * @throws IOException if the port can't be bound or the token can't be read
+     */
+    public static void main(final String[] args) throws IOException {
+        String ilastik = null;
+        String tokenFile = null;
+        InetAddress bindAddress = InetAddress.getLoopbackAddress();
+        int port = IlastikRemoteProtocol.DEFAULT_PORT;
+        Path workDir = Paths.get(System.getProperty("java.io.tmpdir"), "ilastik-worker-daemon");
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--ilastik":
+                    ilastik = args[i + 1];
+                    break;
+                case "--token-file":
+                    tokenFile = args[i + 1];
+                    break;
+                case "--bind":
+                    bindAddress = InetAddress.getByName(args[i + 1]);
+                    break;
+                case "--port":
+                    port = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--work-dir":
+                    workDir = Paths.get(args[i + 1]);
+                    break;
+                default:
+                    System.err.println("Unknown argument: " + args[i]);
+                    System.exit(2);
+            }
+        }
+        if (ilastik == null || tokenFile == null) {
+            System.err.println("Usage: IlastikWorkerDaemon --ilastik <path> --token-file <file> [--bind <address>]"
+                    + " [--port <port>] [--work-dir <dir>]");
+            System.exit(2);
+        }
+        final String token = new String(Files.readAllBytes(Paths.get(tokenFile)), StandardCharsets.UTF_8).trim();
+        final IlastikWorkerDaemon daemon = new IlastikWorkerDaemon(bindAddress, port, token, ilastik, workDir);
+        System.err.println("Ilastik worker daemon listening on " + bindAddress.getHostAddress() + ":"
+                + daemon.getPort() + ".");
+        daemon.serve();
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2015
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ *
+ */
+package org.knime.knip.ilastik.nodes.headless;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps idle ilastik workers of a node alive between executions. After a reset of the node the idle workers are shut
+ * down once a keep-alive time has passed, so that the iterations of a loop can reuse them.
+ *
+ * @author Andreas Graumann, University of Konstanz
+ */
+final class IlastikWorkerPool implements AutoCloseable {
+
+    private static final long KEEP_ALIVE_MILLIS = TimeUnit.SECONDS.toMillis(120);
+
+    private static final ScheduledExecutorService SHUTDOWN_TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread t = new Thread(r, "Ilastik worker shutdown");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final List<IlastikWorker> m_idleWorkers = new ArrayList<>();
+
+    private final long m_keepAliveMillis;
+
+    private ScheduledFuture<?> m_scheduledShutdown;
+
+    /**
+     * Keeps the idle workers alive for two minutes after {@link #closeLater()}.
+     */
+    IlastikWorkerPool() {
+        this(KEEP_ALIVE_MILLIS);
+    }
+
+    /**
+     * @param keepAliveMillis time the idle workers are kept alive after {@link #closeLater()}
+     */
+    IlastikWorkerPool(final long keepAliveMillis) {
+        m_keepAliveMillis = keepAliveMillis;
+    }
+
+    /**
+     * @param key the configuration of the worker
+     * @return an idle worker with the given configuration, or null if there is none
+     */
+    synchronized IlastikWorker acquire(final String key) {
+        final Iterator<IlastikWorker> it = m_idleWorkers.iterator();
+        while (it.hasNext()) {
+            final IlastikWorker worker = it.next();
+            if (worker.getKey().equals(key) && worker.isAlive()) {
+                it.remove();
+                return worker;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return a worker to the pool. Workers which can't process further requests are shut down.
+     *
+     * @param worker
+     */
+    synchronized void release(final IlastikWorker worker) {
+        if (worker.isAlive()) {
+            m_idleWorkers.add(worker);
+        } else {
+            worker.close();
+        }
+    }
+
+    /**
+     * Shut down all idle workers with another configuration.
+     *
+     * @param configuration the current configuration, the prefix of the keys of the workers which are kept
+     */
+    synchronized void retain(final String configuration) {
+        final Iterator<IlastikWorker> it = m_idleWorkers.iterator();
+        while (it.hasNext()) {
+            final IlastikWorker worker = it.next();
+            if (!worker.getKey().startsWith(configuration) || !worker.isAlive()) {
+                it.remove();
+                worker.close();
+            }
+        }
+    }
+
+    /**
+     * Shut down the idle workers unless they are used again within the keep-alive time.
+     */
+    synchronized void closeLater() {
+        cancelClose();
+        if (!m_idleWorkers.isEmpty()) {
+            m_scheduledShutdown = SHUTDOWN_TIMER.schedule(this::close, m_keepAliveMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Keep the idle workers alive.
+     */
+    synchronized void cancelClose() {
+        if (m_scheduledShutdown != null) {
+            m_scheduledShutdown.cancel(false);
+            m_scheduledShutdown = null;
+        }
+    }
+
+    /**
+     * Shut down all idle workers.
+     */
+    @Override
+    public synchronized void close() {
+        cancelClose();
+        for (final IlastikWorker worker : m_idleWorkers) {
+            worker.close();
+        }
+        m_idleWorkers.clear();
+    }
+}
@@ -0,0 +1,456 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2015
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ *
+ */
+package org.knime.knip.ilastik.nodes.headless;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.knime.knip.ilastik.nodes.headless.Hdf5Format.ElementType;
+
+/**
+ * Constants and utility methods for the NumPy .npy files exchanged with ilastik. The data is written in C order with
+ * the shape reversed with respect to imglib2, i.e. the flat iteration order of imglib2 is the order of the file.
+ * <p>
+ * The data is transferred in bulk between primitive arrays and memory mapped windows of the file. On Windows, where
+ * mapped files can't be deleted until they are garbage collected, it is copied through buffers instead.
+ *
+ * @author Andreas Graumann, University of Konstanz
+ */
+final class NpyFormat {
+
+    private static final byte[] MAGIC = {(byte)0x93, 'N', 'U', 'M', 'P', 'Y'};
+
+    /**
+     * the header including magic, version and length is padded to a multiple of this
+     */
+    private static final int HEADER_ALIGNMENT = 64;
+
+    private static final int WINDOW_BYTES = 1 << 26;
+
+    private static final boolean USE_MMAP =
+            !System.getProperty("os.name", "generic").toLowerCase().startsWith("win");
+
+    private static final Pattern DESCR = Pattern.compile("'descr'\\s*:\\s*'([^']*)'");
+
+    private static final Pattern FORTRAN_ORDER = Pattern.compile("'fortran_order'\\s*:\\s*(True|False)");
+
+    private static final Pattern SHAPE = Pattern.compile("'shape'\\s*:\\s*\\(([^)]*)\\)");
+
+    private NpyFormat() {
+        // NB Util Class
+    }
+
+    /**
+     * The header of a .npy file.
+     */
+    static final class Header {
+
+        private final ElementType m_type;
+
+        private final long[] m_dims;
+
+        private final long m_dataOffset;
+
+        Header(final ElementType type, final long[] dims, final long dataOffset) {
+            m_type = type;
+            m_dims = dims;
+            m_dataOffset = dataOffset;
+        }
+
+        ElementType getType() {
+            return m_type;
+        }
+
+        /**
+         * @return the dimensions in imglib2 order
+         */
+        long[] getDimensions() {
+            return m_dims;
+        }
+
+        /**
+         * @return position of the data in the file
+         */
+        long getDataOffset() {
+            return m_dataOffset;
+        }
+    }
+
+    /**
+     * @param type an element type
+     * @return the numpy type description, little endian
+     */
+    static String descr(final ElementType type) {
+        switch (type) {
+            case UINT8:
+                return "|u1";
+            case INT8:
+                return "|i1";
+            case UINT16:
+                return "<u2";
+            case INT16:
+                return "<i2";
+            case UINT32:
+                return "<u4";
+            case INT32:
+                return "<i4";
+            case INT64:
+                return "<i8";
+            case FLOAT32:
+                return "<f4";
+            default:
+                return "<f8";
+        }
+    }
+
+    private static ElementType fromDescr(final String descr) {
+        for (final ElementType type : ElementType.values()) {
+            if (descr(type).substring(1).equals(descr.substring(1))
+                    && (descr.charAt(0) != '>' || descr.endsWith("1"))) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unsupported numpy data type: " + descr);
+    }
+
+    /**
+     * @param type an element type
+     * @return size of an element in bytes
+     */
+    static int elementSize(final ElementType type) {
+        switch (type) {
+            case UINT8:
+            case INT8:
+                return 1;
+            case UINT16:
+            case INT16:
+                return 2;
+            case UINT32:
+            case INT32:
+            case FLOAT32:
+                return 4;
+            default:
+                return 8;
+        }
+    }
+
+    /**
+     * @param type an element type
+     * @param length length of the array
+     * @return a primitive array in which elements of the given type are stored by imglib2
+     */
+    static Object createArray(final ElementType type, final int length) {
+        switch (type) {
+            case UINT8:
+            case INT8:
+                return new byte[length];
+            case UINT16:
+            case INT16:
+                return new short[length];
+            case UINT32:
+            case INT32:
+                return new int[length];
+            case INT64:
+                return new long[length];
+            case FLOAT32:
+                return new float[length];
+            default:
+                return new double[length];
+        }
+    }
+
+    /**
+     * @param type an element type
+     * @param array the storage array of an image
+     * @return whether the array stores elements of the given type one by one
+     */
+    static boolean isStorageOf(final ElementType type, final Object array) {
+        return array != null && array.getClass() == createArray(type, 0).getClass();
+    }
+
+    /**
+     * @param channel the file, positioned at its start
+     * @param type element type of the data
+     * @param dims dimensions of the data in imglib2 order
+     * @return position of the data in the file
+     * @throws IOException
+     */
+    static long writeHeader(final FileChannel channel, final ElementType type, final long[] dims)
+            throws IOException {
+        final StringBuilder shape = new StringBuilder();
+        for (int d = dims.length - 1; d >= 0; d--) {
+            shape.append(dims[d]).append(", ");
+        }
+        if (dims.length > 1) {
+            shape.setLength(shape.length() - 2);
+        } else if (dims.length == 1) {
+            shape.setLength(shape.length() - 1);
+        }
+
+        final StringBuilder header = new StringBuilder("{'descr': '").append(descr(type))
+                .append("', 'fortran_order': False, 'shape': (").append(shape).append("), }");
+        // magic, version and header length take 10 bytes, the header ends with a newline
+        while ((MAGIC.length + 4 + header.length() + 1) % HEADER_ALIGNMENT != 0) {
+            header.append(' ');
+        }
+        header.append('\n');
+
+        final byte[] headerBytes = header.toString().getBytes(StandardCharsets.US_ASCII);
+        final ByteBuffer buffer = ByteBuffer.allocate(MAGIC.length + 4 + headerBytes.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(MAGIC).put((byte)1).put((byte)0).putShort((short)headerBytes.length).put(headerBytes);
+        buffer.flip();
+        writeFully(channel, buffer, 0);
+        return buffer.capacity();
+    }
+
+    /**
+     * @param channel the file
+     * @return the header of the file
+     * @throws IOException
+     */
+    static Header readHeader(final FileChannel channel) throws IOException {
+        final ByteBuffer prefix = ByteBuffer.allocate(MAGIC.length + 2).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, prefix, 0);
+        prefix.flip();
+        for (final byte b : MAGIC) {
+            if (prefix.get() != b) {
+                throw new IOException("Not a numpy file.");
+            }
+        }
+        final int major = prefix.get();
+        prefix.get();
+
+        // version 1 has a 2 byte header length, later versions 4 bytes
+        final ByteBuffer length = ByteBuffer.allocate(major == 1 ? 2 : 4).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, length, prefix.capacity());
+        length.flip();
+        final int headerLength = major == 1 ? length.getShort() & 0xffff : length.getInt();
+
+        final ByteBuffer headerBytes = ByteBuffer.allocate(headerLength);
+        final long headerStart = prefix.capacity() + length.capacity();
+        readFully(channel, headerBytes, headerStart);
+        final String header = new String(headerBytes.array(), StandardCharsets.ISO_8859_1);
+
+        final Matcher descr = DESCR.matcher(header);
+        final Matcher fortranOrder = FORTRAN_ORDER.matcher(header);
+        final Matcher shape = SHAPE.matcher(header);
+        if (!descr.find() || !fortranOrder.find() || !shape.find()) {
+            throw new IOException("Invalid numpy header: " + header);
+        }
+
+        final String[] sizes = shape.group(1).split(",");
+        final long[] npyDims = new long[sizes.length];
+        int n = 0;
+        for (final String size : sizes) {
+            if (!size.trim().isEmpty()) {
+                npyDims[n++] = Long.parseLong(size.trim());
+            }
+        }
+        final long[] dims = new long[n];
+        for (int d = 0; d < n; d++) {
+            // C order has the fastest axis last, fortran order first like imglib2
+            dims[d] = "True".equals(fortranOrder.group(1)) ? npyDims[d] : npyDims[n - 1 - d];
+        }
+        return new Header(fromDescr(descr.group(1)), dims, headerStart + headerLength);
+    }
+
+    /**
+     * Write a primitive array to the file.
+     *
+     * @param channel the file, opened for reading and writing
+     * @param position position of the first element in the file
+     * @param array a primitive array
+     * @throws IOException
+     */
+    static void write(final FileChannel channel, final long position, final Object array) throws IOException {
+        transfer(channel, position, array, Array.getLength(array), true);
+    }
+
+    /**
+     * Read a primitive array from the file.
+     *
+     * @param channel the file
+     * @param position position of the first element in the file
+     * @param array the primitive array to fill
+     * @throws IOException
+     */
+    static void read(final FileChannel channel, final long position, final Object array) throws IOException {
+        transfer(channel, position, array, Array.getLength(array), false);
+    }
+
+    /**
+     * Write the first elements of a primitive array to the file.
+     *
+     * @param channel the file, opened for reading and writing
+     * @param position position of the first element in the file
+     * @param array a primitive array
+     * @param length number of elements to write
+     * @throws IOException
+     */
+    static void write(final FileChannel channel, final long position, final Object array, final int length)
+            throws IOException {
+        transfer(channel, position, array, length, true);
+    }
+
+    private static void transfer(final FileChannel channel, final long position, final Object array,
+                                 final int length, final boolean write) throws IOException {
+        final int elementSize = elementSize(array);
+        final int window = WINDOW_BYTES / elementSize;
+        for (int offset = 0; offset < length; offset += window) {
+            final int n = Math.min(window, length - offset);
+            final long windowPosition = position + (long)offset * elementSize;
+            final long windowSize = (long)n * elementSize;
+
+            final ByteBuffer buffer;
+            if (USE_MMAP) {
+                buffer = channel.map(write ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                                     windowPosition, windowSize);
+            } else {
+                buffer = ByteBuffer.allocate((int)windowSize);
+                if (!write) {
+                    readFully(channel, buffer, windowPosition);
+                    buffer.flip();
+                }
+            }
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            copy(buffer, array, offset, n, write);
+
+            if (!USE_MMAP && write) {
+                writeFully(channel, buffer, windowPosition);
+            }
+        }
+    }
+
+    /**
+     * Bulk copy between a buffer and a primitive array, the position of the buffer is not changed.
+     */
+    private static void copy(final ByteBuffer buffer, final Object array, final int offset, final int length,
+                             final boolean toBuffer) {
+        if (array instanceof byte[]) {
+            if (toBuffer) {
+                buffer.duplicate().put((byte[])array, offset, length);
+            } else {
+                buffer.duplicate().get((byte[])array, offset, length);
+            }
+        } else if (array instanceof short[]) {
+            if (toBuffer) {
+                buffer.asShortBuffer().put((short[])array, offset, length);
+            } else {
+                buffer.asShortBuffer().get((short[])array, offset, length);
+            }
+        } else if (array instanceof int[]) {
+            if (toBuffer) {
+                buffer.asIntBuffer().put((int[])array, offset, length);
+            } else {
+                buffer.asIntBuffer().get((int[])array, offset, length);
+            }
+        } else if (array instanceof long[]) {
+            if (toBuffer) {
+                buffer.asLongBuffer().put((long[])array, offset, length);
+            } else {
+                buffer.asLongBuffer().get((long[])array, offset, length);
+            }
+        } else if (array instanceof float[]) {
+            if (toBuffer) {
+                buffer.asFloatBuffer().put((float[])array, offset, length);
+            } else {
+                buffer.asFloatBuffer().get((float[])array, offset, length);
+            }
+        } else if (array instanceof double[]) {
+            if (toBuffer) {
+                buffer.asDoubleBuffer().put((double[])array, offset, length);
+            } else {
+                buffer.asDoubleBuffer().get((double[])array, offset, length);
+            }
+        } else {
+            throw new IllegalArgumentException("Not a primitive array: " + array);
+        }
+    }
+
+    private static int elementSize(final Object array) {
+        if (array instanceof byte[]) {
+            return 1;
+        } else if (array instanceof short[]) {
+            return 2;
+        } else if (array instanceof int[] || array instanceof float[]) {
+            return 4;
+        } else {
+            return 8;
+        }
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer, final long position)
+            throws IOException {
+        long pos = position;
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, pos);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            pos += read;
+        }
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer, final long position)
+            throws IOException {
+        long pos = position;
+        while (buffer.hasRemaining()) {
+            pos += channel.write(buffer, pos);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2015
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ *
+ */
+package org.knime.knip.ilastik.nodes.headless;
+
+import java.lang.reflect.Array;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import org.knime.knip.ilastik.nodes.headless.Hdf5Format.ElementType;
+
+import net.imagej.ImgPlus;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Reads ilastik results from NumPy .npy files in bulk into an imglib2 {@code ArrayImg}, or into a {@code PlanarImg}
+ * plane by plane if the result is too large for a single array. The files have no axes, these are given by the
+ * input images.
+ *
+ * @author Andreas Graumann, University of Konstanz
+ */
+final class NpyImageReader implements IlastikImageReader {
+
+    /**
+     * maximum number of elements of a java array
+     */
+    private static final long MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T extends RealType<T> & NativeType<T>> ImgPlus<T> read(final String path) throws Exception {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            final NpyFormat.Header header = NpyFormat.readHeader(channel);
+            final long[] dims = header.getDimensions();
+            final ElementType type = header.getType();
+
+            long nrElements = 1;
+            for (final long dim : dims) {
+                nrElements *= dim;
+            }
+
+            if (nrElements <= MAX_ARRAY_SIZE) {
+                final Object array = NpyFormat.createArray(type, (int)nrElements);
+                NpyFormat.read(channel, header.getDataOffset(), array);
+                return new ImgPlus<>((Img<T>)createArrayImg(type, array, dims));
+            }
+
+            final PlanarImg<?, ?> img = createPlanarImg(type, dims);
+            long position = header.getDataOffset();
+            for (int plane = 0; plane < img.numSlices(); plane++) {
+                final Object array = ((ArrayDataAccess<?>)img.getPlane(plane)).getCurrentStorageArray();
+                NpyFormat.read(channel, position, array);
+                position += (long)Array.getLength(array) * NpyFormat.elementSize(type);
+            }
+            return new ImgPlus<>((Img<T>)img);
+        }
+    }
+
+    private static Img<?> createArrayImg(final ElementType type, final Object array, final long[] dims) {
+        switch (type) {
+            case UINT8:
+                return ArrayImgs.unsignedBytes((byte[])array, dims);
+            case INT8:
+                return ArrayImgs.bytes((byte[])array, dims);
+            case UINT16:
+                return ArrayImgs.unsignedShorts((short[])array, dims);
+            case INT16:
+                return ArrayImgs.shorts((short[])array, dims);
+            case UINT32:
+                return ArrayImgs.unsignedInts((int[])array, dims);
+            case INT32:
+                return ArrayImgs.ints((int[])array, dims);
+            case INT64:
+                return ArrayImgs.longs((long[])array, dims);
+            case FLOAT32:
+                return ArrayImgs.floats((float[])array, dims);
+            default:
+                return ArrayImgs.doubles((double[])array, dims);
+        }
+    }
+
+    private static PlanarImg<?, ?> createPlanarImg(final ElementType type, final long[] dims) {
+        switch (type) {
+            case UINT8:
+                return PlanarImgs.unsignedBytes(dims);
+            case INT8:
+                return PlanarImgs.bytes(dims);
+            case UINT16:
+                return PlanarImgs.unsignedShorts(dims);
+            case INT16:
+                return PlanarImgs.shorts(dims);
+            case UINT32:
+                return PlanarImgs.unsignedInts(dims);
+            case INT32:
+                return PlanarImgs.ints(dims);
+            case INT64:
+                return PlanarImgs.longs(dims);
+            case FLOAT32:
+                return PlanarImgs.floats(dims);
+            default:
+                return PlanarImgs.doubles(dims);
+        }
+    }
+
+    @Override
+    public void close() {
+        // nothing to do here
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2015
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ *
+ */
+package org.knime.knip.ilastik.nodes.headless;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import org.knime.knip.ilastik.nodes.headless.Hdf5Format.ElementType;
+
+import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Writes input images for ilastik as NumPy .npy files. The storage arrays of array and planar images are copied to the
+ * file in bulk, other images are copied through a buffer.
+ *
+ * @author Andreas Graumann, University of Konstanz
+ */
+final class NpyImageWriter implements IlastikImageWriter {
+
+    /**
+     * number of elements copied at once if the image is not backed by arrays
+     */
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    @Override
+    public void write(final ImgPlus<?> img, final String path, final boolean compressed) throws IOException {
+        // NB: ilastik only reads uncompressed .npy files
+        final long[] dims = new long[img.numDimensions()];
+        img.dimensions(dims);
+        final ElementType type = ElementType.of((RealType<?>)img.firstElement());
+        final long nrElements = img.size();
+
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE)) {
+            long position = NpyFormat.writeHeader(channel, type, dims);
+
+            final Img<?> data = img.getImg();
+            if (data instanceof ArrayImg) {
+                final Object array = getStorage(((ArrayImg<?, ?>)data).update(null));
+                if (NpyFormat.isStorageOf(type, array) && Array.getLength(array) == nrElements) {
+                    NpyFormat.write(channel, position, array);
+                    return;
+                }
+            } else if (data instanceof PlanarImg && isPlanarStorageOf((PlanarImg<?, ?>)data, type)) {
+                final PlanarImg<?, ?> planar = (PlanarImg<?, ?>)data;
+                for (int plane = 0; plane < planar.numSlices(); plane++) {
+                    final Object array = getStorage(planar.getPlane(plane));
+                    NpyFormat.write(channel, position, array);
+                    position += (long)Array.getLength(array) * NpyFormat.elementSize(type);
+                }
+                return;
+            }
+
+            writeBuffered(channel, position, img, type);
+        }
+    }
+
+    private static boolean isPlanarStorageOf(final PlanarImg<?, ?> img, final ElementType type) {
+        final long planeSize = img.numDimensions() > 1 ? img.dimension(0) * img.dimension(1) : img.dimension(0);
+        for (int plane = 0; plane < img.numSlices(); plane++) {
+            final Object array = getStorage(img.getPlane(plane));
+            if (!NpyFormat.isStorageOf(type, array) || Array.getLength(array) != planeSize) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Object getStorage(final Object access) {
+        return access instanceof ArrayDataAccess ? ((ArrayDataAccess<?>)access).getCurrentStorageArray() : null;
+    }
+
+    /**
+     * Copy the image in flat iteration order through a primitive array.
+     */
+    private static void writeBuffered(final FileChannel channel, final long position, final ImgPlus<?> img,
+                                      final ElementType type)
+            throws IOException {
+        final Object buffer = NpyFormat.createArray(type, (int)Math.min(BUFFER_SIZE, img.size()));
+        final int bufferSize = Array.getLength(buffer);
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        final Cursor<? extends RealType<?>> cursor = Views.flatIterable((ImgPlus)img).cursor();
+        long pos = position;
+        while (cursor.hasNext()) {
+            int n = 0;
+            while (n < bufferSize && cursor.hasNext()) {
+                set(buffer, n++, cursor.next(), type);
+            }
+            NpyFormat.write(channel, pos, buffer, n);
+            pos += (long)n * NpyFormat.elementSize(type);
+        }
+    }
+
+    private static void set(final Object buffer, final int i, final RealType<?> value, final ElementType type) {
+        switch (type) {
+            case UINT8:
+            case INT8:
+                ((byte[])buffer)[i] = (byte)getLong(value);
+                break;
+            case UINT16:
+            case INT16:
+                ((short[])buffer)[i] = (short)getLong(value);
+                break;
+            case UINT32:
+            case INT32:
+                ((int[])buffer)[i] = (int)getLong(value);
+                break;
+            case INT64:
+                ((long[])buffer)[i] = getLong(value);
+                break;
+            case FLOAT32:
+                ((float[])buffer)[i] = value.getRealFloat();
+                break;
+            default:
+                ((double[])buffer)[i] = value.getRealDouble();
+                break;
+        }
+    }
+
+    private static long getLong(final RealType<?> value) {
+        return value instanceof IntegerType ? ((IntegerType<?>)value).getIntegerLong() : (long)value.getRealDouble();
+    }
+
+    @Override
+    public void close() {
+        // nothing to do here
+    }
+}